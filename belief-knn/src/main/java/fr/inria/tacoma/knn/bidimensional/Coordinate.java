@@ -1,6 +1,15 @@
 package fr.inria.tacoma.knn.bidimensional;
 
-public class Coordinate {
+import fr.inria.tacoma.knn.core.AxisBoundedDistance;
+import fr.inria.tacoma.knn.core.VectorPoint;
+
+public class Coordinate implements VectorPoint {
+
+    /**
+     * Euclidean distance between two coordinates, which lets a KdTree index them.
+     */
+    public static final AxisBoundedDistance<Coordinate> DISTANCE = Coordinate::distance;
+
     private double x;
     private double y;
 
@@ -22,4 +31,14 @@ public class Coordinate {
         double yDiff = (this.getY() - that.getY());
         return Math.sqrt(xDiff * xDiff + yDiff * yDiff);
     }
+
+    @Override
+    public int dimension() {
+        return 2;
+    }
+
+    @Override
+    public double coordinate(int axis) {
+        return axis == 0 ? x : y;
+    }
 }
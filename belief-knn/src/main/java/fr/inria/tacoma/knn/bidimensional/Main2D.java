@@ -62,7 +62,7 @@ public class Main2D {
                                                     List<LabelledPoint<Coordinate>> points,
                                                     List<LabelledPoint<Coordinate>> testSample) {
         KnnFactory<Coordinate> factory = KnnFactory.getGenericFactory(frame,
-                Coordinate::distance);
+                Coordinate.DISTANCE);
         show(stateSet, KnnUtils.getBestKnnBeliefWithFixedAlpha(factory, points, testSample, ALPHA));
 
     }
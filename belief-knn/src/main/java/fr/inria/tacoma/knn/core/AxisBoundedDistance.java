@@ -0,0 +1,22 @@
+package fr.inria.tacoma.knn.core;
+
+/**
+ * Distance between vector points (see VectorPoint) which is never lower than the difference of
+ * the two points on an axis times the factor of this axis, such as the euclidean distance or the
+ * manhattan distance with a factor of 1 on every axis. Only these distances are indexed by a
+ * KdTree, which skips the points too far on an axis: a distance declares this way that the tree
+ * gives the same neighbors as a comparison to every point.
+ * @param <T> type of the values
+ */
+@FunctionalInterface
+public interface AxisBoundedDistance<T> extends Distance<T> {
+
+    /**
+     * @param axis index of the coordinate
+     * @return factor f such that the distance between two points is never lower than f times
+     * their difference on the axis, 0 when the distance is not bounded on this axis
+     */
+    default double axisFactor(int axis) {
+        return 1;
+    }
+}
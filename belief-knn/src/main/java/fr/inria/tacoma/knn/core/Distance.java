@@ -0,0 +1,12 @@
+package fr.inria.tacoma.knn.core;
+
+/**
+ * Distance between two values of the same type. The distance is returned as a primitive, so it
+ * can be computed in the neighbor search without boxing the result.
+ * @param <T> type of the values
+ */
+@FunctionalInterface
+public interface Distance<T> {
+
+    double between(T value1, T value2);
+}
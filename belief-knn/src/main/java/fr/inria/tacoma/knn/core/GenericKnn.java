@@ -3,27 +3,46 @@ package fr.inria.tacoma.knn.core;
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.util.LabelSets;
 
 import java.util.*;
-import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class GenericKnn<T> implements KnnBelief<T> {
 
+    /**
+     * Buffer of the merged ignorances reused by toMass.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
     private final int k;
     private final double alpha;
     private final FrameOfDiscernment frame;
     private final List<? extends LabelledPoint<T>> points;
     private final Map<String, Double> gammaProvider;
     private final Function<List<MassFunction>, MassFunction>combination;
-    private final BiFunction<T, T, Double> distance;
+    private final Distance<T> distance;
+    private final KdTree<T> index;
 
     public GenericKnn(List<? extends LabelledPoint<T>> points, int k, double alpha,
                       FrameOfDiscernment frame,
                       Function<List<MassFunction>, MassFunction> combination,
-                      BiFunction<T, T, Double> distance,
+                      Distance<T> distance,
                       Map<String, Double> gammaProvider) {
+        this(points, k, alpha, frame, combination, distance, gammaProvider,
+                KdTree.tryBuild(points, distance));
+    }
+
+    /**
+     * @param index index of the points, null to compare the value to every point.
+     */
+    public GenericKnn(List<? extends LabelledPoint<T>> points, int k, double alpha,
+                      FrameOfDiscernment frame,
+                      Function<List<MassFunction>, MassFunction> combination,
+                      Distance<T> distance,
+                      Map<String, Double> gammaProvider, KdTree<T> index) {
         this.k = k;
         this.alpha = alpha;
         this.frame = frame;
@@ -31,12 +50,16 @@ public class GenericKnn<T> implements KnnBelief<T> {
         this.points = points;
         this.distance = distance;
         this.gammaProvider = gammaProvider;
+        this.index = index;
     }
 
     private List<LabelledPoint<T>> knn(T value) {
+        if (index != null) {
+            return index.nearest(value, k);
+        }
         return points.stream()
                 .sorted((p1,p2) ->
-                        Double.compare(distance.apply(p1.getValue(), value), distance.apply(
+                        Double.compare(distance.between(p1.getValue(), value), distance.between(
                                 p2.getValue(), value)))
                 .limit(k).collect(Collectors.<LabelledPoint<T>>toList());
     }
@@ -45,7 +68,7 @@ public class GenericKnn<T> implements KnnBelief<T> {
         MutableMass mass = frame.newMass();
         double gamma = 1.0 / gammaProvider.get(point.getLabel());
         mass.addToFocal(frame.toStateSet(point.getLabel()),
-                alpha * Math.exp(-distance.apply(value, point.getValue()) * gamma));
+                alpha * Math.exp(-distance.between(value, point.getValue()) * gamma));
         mass.putRemainingOnIgnorance();
         return mass;
     }
@@ -67,26 +90,71 @@ public class GenericKnn<T> implements KnnBelief<T> {
 
     @Override
     public KnnBelief<T> withAlpha(double newAlpha) {
-        return new GenericKnn<>(points, k, newAlpha, frame, combination, distance, gammaProvider);
+        return new GenericKnn<>(points, k, newAlpha, frame, combination, distance, gammaProvider,
+                index);
     }
 
     @Override
     public KnnBelief<T> withK(int newK) {
-        return new GenericKnn<>(points, newK, alpha, frame, combination, distance, gammaProvider);
+        return new GenericKnn<>(points, newK, alpha, frame, combination, distance, gammaProvider,
+                index);
     }
 
     @Override
     public KnnBelief<T> withAlphaAndK(double newAlpha, int newK) {
-        return new GenericKnn<>(points, newK, newAlpha, frame, combination, distance, gammaProvider);
+        return new GenericKnn<>(points, newK, newAlpha, frame, combination, distance,
+                gammaProvider, index);
     }
 
     @Override
     public MutableMass toMass(T sensorValue) {
+        MutableMass mass = frame.newMass();
+        toMassInto(sensorValue, mass);
+        return mass;
+    }
+
+    @Override
+    public void toMassInto(T sensorValue, MutableMass target) {
         List<LabelledPoint<T>> knn = knn(sensorValue);
+        if (combination instanceof SupportCombination) {
+            // the supports are merged by label without creating their mass functions
+            SupportCombination supports = (SupportCombination) combination;
+            LabelSets labelSets = LabelSets.of(frame);
+            double[] ignorances = scratch(labelSets.size());
+            Arrays.fill(ignorances, 0, labelSets.size(), 1.0);
+            for (LabelledPoint<T> point : knn) {
+                double gamma = 1.0 / gammaProvider.get(point.getLabel());
+                int label = labelSets.ordinal(point.getLabel());
+                ignorances[label] = supports.merge(ignorances[label], alpha
+                        * Math.exp(-distance.between(sensorValue, point.getValue()) * gamma));
+            }
+            supports.combineInto(frame, ignorances, target);
+            return;
+        }
         List<MassFunction> masses = knn.stream()
                 .map(p -> getMassFunction(sensorValue, p))
                 .collect(Collectors.toList());
-        return frame.newMass(combination.apply(masses));
+        InPlaceBeliefModel.copy(combination.apply(masses), target);
+    }
+
+    /**
+     * @return the scratch buffer of the current thread, with at least the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < labelCount) {
+            buffer = new double[labelCount];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+
+    @Override
+    public NeighborTable neighborTable(List<? extends LabelledPoint<T>> crossValidation,
+                                       int maxK) {
+        return NeighborTable.ofDistances(frame, points, distance, crossValidation, maxK,
+                combination);
     }
 
 
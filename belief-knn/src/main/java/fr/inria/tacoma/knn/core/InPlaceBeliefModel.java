@@ -0,0 +1,51 @@
+package fr.inria.tacoma.knn.core;
+
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+
+/**
+ * Belief model which can write its mass functions into a given mass function. A caller
+ * evaluating many values reuses the same mass function, so the models and the wrappers of
+ * models do not create any mass function.
+ *
+ * The previous focal elements of the target are set to 0 rather than removed.
+ */
+public interface InPlaceBeliefModel<T> extends SensorBeliefModel<T> {
+
+    /**
+     * Writes the mass function of a sensor value into target, replacing its content.
+     * @param sensorValue sensor value
+     * @param target mass function of the frame of the model
+     */
+    void toMassInto(T sensorValue, MutableMass target);
+
+    /**
+     * Writes the mass function given by any model into target, without creating a mass
+     * function when the model is an InPlaceBeliefModel.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> void toMassInto(SensorBeliefModel<T> model, T sensorValue, MutableMass target) {
+        if (model instanceof InPlaceBeliefModel) {
+            ((InPlaceBeliefModel<T>) model).toMassInto(sensorValue, target);
+        }
+        else {
+            copy(model.toMass(sensorValue), target);
+        }
+    }
+
+    /**
+     * Sets the mass of every focal element of a mass function to 0.
+     */
+    static void clear(MutableMass mass) {
+        mass.foreachFocalElement((stateSet, value) -> mass.set(stateSet, 0));
+    }
+
+    /**
+     * Replaces the content of target by the focal elements of a mass function.
+     */
+    static void copy(MassFunction mass, MutableMass target) {
+        clear(target);
+        mass.foreachFocalElement(target::set);
+    }
+}
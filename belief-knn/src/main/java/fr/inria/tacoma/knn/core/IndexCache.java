@@ -0,0 +1,93 @@
+package fr.inria.tacoma.knn.core;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.knn.util.KnnUtils;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Indexes (KdTree, PackedPoints...) of the last training sets given to a factory, so the models
+ * of the folds trained in parallel (see Kfold.trainFolds) each reuse the index of their own
+ * training set instead of replacing the one of the other folds. An index is reused for the
+ * same points (see KnnUtils.samePoints) with the frame and distance it was built with, and the
+ * least recently used index is dropped when the cache is full.
+ *
+ * The indexes are built outside of the lock, so the folds build theirs in parallel.
+ *
+ * @param <T> type of the values of the points
+ * @param <V> type of the indexes
+ */
+final class IndexCache<T, V> {
+
+    /**
+     * Number of indexes kept by default, which is more than the usual number of folds.
+     */
+    static final int DEFAULT_CAPACITY = 8;
+
+    private final int capacity;
+    /**
+     * Indexes from the most recently used to the least recently used.
+     */
+    private final LinkedList<Entry<T, V>> entries = new LinkedList<>();
+
+    IndexCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    IndexCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("the capacity must be positive, not " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gives the index of a training set, building it if it is not in the cache.
+     * @param points training set, which must not be modified while the index is used
+     * @param frame frame the index is built for
+     * @param distance distance the index is built for
+     * @param build builds the index of the training set, may return null
+     * @return the index of the points
+     */
+    V get(List<? extends LabelledPoint<T>> points, FrameOfDiscernment frame,
+          Distance<T> distance, Function<List<? extends LabelledPoint<T>>, V> build) {
+        synchronized (this) {
+            Iterator<Entry<T, V>> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                Entry<T, V> entry = iterator.next();
+                if (entry.frame == frame && entry.distance == distance
+                        && KnnUtils.samePoints(entry.points, points)) {
+                    iterator.remove();
+                    entries.addFirst(entry);
+                    return entry.index;
+                }
+            }
+        }
+        Entry<T, V> built = new Entry<>(points, frame, distance, build.apply(points));
+        synchronized (this) {
+            entries.addFirst(built);
+            if (entries.size() > capacity) {
+                entries.removeLast();
+            }
+        }
+        return built.index;
+    }
+
+    private static final class Entry<T, V> {
+        private final List<? extends LabelledPoint<T>> points;
+        private final FrameOfDiscernment frame;
+        private final Distance<T> distance;
+        private final V index;
+
+        private Entry(List<? extends LabelledPoint<T>> points, FrameOfDiscernment frame,
+                      Distance<T> distance, V index) {
+            this.points = points;
+            this.frame = frame;
+            this.distance = distance;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package fr.inria.tacoma.knn.core;
+
+import fr.inria.tacoma.knn.util.KnnUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Static KD-tree over a training set of vector points, giving the exact k nearest neighbors of a
+ * value without computing the distance to every point. The tree is immutable once built, so it
+ * can be shared by every copy of a model (see withAlpha, withK...).
+ *
+ * The tree only uses the coordinates to skip parts of the training set (see PackedKdTree), so
+ * only distances declaring a lower bound by the difference on every axis (see
+ * AxisBoundedDistance) are indexed. The distances themselves are given by the distance
+ * function, so the neighbors are the same as the ones found by sorting the whole training set,
+ * points at the same distance being ordered as in the training set.
+ *
+ * @param <T> type of the values, which must implement VectorPoint
+ */
+public final class KdTree<T> {
+
+    private final List<? extends LabelledPoint<T>> points;
+    private final Distance<T> distance;
+    private final int dimension;
+    private final PackedKdTree tree;
+
+    private KdTree(List<? extends LabelledPoint<T>> points, Distance<T> distance,
+                   double[] coordinates, int dimension, double[] axisFactors) {
+        this.points = points;
+        this.distance = distance;
+        this.dimension = dimension;
+        this.tree = new PackedKdTree(coordinates, dimension, axisFactors);
+    }
+
+    /**
+     * Builds a tree over the given points when it is possible, that is when the values are
+     * vector points of the same dimension and the distance is an AxisBoundedDistance with a
+     * positive factor on every axis.
+     * @param points training set, which must not be modified while the tree is used
+     * @param distance distance between two values
+     * @return the tree, or null if the points can not be indexed
+     */
+    public static <T> KdTree<T> tryBuild(List<? extends LabelledPoint<T>> points,
+                                         Distance<T> distance) {
+        if (!(distance instanceof AxisBoundedDistance) || points.isEmpty()
+                || !(points.get(0).getValue() instanceof VectorPoint)) {
+            return null;
+        }
+        int dimension = ((VectorPoint) points.get(0).getValue()).dimension();
+        if (dimension <= 0 || dimension > PackedKdTree.MAX_DIMENSION) {
+            return null;
+        }
+        double[] axisFactors = new double[dimension];
+        for (int axis = 0; axis < dimension; axis++) {
+            axisFactors[axis] = ((AxisBoundedDistance<?>) distance).axisFactor(axis);
+            if (!(axisFactors[axis] > 0) || Double.isInfinite(axisFactors[axis])) {
+                return null;
+            }
+        }
+        double[] coordinates = new double[points.size() * dimension];
+        for (int i = 0; i < points.size(); i++) {
+            T value = points.get(i).getValue();
+            if (!(value instanceof VectorPoint)
+                    || ((VectorPoint) value).dimension() != dimension) {
+                return null;
+            }
+            for (int axis = 0; axis < dimension; axis++) {
+                coordinates[i * dimension + axis] = ((VectorPoint) value).coordinate(axis);
+            }
+        }
+        return new KdTree<>(points, distance, coordinates, dimension, axisFactors);
+    }
+
+    /**
+     * Tells if the tree indexes exactly the given points, in the same order.
+     */
+    public boolean indexes(List<? extends LabelledPoint<T>> points) {
+        return KnnUtils.samePoints(this.points, points);
+    }
+
+    /**
+     * Finds the k nearest neighbors of a value.
+     * @param value value for which we look for neighbors
+     * @param k number of neighbors
+     * @return the min(k, size) nearest points, from the nearest to the farthest
+     */
+    public List<LabelledPoint<T>> nearest(T value, int k) {
+        NeighborHeap neighbors = new NeighborHeap(Math.min(k, points.size()));
+        double[] query = new double[dimension];
+        for (int axis = 0; axis < dimension; axis++) {
+            query[axis] = ((VectorPoint) value).coordinate(axis);
+        }
+        tree.search(query, index -> distance.between(value, points.get(index).getValue()),
+                neighbors);
+
+        List<LabelledPoint<T>> result = new ArrayList<>(neighbors.size());
+        while (neighbors.size() > 0) {
+            result.add(points.get(neighbors.removeFarthest()));
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
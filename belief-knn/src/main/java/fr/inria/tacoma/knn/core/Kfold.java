@@ -9,35 +9,129 @@ import fr.inria.tacoma.knn.util.AveragingBeliefModel;
 import fr.inria.tacoma.knn.util.KnnUtils;
 
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public abstract class Kfold<T> {
 
+    /**
+     * Trains a model on each fold in the common fork/join pool, see generateModel(KnnFactory,
+     * List, int, ForkJoinPool).
+     */
     public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
                                                      List<LabelledPoint<T>> samples, int k) {
+        return generateModel(factory, samples, k, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Trains a model on each fold and averages them. The folds are trained in parallel in the
+     * given pool, and give the same models as when trained one after another.
+     * @param factory factory of the models
+     * @param samples points to split in folds
+     * @param k number of folds
+     * @param pool pool running the trainings of the folds
+     * @return the average of the models of the folds
+     */
+    public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
+                                                     List<LabelledPoint<T>> samples, int k,
+                                                     ForkJoinPool pool) {
+        return generateModel(factory, samples, k, pool, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Same as generateModel(KnnFactory, List, int, ForkJoinPool), the search of the best k of
+     * each fold stopping when the error has not decreased for patience consecutive values of k
+     * (see KnnUtils.getBestKnnBeliefForAlphaAndK).
+     * @param warmStart true to train the first fold alone, the searches of alpha of the other
+     *                  folds starting from its best alpha (see trainFolds)
+     */
+    public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
+                                                     List<LabelledPoint<T>> samples, int k,
+                                                     ForkJoinPool pool, int patience,
+                                                     boolean warmStart) {
 //        List<LabelledPoint<T>> shuffled = new ArrayList<>(samples);
 //        Collections.shuffle(shuffled, random);
 //        List<List<LabelledPoint<T>>> sublists = KnnUtils.split(shuffled, k);
-        List<List<LabelledPoint<T>>> sublists = createSubLists(samples, k);
+        List<KnnBelief<T>> models = trainFolds(samples, k, pool,
+                (trainingSet, crossValidation, start) ->
+                        KnnUtils.getBestKnnBeliefForAlphaAndK(factory, trainingSet,
+                                crossValidation, patience, start == null
+                                        ? KnnUtils.START_ALPHA : start.getAlpha()),
+                warmStart);
+
+        return new AveragingBeliefModel<>(new ArrayList<>(models));
+    }
 
-        List<SensorBeliefModel<T>> models = new ArrayList<>(k);
+    /**
+     * Training of a fold which can start from the model of another fold.
+     */
+    @FunctionalInterface
+    public interface WarmTraining<T> {
+        /**
+         * @param trainingSet points to train the model on
+         * @param crossValidation points to validate the model on
+         * @param warmStart model of the first fold, null without warm start and when training
+         *                  the first fold
+         * @return the model of the fold
+         */
+        KnnBelief<T> train(List<LabelledPoint<T>> trainingSet,
+                           List<LabelledPoint<T>> crossValidation, KnnBelief<T> warmStart);
+    }
+
+    /**
+     * Splits the samples in folds and trains a model for each fold, validated on the fold and
+     * trained on the other ones. Each training is a task of the pool, so the training must not
+     * share any mutable state with the other ones.
+     *
+     * With a warm start, the first fold is trained alone and the other ones start from its
+     * model: the folds share most of their points, so its parameters are a good start and the
+     * other searches are shorter. The first fold is then not trained in parallel with the
+     * other ones, which only pays when the pool has fewer threads than folds or when the start
+     * shortens the searches a lot. The models depend on the start, but not on the number of
+     * threads of the pool.
+     * @param samples points to split in folds
+     * @param k number of folds
+     * @param pool pool running the trainings
+     * @param training gives the model of a training set and a cross validation set
+     * @param warmStart true to start the other folds from the model of the first one
+     * @return the model of each fold, in the order of the folds
+     */
+    public static <T> List<KnnBelief<T>> trainFolds(List<LabelledPoint<T>> samples, int k,
+                                                    ForkJoinPool pool, WarmTraining<T> training,
+                                                    boolean warmStart) {
+        List<List<LabelledPoint<T>>> sublists = createSubLists(samples, k);
 
-        for (int validationIndex = 0; validationIndex < k; validationIndex++) {
-            List<LabelledPoint<T>> trainingSet = new ArrayList<>();
+        KnnBelief<T> first = warmStart ? pool.submit(() -> training.train(
+                trainingSet(sublists, 0), sublists.get(0), null)).join() : null;
+        List<ForkJoinTask<KnnBelief<T>>> tasks = new ArrayList<>(k);
+        for (int validationIndex = warmStart ? 1 : 0; validationIndex < k; validationIndex++) {
+            List<LabelledPoint<T>> trainingSet = trainingSet(sublists, validationIndex);
             List<LabelledPoint<T>> crossValidation = sublists.get(validationIndex);
-            for (int j = 0; j < k; j++) {
-                if(validationIndex != j) {
-                    trainingSet.addAll(sublists.get(j));
-                }
-            }
-            KnnBelief<T> bestModel =
-                    KnnUtils.getBestKnnBeliefForAlphaAndK(factory, trainingSet, crossValidation);
-            models.add(bestModel);
+            tasks.add(pool.submit(() -> training.train(trainingSet, crossValidation, first)));
         }
 
-        return new AveragingBeliefModel<>(models);
+        List<KnnBelief<T>> models = new ArrayList<>(k);
+        if (warmStart) {
+            models.add(first);
+        }
+        tasks.stream().map(ForkJoinTask::join).forEach(models::add);
+        return models;
+    }
+
+    /**
+     * @return the points of every fold but the validation one
+     */
+    private static <T> List<LabelledPoint<T>> trainingSet(List<List<LabelledPoint<T>>> sublists,
+                                                          int validationIndex) {
+        List<LabelledPoint<T>> trainingSet = new ArrayList<>();
+        for (int j = 0; j < sublists.size(); j++) {
+            if(validationIndex != j) {
+                trainingSet.addAll(sublists.get(j));
+            }
+        }
+        return trainingSet;
     }
 
     private static <T> List<List<T>> createSubLists(List<T> list, int nb) {
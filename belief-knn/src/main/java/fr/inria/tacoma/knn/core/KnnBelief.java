@@ -1,10 +1,15 @@
 package fr.inria.tacoma.knn.core;
 
-import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.bft.criteria.Criteria;
 
+import java.util.List;
 import java.util.Map;
 
-public interface KnnBelief<T> extends SensorBeliefModel<T> {
+public interface KnnBelief<T> extends InPlaceBeliefModel<T> {
     int getK();
 
     double getAlpha();
@@ -26,4 +31,66 @@ public interface KnnBelief<T> extends SensorBeliefModel<T> {
     KnnBelief<T> withK(int newK);
 
     KnnBelief<T> withAlphaAndK(double newAlpha, int newK);
+
+    /**
+     * Searches the neighbors of the points of a cross validation set for every k up to maxK, so
+     * the error of the copies of this model with other alphas, gammas or k can be computed
+     * without searching them again (see NeighborTable). Models which can not describe their
+     * neighbors return null, which is the default.
+     * @param crossValidation points whose neighbors are searched
+     * @param maxK greatest k of the models whose error is computed
+     * @return the table, or null
+     */
+    default NeighborTable neighborTable(List<? extends LabelledPoint<T>> crossValidation,
+                                        int maxK) {
+        return null;
+    }
+
+    /**
+     * Computes the mass functions of several sensor values. Models which can share the
+     * neighbor search between the values override this method, the default one calls toMass on
+     * each value.
+     * @param values sensor values
+     * @return the mass functions, in the order of the values
+     */
+    default MutableMass[] toMasses(List<? extends T> values) {
+        MutableMass[] masses = new MutableMass[values.size()];
+        for (int i = 0; i < masses.length; i++) {
+            masses[i] = toMass(values.get(i));
+        }
+        return masses;
+    }
+
+    /**
+     * Writes the mass function of a sensor value into target. Models which can combine their
+     * neighbors in place override this method, the default one copies the result of toMass.
+     */
+    @Override
+    default void toMassInto(T sensorValue, MutableMass target) {
+        InPlaceBeliefModel.copy(toMass(sensorValue), target);
+    }
+
+    /**
+     * Gives the pignistic decision for a sensor value: the state with the greatest pignistic
+     * probability (see Criteria.betP) in the mass function of the value, the first state of the
+     * frame on a tie. Models which can decide without the mass function override this method,
+     * the default one calls toMass.
+     * @param sensorValue sensor value
+     * @return the singleton of the chosen state
+     */
+    default StateSet decide(T sensorValue) {
+        MassFunction mass = toMass(sensorValue);
+        FrameOfDiscernment frame = getFrame();
+        StateSet decision = null;
+        double bestProbability = Double.NEGATIVE_INFINITY;
+        for (String state : frame.getStates()) {
+            StateSet stateSet = frame.toStateSet(state);
+            double probability = Criteria.betP(mass, stateSet);
+            if (probability > bestProbability) {
+                decision = stateSet;
+                bestProbability = probability;
+            }
+        }
+        return decision;
+    }
 }
@@ -2,24 +2,33 @@ package fr.inria.tacoma.knn.core;
 
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.knn.multidimensional.FeatureVector;
+import fr.inria.tacoma.knn.multidimensional.NeighborSearch;
+import fr.inria.tacoma.knn.multidimensional.PackedPoints;
+import fr.inria.tacoma.knn.multidimensional.ProjectionForest;
+import fr.inria.tacoma.knn.multidimensional.VectorKnnBelief;
+import fr.inria.tacoma.knn.multidimensional.VectorMetric;
 import fr.inria.tacoma.knn.unidimensional.DempsterDoubleKnn;
 import fr.inria.tacoma.knn.unidimensional.DoubleKnnBelief;
-import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.unidimensional.TwoClassDoubleKnn;
+import fr.inria.tacoma.knn.util.FocalBudget;
+import fr.inria.tacoma.knn.util.SupportCombinations;
 
+import java.util.AbstractMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.BiFunction;
 import java.util.function.Function;
 
 public abstract class KnnFactory<T> {
 
     private FrameOfDiscernment frame;
     private Function<List<MassFunction>, MassFunction> combination;
-    private BiFunction<T, T, Double> distance;
+    private Distance<T> distance;
+    private FocalBudget focalBudget;
 
     public KnnFactory(FrameOfDiscernment frame,
                       Function<List<MassFunction>, MassFunction> combination,
-                      BiFunction<T, T, Double> distance) {
+                      Distance<T> distance) {
         this.frame = frame;
         this.combination = combination;
         this.distance = distance;
@@ -42,11 +51,47 @@ public abstract class KnnFactory<T> {
         this.combination = combination;
     }
 
-    public BiFunction<T, T, Double> getDistance() {
+    /**
+     * Uses a combination of the registry of SupportCombinations.
+     * @param name name of the combination, such as "dempster" or "pcr6"
+     */
+    public void setCombination(String name) {
+        this.combination = SupportCombinations.forName(name);
+    }
+
+    public FocalBudget getFocalBudget() {
+        return focalBudget;
+    }
+
+    /**
+     * Bounds the number of focal elements of the combinations of the models created from now
+     * on. The result of a combination without closed form is summarized (see
+     * FocalBudget.wrap), so the rule is unchanged, while the closed forms of
+     * SupportCombinations, which give at most the singletons, one union and the full
+     * ignorance, are kept as they are. The budget reports the mass moved by its summaries.
+     * @param focalBudget the budget, null to combine without summary
+     */
+    public void setFocalBudget(FocalBudget focalBudget) {
+        this.focalBudget = focalBudget;
+    }
+
+    /**
+     * @return the combination given to the models: the combination of the factory, its result
+     * summarized within the focal budget when there is one and it has no closed form
+     */
+    protected Function<List<MassFunction>, MassFunction> getBudgetedCombination() {
+        if (focalBudget == null
+                || SupportCombinations.kindOf(combination) != SupportCombination.Kind.OTHER) {
+            return combination;
+        }
+        return focalBudget.wrap(combination);
+    }
+
+    public Distance<T> getDistance() {
         return distance;
     }
 
-    public void setDistance(BiFunction<T, T, Double> distance) {
+    public void setDistance(Distance<T> distance) {
         this.distance = distance;
     }
 
@@ -57,39 +102,131 @@ public abstract class KnnFactory<T> {
 
     /*********************************************************************************/
 
+    /**
+     * Creates a factory which works with any type of value. When the values are vector points
+     * (see VectorPoint) and the distance is an AxisBoundedDistance, the training set is indexed
+     * by a KdTree, which is built once per training set and distance and reused by the models
+     * of this training set (see IndexCache).
+     */
     public static <T> KnnFactory<T> getGenericFactory(FrameOfDiscernment frame,
-                                                      BiFunction<T, T, Double> distance) {
+                                                      Distance<T> distance) {
+
+        return new KnnFactory<T>(frame, SupportCombinations.DUBOIS_AND_PRADE, distance) {
+            private final IndexCache<T, KdTree<T>> indexes = new IndexCache<>();
 
-        return new KnnFactory<T>(frame, KnnUtils::optimizedDuboisAndPrade, distance) {
             @Override
             public KnnBelief<T> newKnnBelief(List<? extends LabelledPoint<T>> points,
                                              Map<String, Double> gammaProvider, int k, double alpha) {
-                return new GenericKnn<>(points, k, alpha, getFrame(), getCombination(),
-                        getDistance(), gammaProvider);
+                Distance<T> modelDistance = getDistance();
+                KdTree<T> index = indexes.get(points, getFrame(), modelDistance,
+                        training -> KdTree.tryBuild(training, modelDistance));
+                return new GenericKnn<>(points, k, alpha, getFrame(), getBudgetedCombination(),
+                        modelDistance, gammaProvider, index);
             }
         };
 
     }
 
+    /**
+     * Creates a factory for feature vectors. The training set is packed in a primitive array
+     * (see PackedPoints) and indexed for the exact search of the neighbors (see
+     * PackedPoints.exactSearch), which are built once per training set, frame and distance
+     * and reused by the models of this training set (see IndexCache).
+     */
+    public static KnnFactory<FeatureVector> getVectorFactory(FrameOfDiscernment frame,
+                                                             VectorMetric metric) {
+        return new KnnFactory<FeatureVector>(frame, SupportCombinations.DUBOIS_AND_PRADE,
+                metric) {
+            private final IndexCache<FeatureVector, Map.Entry<PackedPoints, NeighborSearch>>
+                    searches = new IndexCache<>();
+
+            @Override
+            public KnnBelief<FeatureVector> newKnnBelief(
+                    List<? extends LabelledPoint<FeatureVector>> points,
+                    Map<String, Double> gammaProvider, int k, double alpha) {
+                FrameOfDiscernment modelFrame = getFrame();
+                Distance<FeatureVector> modelDistance = getDistance();
+                Map.Entry<PackedPoints, NeighborSearch> search = searches.get(points,
+                        modelFrame, modelDistance, training -> {
+                            PackedPoints packed = new PackedPoints(modelFrame, training);
+                            return new AbstractMap.SimpleImmutableEntry<>(packed,
+                                    packed.exactSearch(VectorMetric.of(modelDistance)));
+                        });
+                return new VectorKnnBelief(search.getKey(), k, alpha, getBudgetedCombination(),
+                        modelDistance, gammaProvider, search.getValue());
+            }
+        };
+    }
+
+    /**
+     * Creates a factory for feature vectors whose neighbors are searched approximately by a
+     * forest of random projection trees (see ProjectionForest), which is built once per training
+     * set, frame and distance and reused by the models of this training set (see IndexCache).
+     * @param searchFactor number of points compared to a value for each neighbor wanted. The
+     *                     greater, the more exact and the slower the models.
+     */
+    public static KnnFactory<FeatureVector> getApproximateVectorFactory(
+            FrameOfDiscernment frame, VectorMetric metric, int searchFactor) {
+        return new KnnFactory<FeatureVector>(frame, SupportCombinations.DUBOIS_AND_PRADE,
+                metric) {
+            private final IndexCache<FeatureVector, ProjectionForest> forests =
+                    new IndexCache<>();
+
+            @Override
+            public KnnBelief<FeatureVector> newKnnBelief(
+                    List<? extends LabelledPoint<FeatureVector>> points,
+                    Map<String, Double> gammaProvider, int k, double alpha) {
+                FrameOfDiscernment modelFrame = getFrame();
+                Distance<FeatureVector> modelDistance = getDistance();
+                ProjectionForest forest = forests.get(points, modelFrame, modelDistance,
+                        training -> new ProjectionForest(new PackedPoints(modelFrame, training),
+                                VectorMetric.of(modelDistance)).withSearchFactor(searchFactor));
+                return new VectorKnnBelief(forest.getPoints(), k, alpha,
+                        getBudgetedCombination(), modelDistance, gammaProvider, forest);
+            }
+        };
+    }
+
     public static KnnFactory<Double> getDoubleKnnFactory(FrameOfDiscernment frame) {
-        return new KnnFactory<Double>(frame, KnnUtils::optimizedDuboisAndPrade,
-                (a,b) -> Math.abs(a - b)) {
+        return new KnnFactory<Double>(frame, SupportCombinations.DUBOIS_AND_PRADE,
+                ScalarDistance.ABSOLUTE) {
             @Override
             public KnnBelief<Double> newKnnBelief(List<? extends LabelledPoint<Double>> points,
                                                   Map<String, Double> gammaProvider, int k, double alpha) {
-                return new DoubleKnnBelief((List<LabelledPoint<Double>>) points, k,
-                        alpha, getFrame(), getCombination(), getDistance(), gammaProvider);
+                Function<List<MassFunction>, MassFunction> combination = getBudgetedCombination();
+                if (getFrame().card() == 2 && TwoClassDoubleKnn.supports(combination)) {
+                    return new TwoClassDoubleKnn(points, k, alpha, getFrame(),
+                            (SupportCombination) combination, getDistance(), gammaProvider);
+                }
+                return new DoubleKnnBelief(points, k,
+                        alpha, getFrame(), combination, getDistance(), gammaProvider);
             }
         };
     }
 
+    /**
+     * Creates a factory for double values using a combination of the registry of
+     * SupportCombinations.
+     * @param combination name of the combination, such as "dempster" or "pcr6"
+     */
+    public static KnnFactory<Double> getDoubleKnnFactory(FrameOfDiscernment frame,
+                                                         String combination) {
+        KnnFactory<Double> factory = getDoubleKnnFactory(frame);
+        factory.setCombination(combination);
+        return factory;
+    }
+
     public static KnnFactory<Double> getDoubleDempsterFactory(FrameOfDiscernment frame) {
-        return new KnnFactory<Double>(frame, KnnUtils::optimizedDuboisAndPrade,
-                (a,b) -> Math.abs(a - b)) {
+        return new KnnFactory<Double>(frame, SupportCombinations.DUBOIS_AND_PRADE,
+                ScalarDistance.ABSOLUTE) {
             @Override
             public KnnBelief<Double> newKnnBelief(List<? extends LabelledPoint<Double>> points,
                                                   Map<String, Double> gammaProvider, int k, double alpha) {
-                return new DempsterDoubleKnn((List<LabelledPoint<Double>>) points, k,
+                if (getFrame().card() == 2) {
+                    return new TwoClassDoubleKnn(points, k, alpha, getFrame(),
+                            SupportCombinations.DEMPSTER, getDistance(), gammaProvider);
+                }
+                return new DempsterDoubleKnn(points, k,
                         alpha, getFrame(), getDistance(), gammaProvider);
             }
         };
@@ -0,0 +1,111 @@
+package fr.inria.tacoma.knn.core;
+
+/**
+ * Bounded max heap of the nearest points found so far during a neighbor search. Points are
+ * identified by their index in the training set, and points at the same distance are ordered by
+ * index, so a search gives the same neighbors as a stable sort of the training set by distance.
+ */
+public final class NeighborHeap {
+    private final int capacity;
+    private final int[] indices;
+    private final double[] distances;
+    private int size;
+
+    /**
+     * @param capacity number of neighbors to keep
+     */
+    public NeighborHeap(int capacity) {
+        this.capacity = capacity;
+        this.indices = new int[capacity];
+        this.distances = new double[capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Tells if a point at the given distance could be one of the neighbors.
+     */
+    public boolean mayAccept(double distance) {
+        return size < capacity || distance <= distances[0];
+    }
+
+    /**
+     * Adds a point, which replaces the farthest neighbor if the heap is full and the point is
+     * closer.
+     */
+    public void offer(int index, double distance) {
+        if (size < capacity) {
+            indices[size] = index;
+            distances[size] = distance;
+            siftUp(size++);
+        }
+        else if (capacity > 0 && isFarther(indices[0], distances[0], index, distance)) {
+            indices[0] = index;
+            distances[0] = distance;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Removes the farthest neighbor, so emptying the heap gives the neighbors from the farthest
+     * to the nearest.
+     * @return index of the removed neighbor
+     */
+    public int removeFarthest() {
+        int farthest = indices[0];
+        size--;
+        indices[0] = indices[size];
+        distances[0] = distances[size];
+        siftDown(0);
+        return farthest;
+    }
+
+    private static boolean isFarther(int index1, double distance1, int index2,
+                                     double distance2) {
+        return distance1 > distance2 || distance1 == distance2 && index1 > index2;
+    }
+
+    private void siftUp(int node) {
+        while (node > 0) {
+            int parent = (node - 1) / 2;
+            if (!isFarther(indices[node], distances[node], indices[parent],
+                    distances[parent])) {
+                return;
+            }
+            swap(node, parent);
+            node = parent;
+        }
+    }
+
+    private void siftDown(int node) {
+        while (true) {
+            int farthest = node;
+            for (int child = 2 * node + 1; child <= 2 * node + 2 && child < size; child++) {
+                if (isFarther(indices[child], distances[child], indices[farthest],
+                        distances[farthest])) {
+                    farthest = child;
+                }
+            }
+            if (farthest == node) {
+                return;
+            }
+            swap(node, farthest);
+            node = farthest;
+        }
+    }
+
+    private void swap(int node1, int node2) {
+        int index = indices[node1];
+        indices[node1] = indices[node2];
+        indices[node2] = index;
+        double distance = distances[node1];
+        distances[node1] = distances[node2];
+        distances[node2] = distance;
+    }
+}
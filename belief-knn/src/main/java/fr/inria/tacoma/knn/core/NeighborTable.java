@@ -0,0 +1,424 @@
+package fr.inria.tacoma.knn.core;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.bft.util.Mass;
+import fr.inria.tacoma.knn.core.SupportCombination.Kind;
+import fr.inria.tacoma.knn.unidimensional.SortedPoints;
+import fr.inria.tacoma.knn.util.LabelSets;
+import fr.inria.tacoma.knn.util.SupportCombinations;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Neighbors of the points of a cross validation set, searched once for every k up to a maximal
+ * one. A search of hyper parameters only changes alpha, the gammas and k of a model while the
+ * training and cross validation sets stay the same, so the error of each candidate (see
+ * KnnUtils.error) is computed from the table without creating a model nor searching any
+ * neighbor again.
+ *
+ * For each cross validation point, the table holds the distances and the label ordinals (see
+ * LabelSets) of its neighbors, in the order in which the model takes them as k grows. Tables
+ * are created by the models (see KnnBelief.neighborTable) and may be shared between threads.
+ */
+public final class NeighborTable {
+
+    private final FrameOfDiscernment frame;
+    private final Function<List<MassFunction>, MassFunction> combination;
+    private final int maxK;
+    /**
+     * Number of neighbors of a model for k = 0, the one dimensional engines taking k + 1.
+     */
+    private final int extraNeighbors;
+    private final int width;
+    private final double[] distances;
+    private final int[] labels;
+    private final int[] counts;
+    private final MassFunction[] idealMasses;
+    /**
+     * Label ordinal of each cross validation point, -1 when its state set is not a singleton.
+     */
+    private final int[] expectedLabels;
+
+    private NeighborTable(FrameOfDiscernment frame,
+                          Function<List<MassFunction>, MassFunction> combination,
+                          List<? extends LabelledPoint<?>> crossValidation, int maxK,
+                          int extraNeighbors) {
+        if (maxK < 0) {
+            throw new IllegalArgumentException("maxK must not be negative, not " + maxK);
+        }
+        this.frame = frame;
+        this.combination = combination;
+        this.maxK = maxK;
+        this.extraNeighbors = extraNeighbors;
+        this.width = maxK + extraNeighbors;
+        this.distances = new double[crossValidation.size() * width];
+        this.labels = new int[crossValidation.size() * width];
+        this.counts = new int[crossValidation.size()];
+
+        // the ideal mass function of a point has all the mass on its label
+        this.idealMasses = new MassFunction[crossValidation.size()];
+        this.expectedLabels = new int[crossValidation.size()];
+        Map<StateSet, MassFunction> idealByStateSet = new HashMap<>();
+        for (int row = 0; row < idealMasses.length; row++) {
+            StateSet expected = crossValidation.get(row).getStateSet();
+            idealMasses[row] = idealByStateSet.computeIfAbsent(expected,
+                    stateSet -> frame.newMass().set(stateSet, 1.0).putRemainingOnIgnorance());
+            expectedLabels[row] = LabelSets.of(frame).ordinal(expected);
+        }
+    }
+
+    /**
+     * Creates the table of the one dimensional engines, whose neighbors are the k + 1 points of
+     * the window of the value (see SortedPoints.neighborhoodStart).
+     * @param points training points of the model
+     * @param distance distance of the model
+     * @param crossValidation points whose neighbors are searched
+     * @param maxK greatest k of the models whose error is computed
+     * @param combination combination of the model
+     */
+    public static NeighborTable ofWindows(
+            SortedPoints points, ScalarDistance distance,
+            List<? extends LabelledPoint<Double>> crossValidation, int maxK,
+            Function<List<MassFunction>, MassFunction> combination) {
+        NeighborTable table = new NeighborTable(points.getFrame(), combination, crossValidation,
+                maxK, 1);
+        for (int row = 0; row < crossValidation.size(); row++) {
+            double value = crossValidation.get(row).getValue();
+            int[] order = points.windowOrder(value, table.width);
+            int offset = row * table.width;
+            for (int i = 0; i < order.length; i++) {
+                table.distances[offset + i] = distance.between(value, points.value(order[i]));
+                table.labels[offset + i] = points.labelOrdinal(order[i]);
+            }
+            table.counts[row] = order.length;
+        }
+        return table;
+    }
+
+    /**
+     * Creates the table of the models whose neighbors are the k closest training points. The
+     * distances between each cross validation point and every training point are computed, as
+     * a row of a distance matrix, and the closest ones are kept, the first training point on a
+     * tie.
+     * @param frame frame of the model
+     * @param points training points of the model
+     * @param distance distance of the model
+     * @param crossValidation points whose neighbors are searched
+     * @param maxK greatest k of the models whose error is computed
+     * @param combination combination of the model
+     */
+    public static <T> NeighborTable ofDistances(
+            FrameOfDiscernment frame, List<? extends LabelledPoint<T>> points,
+            Distance<T> distance, List<? extends LabelledPoint<T>> crossValidation, int maxK,
+            Function<List<MassFunction>, MassFunction> combination) {
+        NeighborTable table = new NeighborTable(frame, combination, crossValidation, maxK, 0);
+        LabelSets labelSets = LabelSets.of(frame);
+        int[] pointLabels = new int[points.size()];
+        for (int i = 0; i < pointLabels.length; i++) {
+            String label = points.get(i).getLabel();
+            pointLabels[i] = labelSets.ordinal(label);
+            if (pointLabels[i] < 0) {
+                throw new IllegalArgumentException("label " + label + " is not a state of "
+                        + "the frame");
+            }
+        }
+        double[] row = new double[points.size()];
+        Integer[] order = new Integer[points.size()];
+        for (int r = 0; r < crossValidation.size(); r++) {
+            T value = crossValidation.get(r).getValue();
+            for (int i = 0; i < row.length; i++) {
+                row[i] = distance.between(value, points.get(i).getValue());
+                order[i] = i;
+            }
+            // the sort is stable, so equal distances keep the order of the training points
+            Arrays.sort(order, Comparator.comparingDouble(i -> row[i]));
+            int count = Math.min(table.width, order.length);
+            int offset = r * table.width;
+            for (int i = 0; i < count; i++) {
+                table.distances[offset + i] = row[order[i]];
+                table.labels[offset + i] = pointLabels[order[i]];
+            }
+            table.counts[r] = count;
+        }
+        return table;
+    }
+
+    /**
+     * @return the greatest k of the models whose error can be computed
+     */
+    public int getMaxK() {
+        return maxK;
+    }
+
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * Computes the error of the model with the given parameters, the same as KnnUtils.error up
+     * to the rounding errors.
+     * @param k number of neighbors, at most getMaxK()
+     * @param alpha maximal support of a neighbor
+     * @param gammas gamma of each label
+     * @return the error
+     */
+    public double error(int k, double alpha, Map<String, Double> gammas) {
+        double[] alphas = new double[frame.card()];
+        Arrays.fill(alphas, alpha);
+        return error(k, alphas, byOrdinal(gammas));
+    }
+
+    /**
+     * Same as error(int, double, Map), with an alpha per label.
+     * @param alphas maximal support of a neighbor of each label
+     */
+    public double error(int k, Map<String, Double> alphas, Map<String, Double> gammas) {
+        return error(k, byOrdinal(alphas), byOrdinal(gammas));
+    }
+
+    /**
+     * Same as error(int, double, Map), with an alpha per label, the values of each label being
+     * given by label ordinal (see byOrdinal).
+     */
+    public double error(int k, double[] alphas, double[] gammas) {
+        if (k < 0 || k > maxK) {
+            throw new IllegalArgumentException("k must be between 0 and " + maxK + ", not " + k);
+        }
+        int labelCount = frame.card();
+        double[] inverseGammas = new double[labelCount];
+        for (int label = 0; label < labelCount; label++) {
+            inverseGammas[label] = 1.0 / gammas[label];
+        }
+        double[] ignorances = new double[labelCount];
+        MutableMass mass = frame.newMass();
+        int neighborCount = k + extraNeighbors;
+        double sum = 0;
+        for (int row = 0; row < counts.length; row++) {
+            int offset = row * width;
+            int end = offset + Math.min(neighborCount, counts[row]);
+            if (combination instanceof SupportCombination) {
+                SupportCombination supports = (SupportCombination) combination;
+                Arrays.fill(ignorances, 1.0);
+                for (int i = offset; i < end; i++) {
+                    int label = labels[i];
+                    ignorances[label] = supports.merge(ignorances[label],
+                            alphas[label] * Math.exp(-distances[i] * inverseGammas[label]));
+                }
+                supports.combineInto(frame, ignorances, mass);
+            }
+            else {
+                List<MassFunction> masses = new ArrayList<>(end - offset);
+                for (int i = offset; i < end; i++) {
+                    int label = labels[i];
+                    masses.add(frame.newMass()
+                            .set(LabelSets.of(frame).singleton(label), alphas[label]
+                                    * Math.exp(-distances[i] * inverseGammas[label]))
+                            .putRemainingOnIgnorance());
+                }
+                InPlaceBeliefModel.copy(combination.apply(masses), mass);
+            }
+            double distance = Mass.jousselmeDistance(mass, idealMasses[row]);
+            sum += distance * distance;
+        }
+        return counts.length == 0 ? 0 : sum / counts.length;
+    }
+
+    /**
+     * Tells if errorAndGradient can be used: the combination is Dempster's rule or its
+     * consonant form (see SupportCombinations) and every cross validation point is labelled
+     * with a single state.
+     */
+    public boolean hasGradient() {
+        Kind kind = SupportCombinations.kindOf(combination);
+        if (kind != Kind.DEMPSTER && kind != Kind.CONSONANT_DEMPSTER) {
+            return false;
+        }
+        for (int expected : expectedLabels) {
+            if (expected < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the error as error(int, double[], double[]) along with its gradient, in a single
+     * pass over the neighbors. The combination and the Jousselme distance to the ideal mass
+     * function are derived in closed form, through the logarithm of the merged ignorance of
+     * each label, so the gradient costs no more exponential than the error.
+     * @param gradient receives the derivatives of the error by the alpha of each label ordinal,
+     *                 followed by the derivatives by the gamma of each label ordinal
+     * @return the error
+     * @throws IllegalArgumentException if the table has no gradient (see hasGradient)
+     */
+    public double errorAndGradient(int k, double[] alphas, double[] gammas, double[] gradient) {
+        if (k < 0 || k > maxK) {
+            throw new IllegalArgumentException("k must be between 0 and " + maxK + ", not " + k);
+        }
+        if (!hasGradient()) {
+            throw new IllegalArgumentException("no gradient for the combination " + combination);
+        }
+        boolean consonant = SupportCombinations.kindOf(combination) == Kind.CONSONANT_DEMPSTER;
+        int labelCount = frame.card();
+        double[] inverseGammas = new double[labelCount];
+        for (int label = 0; label < labelCount; label++) {
+            inverseGammas[label] = 1.0 / gammas[label];
+        }
+        // per label: merged ignorance, derivatives of its logarithm by alpha and by gamma
+        // (the latter without its factor 1 / gamma^2), derivative of the squared distance by
+        // this logarithm
+        double[] ignorances = new double[labelCount];
+        double[] alphaTerms = new double[labelCount];
+        double[] gammaTerms = new double[labelCount];
+        double[] logTerms = new double[labelCount];
+        int[] order = new int[labelCount];
+        Arrays.fill(gradient, 0, 2 * labelCount, 0.0);
+        int neighborCount = k + extraNeighbors;
+        double sum = 0;
+        for (int row = 0; row < counts.length; row++) {
+            Arrays.fill(ignorances, 1.0);
+            Arrays.fill(alphaTerms, 0.0);
+            Arrays.fill(gammaTerms, 0.0);
+            int offset = row * width;
+            int end = offset + Math.min(neighborCount, counts[row]);
+            for (int i = offset; i < end; i++) {
+                int label = labels[i];
+                double decay = Math.exp(-distances[i] * inverseGammas[label]);
+                double support = alphas[label] * decay;
+                ignorances[label] *= 1 - support;
+                alphaTerms[label] -= decay / (1 - support);
+                gammaTerms[label] -= support * distances[i] / (1 - support);
+            }
+            sum += consonant
+                    ? consonantDistance(ignorances, expectedLabels[row], logTerms, order)
+                    : dempsterDistance(ignorances, expectedLabels[row], logTerms);
+            for (int label = 0; label < labelCount; label++) {
+                gradient[label] += logTerms[label] * alphaTerms[label];
+                gradient[labelCount + label] += logTerms[label] * gammaTerms[label]
+                        * inverseGammas[label] * inverseGammas[label];
+            }
+        }
+        if (counts.length == 0) {
+            return 0;
+        }
+        for (int i = 0; i < 2 * labelCount; i++) {
+            gradient[i] /= counts.length;
+        }
+        return sum / counts.length;
+    }
+
+    /**
+     * Squared Jousselme distance between Dempster's combination of the supports and the
+     * ideal mass function. With r = 1 / q - 1 for the merged ignorance q of each label and
+     * S = 1 + sum(r), the combination gives r / S to each label and 1 / S to the full
+     * ignorance.
+     * @param ignorances merged ignorance of each label
+     * @param expected label of the ideal mass function
+     * @param logTerms receives the derivative of the squared distance by the logarithm of the
+     *                 ignorance of each label
+     * @return the squared distance
+     */
+    private static double dempsterDistance(double[] ignorances, int expected,
+                                           double[] logTerms) {
+        int labelCount = ignorances.length;
+        double total = 1;
+        for (double ignorance : ignorances) {
+            total += 1 / ignorance - 1;
+        }
+        double ignoranceMass = 1 / total;
+        // the masses of the labels sum to 1 - ignoranceMass, which simplifies the cross terms
+        // between the labels and the full ignorance
+        double ignoranceTerm = ignoranceMass * ignoranceMass * (1 - 2.0 / labelCount);
+        double squares = 0;
+        double weighted = ignoranceTerm;
+        for (int label = 0; label < labelCount; label++) {
+            double mass = (1 / ignorances[label] - 1) / total;
+            double difference = label == expected ? mass - 1 : mass;
+            squares += difference * difference;
+            weighted += difference * mass;
+        }
+        for (int label = 0; label < labelCount; label++) {
+            double mass = (1 / ignorances[label] - 1) / total;
+            double difference = label == expected ? mass - 1 : mass;
+            logTerms[label] = -(difference - weighted) / (total * ignorances[label]);
+        }
+        return (squares + ignoranceTerm) / 2;
+    }
+
+    /**
+     * Squared Jousselme distance between the consonant form of Dempster's combination of the
+     * supports (see ConsonantMass.ofSupports) and the ideal mass function. The possibility of
+     * a label is the lowest ignorance divided by its own, the i-th focal set holds the i most
+     * possible labels and gets the difference between the i-th and the next possibility.
+     * @param ignorances merged ignorance of each label
+     * @param expected label of the ideal mass function
+     * @param logTerms receives the derivative of the squared distance by the logarithm of the
+     *                 ignorance of each label
+     * @param order buffer receiving the labels by decreasing possibility
+     * @return the squared distance
+     */
+    private static double consonantDistance(double[] ignorances, int expected,
+                                            double[] logTerms, int[] order) {
+        int labelCount = ignorances.length;
+        double lowest = Double.POSITIVE_INFINITY;
+        for (double ignorance : ignorances) {
+            lowest = Math.min(lowest, ignorance);
+        }
+        // insertion sort, in the same order as ConsonantMass
+        for (int label = 0; label < labelCount; label++) {
+            int i = label;
+            while (i > 0 && lowest / ignorances[order[i - 1]] < lowest / ignorances[label]) {
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = label;
+        }
+        int expectedRank = 0;
+        while (order[expectedRank] != expected) {
+            expectedRank++;
+        }
+
+        // with the sizes i + 1 and j + 1 of two focal sets, their similarity is
+        // (min(i, j) + 1) / (max(i, j) + 1), and the expected singleton is in the focal sets
+        // from expectedRank on
+        double[] possibilities = new double[labelCount + 1];
+        for (int i = 0; i < labelCount; i++) {
+            possibilities[i] = lowest / ignorances[order[i]];
+        }
+        double distance = 1;
+        double previousTerm = 0;
+        double lowestTerm = 0;
+        for (int i = 0; i < labelCount; i++) {
+            double similarity = i >= expectedRank ? 1.0 / (i + 1) : 0;
+            // derivative of the squared distance by the mass of the i-th focal set
+            double term = -similarity;
+            for (int j = 0; j < labelCount; j++) {
+                term += (possibilities[j] - possibilities[j + 1])
+                        * (Math.min(i, j) + 1) / (Math.max(i, j) + 1);
+            }
+            distance += (possibilities[i] - possibilities[i + 1]) * (term - similarity);
+            // the i-th possibility adds to the i-th mass and subtracts from the previous one
+            double possibilityTerm = possibilities[i] * (term - previousTerm);
+            if (i > 0) {
+                logTerms[order[i]] = -possibilityTerm;
+                lowestTerm += possibilityTerm;
+            }
+            previousTerm = term;
+        }
+        // the most possible label has the lowest ignorance, which scales every possibility
+        logTerms[order[0]] = lowestTerm;
+        return distance / 2;
+    }
+
+    /**
+     * Resolves a value per label (such as the gammas) into an array indexed by label ordinal.
+     * @return the values indexed by label ordinal, NaN for a label without value
+     */
+    public double[] byOrdinal(Map<String, Double> valuesByLabel) {
+        return LabelSets.of(frame).byOrdinal(valuesByLabel);
+    }
+}
@@ -0,0 +1,196 @@
+package fr.inria.tacoma.knn.core;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Static KD-tree over packed coordinates, the coordinates of the point i starting at
+ * i * dimension. The tree only orders the indices of the points: the distances are given by the
+ * caller, so it can index any storage of the points (see KdTree and PackedPoints). The tree is
+ * immutable once built and can be shared by every copy of a model.
+ *
+ * The coordinates are only used to skip parts of the points, which is exact as long as the
+ * distance between two points is never lower than their difference on an axis times the factor
+ * of this axis (see AxisBoundedDistance).
+ */
+public final class PackedKdTree {
+
+    /**
+     * Maximal number of points in a leaf, below which points are compared one by one.
+     */
+    private static final int LEAF_SIZE = 8;
+
+    /**
+     * Maximal number of coordinates of a point.
+     */
+    public static final int MAX_DIMENSION = Byte.MAX_VALUE;
+
+    private final int dimension;
+    private final double[] coordinates;
+    /**
+     * Lower bound of the distance per unit of difference on each axis, slightly reduced so the
+     * rounding of the distances never skips a point at the bound.
+     */
+    private final double[] axisFactors;
+    /**
+     * Indices of the points, ordered so each node of the tree is a range of this array with the
+     * median point in the middle.
+     */
+    private final int[] order;
+    /**
+     * Splitting axis of the node whose median is at the same index in order.
+     */
+    private final byte[] axes;
+
+    /**
+     * @param coordinates coordinates of the points, point after point, which must not be
+     *                    modified while the tree is used
+     * @param dimension number of coordinates of a point, between 1 and MAX_DIMENSION
+     * @param axisFactors positive factor of each axis, such that the distance between two
+     *                    points is never lower than their difference on an axis times its factor
+     */
+    public PackedKdTree(double[] coordinates, int dimension, double[] axisFactors) {
+        if (dimension < 1 || dimension > MAX_DIMENSION) {
+            throw new IllegalArgumentException("the dimension must be between 1 and "
+                    + MAX_DIMENSION + ", not " + dimension);
+        }
+        if (axisFactors.length != dimension) {
+            throw new IllegalArgumentException("expected " + dimension + " axis factors but got "
+                    + axisFactors.length);
+        }
+        this.dimension = dimension;
+        this.coordinates = coordinates;
+        this.axisFactors = new double[dimension];
+        for (int axis = 0; axis < dimension; axis++) {
+            if (!(axisFactors[axis] > 0) || Double.isInfinite(axisFactors[axis])) {
+                throw new IllegalArgumentException("axis factors must be positive: "
+                        + Arrays.toString(axisFactors));
+            }
+            this.axisFactors[axis] = axisFactors[axis] * (1 - 1e-12);
+        }
+        this.order = new int[coordinates.length / dimension];
+        this.axes = new byte[order.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(0, order.length);
+    }
+
+    public int size() {
+        return order.length;
+    }
+
+    private void build(int start, int end) {
+        if (end - start <= LEAF_SIZE) {
+            return;
+        }
+        int axis = widestAxis(start, end);
+        int middle = (start + end) >>> 1;
+        select(start, end - 1, middle, axis);
+        axes[middle] = (byte) axis;
+        build(start, middle);
+        build(middle + 1, end);
+    }
+
+    private int widestAxis(int start, int end) {
+        int widest = 0;
+        double widestSpread = -1;
+        for (int axis = 0; axis < dimension; axis++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                double coordinate = coordinate(order[i], axis);
+                min = Math.min(min, coordinate);
+                max = Math.max(max, coordinate);
+            }
+            // the spread is scaled as the distance, so a weighted axis is split as it is compared
+            double spread = (max - min) * axisFactors[axis];
+            if (spread > widestSpread) {
+                widestSpread = spread;
+                widest = axis;
+            }
+        }
+        return widest;
+    }
+
+    /**
+     * Moves the points between low and high (included) so the point at index nth has the
+     * nth coordinate on the axis, lower coordinates before it and greater ones after it.
+     */
+    private void select(int low, int high, int nth, int axis) {
+        while (low < high) {
+            double pivot = coordinate(order[(low + high) >>> 1], axis);
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (coordinate(order[i], axis) < pivot) {
+                    i++;
+                }
+                while (coordinate(order[j], axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j) {
+                high = j;
+            }
+            else if (nth >= i) {
+                low = i;
+            }
+            else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int point, int axis) {
+        return coordinates[point * dimension + axis];
+    }
+
+    /**
+     * Offers to a heap the points which may be among the nearest neighbors of a value, so the
+     * heap ends with the same neighbors as if every point had been offered.
+     * @param query coordinates of the value
+     * @param distance distance from the value to the point of the given index
+     * @param neighbors heap receiving the points
+     */
+    public void search(double[] query, IntToDoubleFunction distance, NeighborHeap neighbors) {
+        if (neighbors.capacity() > 0) {
+            search(query, distance, 0, order.length, neighbors);
+        }
+    }
+
+    private void search(double[] query, IntToDoubleFunction distance, int start, int end,
+                        NeighborHeap neighbors) {
+        if (end - start <= LEAF_SIZE) {
+            for (int i = start; i < end; i++) {
+                neighbors.offer(order[i], distance.applyAsDouble(order[i]));
+            }
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        int axis = axes[middle];
+        double gap = (query[axis] - coordinate(order[middle], axis)) * axisFactors[axis];
+        neighbors.offer(order[middle], distance.applyAsDouble(order[middle]));
+
+        // visit the side of the value first, then the other side if it may hold closer points
+        if (gap < 0) {
+            search(query, distance, start, middle, neighbors);
+            if (neighbors.mayAccept(-gap)) {
+                search(query, distance, middle + 1, end, neighbors);
+            }
+        }
+        else {
+            search(query, distance, middle + 1, end, neighbors);
+            if (neighbors.mayAccept(gap)) {
+                search(query, distance, start, middle, neighbors);
+            }
+        }
+    }
+}
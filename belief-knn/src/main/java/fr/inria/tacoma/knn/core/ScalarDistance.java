@@ -0,0 +1,32 @@
+package fr.inria.tacoma.knn.core;
+
+/**
+ * Distance between two scalar sensor values, taking and returning primitives. The one
+ * dimensional engines only use this specialization, so the distance is never boxed.
+ */
+@FunctionalInterface
+public interface ScalarDistance extends Distance<Double> {
+
+    /**
+     * Absolute value of the difference, the usual distance between two sensor values.
+     */
+    ScalarDistance ABSOLUTE = (value1, value2) -> Math.abs(value1 - value2);
+
+    double between(double value1, double value2);
+
+    @Override
+    default double between(Double value1, Double value2) {
+        return between(value1.doubleValue(), value2.doubleValue());
+    }
+
+    /**
+     * Gives a scalar distance computing the same distance as the given one. The distance is
+     * returned as is when it already is a scalar distance.
+     */
+    static ScalarDistance of(Distance<Double> distance) {
+        if (distance instanceof ScalarDistance) {
+            return (ScalarDistance) distance;
+        }
+        return (value1, value2) -> distance.between(value1, value2);
+    }
+}
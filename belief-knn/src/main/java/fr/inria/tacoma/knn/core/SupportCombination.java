@@ -0,0 +1,112 @@
+package fr.inria.tacoma.knn.core;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.util.LabelSets;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Combination of simple support functions on the states of a frame, such as the masses given by
+ * the neighbors of a value. The supports on the same state are first merged (see merge), so
+ * they are only known by the merged mass on the full ignorance of each state.
+ *
+ * The engines recognize this kind of combination and give it the products directly, without
+ * creating a mass function per neighbor. It can still be used as any combination of a list of
+ * mass functions.
+ */
+@FunctionalInterface
+public interface SupportCombination extends Function<List<MassFunction>, MassFunction> {
+
+    /**
+     * Rule computed by a combination, which lets the engines use their closed form of this rule
+     * whatever the object giving it, such as a wrapper (see getKind).
+     */
+    enum Kind {
+        DEMPSTER, CONSONANT_DEMPSTER, DUBOIS_AND_PRADE, YAGER, PCR6, CAUTIOUS,
+        /**
+         * Any other rule, which the engines only know through combine.
+         */
+        OTHER
+    }
+
+    /**
+     * @return the rule computed by this combination, OTHER by default. A combination must only
+     * report a rule of SupportCombinations if it gives the same results.
+     */
+    default Kind getKind() {
+        return Kind.OTHER;
+    }
+
+    /**
+     * Combines the support functions.
+     * @param frame frame of the supports
+     * @param ignorances for each state ordinal (see LabelSets), the merged mass on the full
+     *                   ignorance of the supports on this state, 1 when there is none.
+     *                   Only the first frame.card() values are read.
+     * @return the combined mass function
+     */
+    MutableMass combine(FrameOfDiscernment frame, double[] ignorances);
+
+    /**
+     * Combines the support functions into a given mass function, replacing its content (see
+     * InPlaceBeliefModel). The default implementation copies the result of combine.
+     */
+    default void combineInto(FrameOfDiscernment frame, double[] ignorances, MutableMass target) {
+        InPlaceBeliefModel.copy(combine(frame, ignorances), target);
+    }
+
+    /**
+     * Merges a support with the previous supports on the same state. The default is Dempster's
+     * rule, which multiplies the masses on the full ignorance.
+     * @param ignorance merged mass on the full ignorance of the previous supports, 1 when there
+     *                  is none
+     * @param support mass of the new support on its state
+     * @return the merged mass on the full ignorance
+     */
+    default double merge(double ignorance, double support) {
+        return ignorance * (1 - support);
+    }
+
+    /**
+     * Combines mass functions which must be simple support functions on singletons.
+     */
+    @Override
+    default MassFunction apply(List<MassFunction> masses) {
+        if (masses.isEmpty()) {
+            throw new IllegalArgumentException("no mass function to combine");
+        }
+        FrameOfDiscernment frame = null;
+        LabelSets labelSets = null;
+        double[] ignorances = null;
+        for (MassFunction mass : masses) {
+            Set<StateSet> focalSets = mass.getFocalStateSets();
+            for (StateSet stateSet : focalSets) {
+                if (frame == null) {
+                    frame = stateSet.getFrame();
+                    labelSets = LabelSets.of(frame);
+                    ignorances = new double[frame.card()];
+                    Arrays.fill(ignorances, 1.0);
+                }
+                if (stateSet.equals(frame.fullIgnoranceSet())) {
+                    continue;
+                }
+                int ordinal = labelSets.ordinal(stateSet);
+                if (ordinal < 0 || focalSets.size() > 2) {
+                    throw new IllegalArgumentException(mass + " is not a simple support "
+                            + "function on a singleton");
+                }
+                ignorances[ordinal] = merge(ignorances[ordinal], mass.get(stateSet));
+            }
+        }
+        if (frame == null) {
+            throw new IllegalArgumentException("the mass functions have no focal element");
+        }
+        return combine(frame, ignorances);
+    }
+}
@@ -0,0 +1,20 @@
+package fr.inria.tacoma.knn.core;
+
+/**
+ * A point with coordinates, such as a 2D coordinate. Values of this type can be indexed by a
+ * KdTree, provided the distance between two points is declared never lower than their
+ * difference on any axis (see AxisBoundedDistance).
+ */
+public interface VectorPoint {
+
+    /**
+     * @return number of coordinates of the point
+     */
+    int dimension();
+
+    /**
+     * @param axis index of the coordinate, between 0 and dimension() - 1
+     * @return the coordinate of the point on the given axis
+     */
+    double coordinate(int axis);
+}
@@ -1,13 +1,15 @@
 package fr.inria.tacoma.knn.experimental;
 
-import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
 import fr.inria.tacoma.knn.unidimensional.DempsterAlphaDoubleKnn;
-import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.unidimensional.SortedPoints;
+import fr.inria.tacoma.knn.util.Objective;
+import fr.inria.tacoma.knn.util.Optimizer;
+import fr.inria.tacoma.knn.util.ProjectedLbfgs;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class GradientDescentAlphas {
 
@@ -19,19 +21,24 @@ public class GradientDescentAlphas {
 
     private SortedMap<String, Double> alphaProvider;
     private final KnnFactory<Double> factory;
-    private final List<LabelledPoint<Double>> trainingSet;
+    private final SortedPoints trainingSet;
     private final List<LabelledPoint<Double>> crossValidation;
     private final SortedSet<String> states;
     private final Map<String, Double> stdDevs;
     private int k;
-    public double step = 100;
+    /**
+     * Neighbors of the cross validation points.
+     */
+    private final NeighborTable table;
+    private Optimizer optimizer = new ProjectedLbfgs(GradientDescentGamma.LBFGS_MEMORY,
+            STOP_CRITERION);
 
     public GradientDescentAlphas(KnnFactory<Double> factory,
                                  List<LabelledPoint<Double>> trainingSet,
                                  List<LabelledPoint<Double>> crossValidation,
                                  Map<String, Double> stdDevs, int k) {
         this.factory = factory;
-        this.trainingSet = trainingSet;
+        this.trainingSet = new SortedPoints(factory.getFrame(), trainingSet);
         this.crossValidation = crossValidation;
         this.alphaProvider = new TreeMap<>();
         this.states = new TreeSet<>(factory.getFrame().getStates());
@@ -40,91 +47,75 @@ public class GradientDescentAlphas {
         }
         this.k = k;
         this.stdDevs = stdDevs;
+        this.table = new DempsterAlphaDoubleKnn(this.trainingSet, k, alphaProvider,
+                factory.getDistance(), stdDevs).neighborTable(crossValidation, k);
     }
 
-    private double[] computeGrad() {
-        double[] grad = new double[alphaProvider.size()];
-        //derivative for alphas
-        SortedMap<String,Double> alphas2 = new TreeMap<>(alphaProvider);
+    /**
+     * Computes the error of the alphas with its gradient, in closed form when the table of
+     * neighbors allows it (see NeighborTable.errorAndGradient), with finite differences
+     * otherwise.
+     * @param point the alpha of each state
+     * @param grad receives the derivative by each alpha, null when it is not wanted
+     * @return the error of the alphas
+     */
+    private double errorAndGradient(double[] point, double[] grad) {
+        if (grad == null || !table.hasGradient()) {
+            return Objective.withFiniteDifferences(
+                    alphas -> error(toAlphaProvider(alphas)), DIFF).evaluate(point, grad);
+        }
+        List<String> ordinals = new ArrayList<>(factory.getFrame().getStates());
+        double[] labelGrad = new double[2 * ordinals.size()];
+        double error = table.errorAndGradient(k, table.byOrdinal(toAlphaProvider(point)),
+                table.byOrdinal(stdDevs), labelGrad);
         int i = 0;
-        for (Map.Entry<String, Double> entry : alphaProvider.entrySet()) {
-            String label = entry.getKey();
-            Double alphaValue = entry.getValue();
-            alphas2.put(label, alphaValue + DIFF);
-            grad[i] = error(alphas2);
-            alphas2.put(label, alphaValue - DIFF);
-            grad[i] -= error(alphas2);
-            grad[i] /= (2 * DIFF);
-            //reset the map
-            alphas2.put(label, alphaValue);
-            ++i;
+        for (String state : states) {
+            grad[i++] = labelGrad[ordinals.indexOf(state)];
         }
-        return grad;
+        return error;
     }
 
     private double error(SortedMap<String, Double> alphas) {
-        KnnBelief<Double> model = new DempsterAlphaDoubleKnn(trainingSet, k, alphas,
-                factory.getFrame(), factory.getDistance(), stdDevs);
-        return KnnUtils.error(crossValidation, model);
+        return table.error(k, alphas, stdDevs);
     }
 
-
-    private double iterate() {
-        double currentError = error(alphaProvider);
-        double newError = Double.MAX_VALUE;
-        double[] grad = computeGrad();
-
-        while(newError > currentError) {
-
-            SortedMap<String, Double> newAlphas = getNewAlphas(grad);
-            newError = error(newAlphas);
-
-            if (newError < currentError) {
-                this.step *= 2;
-                alphaProvider = newAlphas;
-            } else {
-                this.step /= 2;
-            }
+    private SortedMap<String, Double> toAlphaProvider(double[] point) {
+        SortedMap<String, Double> alphas = new TreeMap<>();
+        int i = 0;
+        for (String state : states) {
+            alphas.put(state, point[i++]);
         }
-
-//        System.out.println("step: " + step);
-//        System.out.println("(" + alpha + "," + normalizedGamma + " ) -> " + error(alpha,
-//                normalizedGamma));
-        return error(alphaProvider);
+        return alphas;
     }
 
-    private SortedMap<String, Double> getNewAlphas(double[] grad) {
-        SortedMap<String, Double> newAlphas = new TreeMap<>(this.alphaProvider);
-        AtomicInteger i = new AtomicInteger(0);
-        for (String state : states) {
-            Double value = this.alphaProvider.get(state) - (grad[i.get()] * step);
-            if (value <= DIFF) {
-                value = 2 * DIFF;
-            }
-            if(value > MAX_ALPHA) {
-                value = MAX_ALPHA;
-            }
-            newAlphas.put(state, value);
-            i.incrementAndGet();
-        }
-        return newAlphas;
+    /**
+     * Sets the strategy of the descent, a ProjectedLbfgs by default.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
     }
 
+    /**
+     * Minimizes the error over the alphas, in (0, MAX_ALPHA].
+     * @param times maximal number of iterations of the optimizer
+     * @return the model of the best alphas found
+     */
     public DempsterAlphaDoubleKnn iterate(final int times) {
-        double currentError = error(alphaProvider);
-        double newError = currentError;
-        System.out.println(newError);
-        for (int i = 0; i < times; i++) {
-            currentError = newError;
-            newError = iterate();
-            System.out.println(newError);
-            if(currentError - newError < STOP_CRITERION) {
-                System.out.println("reached stop criterion");
-                break;
-            }
+        double[] start = new double[states.size()];
+        int i = 0;
+        for (String state : states) {
+            start[i++] = alphaProvider.get(state);
         }
+        double[] lower = new double[start.length];
+        double[] upper = new double[start.length];
+        Arrays.fill(lower, 2 * DIFF);
+        Arrays.fill(upper, MAX_ALPHA);
+        System.out.println(error(alphaProvider));
+        alphaProvider = toAlphaProvider(optimizer.minimize(this::errorAndGradient, start, lower,
+                upper, times));
+        System.out.println(error(alphaProvider));
 //        System.out.println();
         return new DempsterAlphaDoubleKnn(trainingSet, k, alphaProvider,
-                factory.getFrame(), factory.getDistance(), stdDevs);
+                factory.getDistance(), stdDevs);
     }
 }
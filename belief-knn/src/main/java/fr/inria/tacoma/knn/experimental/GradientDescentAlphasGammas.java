@@ -1,13 +1,15 @@
 package fr.inria.tacoma.knn.experimental;
 
-import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
 import fr.inria.tacoma.knn.unidimensional.DempsterAlphaDoubleKnn;
-import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.unidimensional.SortedPoints;
+import fr.inria.tacoma.knn.util.Objective;
+import fr.inria.tacoma.knn.util.Optimizer;
+import fr.inria.tacoma.knn.util.ProjectedLbfgs;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class GradientDescentAlphasGammas {
 
@@ -18,20 +20,25 @@ public class GradientDescentAlphasGammas {
 
     private SortedMap<String, Double> alphaProvider;
     private final KnnFactory<Double> factory;
-    private final List<LabelledPoint<Double>> trainingSet;
+    private final SortedPoints trainingSet;
     private final List<LabelledPoint<Double>> crossValidation;
     private final SortedSet<String> states;
     private final Map<String, Double> stdDevs;
     private SortedMap<String, Double> normalizedGamma;
     private int k;
-    public double step = 100;
+    /**
+     * Neighbors of the cross validation points.
+     */
+    private final NeighborTable table;
+    private Optimizer optimizer = new ProjectedLbfgs(GradientDescentGamma.LBFGS_MEMORY,
+            STOP_CRITERION);
 
     public GradientDescentAlphasGammas(KnnFactory<Double> factory,
                                        List<LabelledPoint<Double>> trainingSet,
                                        List<LabelledPoint<Double>> crossValidation,
                                        Map<String, Double> stdDevs, int k) {
         this.factory = factory;
-        this.trainingSet = trainingSet;
+        this.trainingSet = new SortedPoints(factory.getFrame(), trainingSet);
         this.crossValidation = crossValidation;
         this.alphaProvider = new TreeMap<>();
         this.states = new TreeSet<>(factory.getFrame().getStates());
@@ -44,132 +51,97 @@ public class GradientDescentAlphasGammas {
         for (String state : states) {
             normalizedGamma.put(state, 1.0);
         }
+        this.table = new DempsterAlphaDoubleKnn(this.trainingSet, k, alphaProvider,
+                factory.getDistance(), getGamma()).neighborTable(crossValidation, k);
     }
 
-    private double[] computeGrad() {
-        double[] grad = new double[alphaProvider.size() + normalizedGamma.size()];
-        //derivative for alphas
-        SortedMap<String,Double> alphas2 = new TreeMap<>(alphaProvider);
+    /**
+     * Computes the error of the parameters with its gradient, in closed form when the table of
+     * neighbors allows it (see NeighborTable.errorAndGradient), with finite differences
+     * otherwise.
+     * @param point the alpha of each state, then the normalized gamma of each state
+     * @param grad receives the derivative by each parameter, null when it is not wanted
+     * @return the error of the parameters
+     */
+    private double errorAndGradient(double[] point, double[] grad) {
+        if (grad == null || !table.hasGradient()) {
+            return Objective.withFiniteDifferences(parameters -> error(
+                    toMap(parameters, 0), toMap(parameters, states.size())), DIFF)
+                    .evaluate(point, grad);
+        }
+        List<String> ordinals = new ArrayList<>(factory.getFrame().getStates());
+        double[] labelGrad = new double[2 * ordinals.size()];
+        double error = table.errorAndGradient(k, table.byOrdinal(toMap(point, 0)),
+                table.byOrdinal(toGamma(toMap(point, states.size()))), labelGrad);
         int i = 0;
-        for (Map.Entry<String, Double> entry : alphaProvider.entrySet()) {
-            String label = entry.getKey();
-            Double alphaValue = entry.getValue();
-            alphas2.put(label, alphaValue + DIFF);
-            grad[i] = error(alphas2, normalizedGamma);
-            alphas2.put(label, alphaValue - DIFF);
-            grad[i] -= error(alphas2, normalizedGamma);
-            grad[i] /= (2 * DIFF);
-            //reset the map
-            alphas2.put(label, alphaValue);
-            ++i;
+        for (String state : states) {
+            grad[i++] = labelGrad[ordinals.indexOf(state)];
         }
-
-        //gammas
-        SortedMap<String,Double> gammas2 = new TreeMap<>(normalizedGamma);
-        for (Map.Entry<String, Double> entry : normalizedGamma.entrySet()) {
-            String label = entry.getKey();
-            Double gammaValue = entry.getValue();
-            gammas2.put(label, gammaValue + DIFF);
-            grad[i] = error(alphaProvider, gammas2);
-            gammas2.put(label, gammaValue - DIFF);
-            grad[i] -= error(alphaProvider, gammas2);
-            grad[i] /= (2 * DIFF);
-            //reset the map
-            gammas2.put(label, gammaValue);
-            ++i;
+        for (String state : states) {
+            grad[i++] = labelGrad[ordinals.size() + ordinals.indexOf(state)] * stdDevs.get(state);
         }
-
-        return grad;
+        return error;
     }
 
     private double error(SortedMap<String, Double> alphas,
                          SortedMap<String, Double> normalizedGamma) {
-        Map<String, Double> actualGammas = new HashMap<>();
-        normalizedGamma.forEach((key, value) -> actualGammas.put(key, value * stdDevs.get(key)));
-        KnnBelief<Double> model = new DempsterAlphaDoubleKnn(trainingSet, k, alphas,
-                factory.getFrame(), factory.getDistance(), actualGammas);
-        return KnnUtils.error(crossValidation, model);
+        return table.error(k, alphas, toGamma(normalizedGamma));
     }
 
-
-    private double iterate() {
-        double currentError = error(alphaProvider, normalizedGamma);
-        double newError = Double.MAX_VALUE;
-        double[] grad = computeGrad();
-
-        while(newError > currentError) {
-
-            SortedMap<String, Double> newAlphas = getNewAlphas(grad);
-            SortedMap<String, Double> newGammas = getNewGammas(grad);
-            newError = error(newAlphas, newGammas);
-
-            if (newError < currentError) {
-                this.step *= 2;
-                alphaProvider = newAlphas;
-                normalizedGamma = newGammas;
-            } else {
-                this.step /= 2;
-            }
-        }
-
-//        System.out.println("step: " + step);
-//        System.out.println("(" + alpha + "," + normalizedGamma + " ) -> " + error(alpha,
-//                normalizedGamma));
-        return error(alphaProvider, normalizedGamma);
-    }
-
-
-
-    private SortedMap<String, Double> getNewGammas(double[] grad) {
-        SortedMap<String, Double> newGammas = new TreeMap<>(this.normalizedGamma);
-        AtomicInteger i = new AtomicInteger(alphaProvider.size());
+    /**
+     * @return the values of the states, read from the point at the given offset
+     */
+    private SortedMap<String, Double> toMap(double[] point, int offset) {
+        SortedMap<String, Double> values = new TreeMap<>();
+        int i = offset;
         for (String state : states) {
-            Double value = this.normalizedGamma.get(state)- (grad[i.get()] * step);
-            if (value <= DIFF) {
-                value = 2 * DIFF;
-            }
-            newGammas.put(state, value);
-            i.incrementAndGet();
+            values.put(state, point[i++]);
         }
-        return newGammas;
+        return values;
     }
 
-    private SortedMap<String, Double> getNewAlphas(double[] grad) {
-        SortedMap<String, Double> newAlphas = new TreeMap<>(this.alphaProvider);
-        AtomicInteger i = new AtomicInteger(0);
-        for (String state : states) {
-            Double value = this.alphaProvider.get(state) - (grad[i.get()] * step);
-            if (value <= DIFF) {
-                value = 2 * DIFF;
-            }
-            if(value > MAX_ALPHA) {
-                value = MAX_ALPHA;
-            }
-            newAlphas.put(state, value);
-            i.incrementAndGet();
-        }
-        return newAlphas;
+    /**
+     * Sets the strategy of the descent, a ProjectedLbfgs by default.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
     }
 
+    /**
+     * Minimizes the error over the alphas, in (0, MAX_ALPHA], and the normalized gammas, which
+     * are kept positive.
+     * @param times maximal number of iterations of the optimizer
+     * @return the model of the best parameters found
+     */
     public DempsterAlphaDoubleKnn iterate(final int times) {
-        double currentError = error(alphaProvider, normalizedGamma);
-        double newError = currentError;
-        System.out.println(newError);
-        for (int i = 0; i < times; i++) {
-            currentError = newError;
-            newError = iterate();
-            System.out.println(newError);
-            if(currentError - newError < STOP_CRITERION) {
-                System.out.println("reached stop criterion");
-                break;
-            }
+        int count = states.size();
+        double[] start = new double[2 * count];
+        double[] lower = new double[start.length];
+        double[] upper = new double[start.length];
+        int i = 0;
+        for (String state : states) {
+            start[i] = alphaProvider.get(state);
+            start[count + i] = normalizedGamma.get(state);
+            upper[i] = MAX_ALPHA;
+            upper[count + i] = Double.POSITIVE_INFINITY;
+            i++;
         }
+        Arrays.fill(lower, 2 * DIFF);
+        System.out.println(error(alphaProvider, normalizedGamma));
+        double[] best = optimizer.minimize(this::errorAndGradient, start, lower, upper, times);
+        alphaProvider = toMap(best, 0);
+        normalizedGamma = toMap(best, count);
+        System.out.println(error(alphaProvider, normalizedGamma));
 //        System.out.println();
         return new DempsterAlphaDoubleKnn(trainingSet, k, alphaProvider,
-                factory.getFrame(), factory.getDistance(), getGamma());
+                factory.getDistance(), getGamma());
     }
 
     public Map<String, Double> getGamma() {
+        return toGamma(normalizedGamma);
+    }
+
+    private Map<String, Double> toGamma(SortedMap<String, Double> normalizedGamma) {
         Map<String, Double> actualGammas = new HashMap<>();
         normalizedGamma.forEach((key, value) -> actualGammas.put(key, value * stdDevs.get(key)));
         return actualGammas;
@@ -3,10 +3,13 @@ package fr.inria.tacoma.knn.experimental;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
 import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.util.Objective;
+import fr.inria.tacoma.knn.util.Optimizer;
+import fr.inria.tacoma.knn.util.ProjectedLbfgs;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class GradientDescentGamma<T> {
 
@@ -14,9 +17,13 @@ public class GradientDescentGamma<T> {
     public static final double GRADIENT_STEP = 1;
     public static final double MAX_ALPHA = 0.9;
     public static final double STOP_CRITERION = 0.00001;
+    /**
+     * Number of steps the default optimizer keeps to approximate the Hessian.
+     */
+    public static final int LBFGS_MEMORY = 10;
 
 
-    private static double alpha = 0.5;
+    private double alpha = 0.5;
     private final KnnFactory<T> factory;
     private final List<LabelledPoint<T>> trainingSet;
     private final List<LabelledPoint<T>> crossValidation;
@@ -24,7 +31,12 @@ public class GradientDescentGamma<T> {
     private final Map<String, Double> stdDevs;
     private SortedMap<String, Double> normalizedGamma;
     private int k;
-    public double step = 100;
+    /**
+     * Neighbors of the cross validation points, null when the models of the factory can not
+     * give them.
+     */
+    private final NeighborTable table;
+    private Optimizer optimizer = new ProjectedLbfgs(LBFGS_MEMORY, STOP_CRITERION);
 
     public GradientDescentGamma(KnnFactory<T> factory,
                                 List<LabelledPoint<T>> trainingSet,
@@ -40,112 +52,116 @@ public class GradientDescentGamma<T> {
         }
         k = trainingSet.size() - 1 ;
         this.stdDevs = stdDevs;
+        this.table = factory.newKnnBelief(trainingSet, getGamma(), k, alpha)
+                .neighborTable(crossValidation, k);
     }
 
-    private <T> double[] computeGrad() {
-        double[] grad = new double[normalizedGamma.size() + 1];
-        //derivative for alpha
-        grad[0] = (error(alpha + DIFF, normalizedGamma) - error(alpha - DIFF, normalizedGamma)) / (2 * DIFF);
-        //derivative for gammas
-        SortedMap<String,Double> gammas2 = new TreeMap<>(normalizedGamma);
+    /**
+     * Computes the error of the parameters with its gradient, in closed form when the table of
+     * neighbors allows it (see NeighborTable.errorAndGradient), with finite differences
+     * otherwise.
+     * @param point alpha, then the normalized gamma of each state
+     * @param grad receives the derivative by each parameter, null when it is not wanted
+     * @return the error of the parameters
+     */
+    private double errorAndGradient(double[] point, double[] grad) {
+        if (table == null || !table.hasGradient()) {
+            return Objective.withFiniteDifferences(
+                    parameters -> error(parameters[0], toNormalizedGamma(parameters)), DIFF)
+                    .evaluate(point, grad);
+        }
+        List<String> ordinals = new ArrayList<>(factory.getFrame().getStates());
+        double[] alphas = new double[ordinals.size()];
+        Arrays.fill(alphas, point[0]);
+        double[] gammas = table.byOrdinal(toGamma(toNormalizedGamma(point)));
+        if (grad == null) {
+            return table.error(k, alphas, gammas);
+        }
+        double[] labelGrad = new double[2 * ordinals.size()];
+        double error = table.errorAndGradient(k, alphas, gammas, labelGrad);
+        grad[0] = 0;
+        for (int label = 0; label < ordinals.size(); label++) {
+            grad[0] += labelGrad[label];
+        }
         int i = 1;
-        for (Map.Entry<String, Double> entry : normalizedGamma.entrySet()) {
-            String label = entry.getKey();
-            Double gammaValue = entry.getValue();
-            gammas2.put(label, gammaValue + DIFF);
-            grad[i] = error(alpha, gammas2);
-            gammas2.put(label, gammaValue - DIFF);
-            grad[i] -= error(alpha, gammas2);
-            grad[i] /= (2 * DIFF);
-            //reset the map
-            gammas2.put(label, gammaValue);
-            ++i;
+        for (String state : states) {
+            grad[i++] = labelGrad[ordinals.size() + ordinals.indexOf(state)] * stdDevs.get(state);
         }
-        return grad;
+        return error;
     }
 
     private double error(double alpha, SortedMap<String, Double> normalizedGamma) {
-        Map<String, Double> actualGammas = new HashMap<>();
-        normalizedGamma.forEach((key, value) -> actualGammas.put(key, value * stdDevs.get(key)));
+        Map<String, Double> actualGammas = toGamma(normalizedGamma);
+        if (table != null) {
+            return table.error(k, alpha, actualGammas);
+        }
         KnnBelief<T> model = factory.newKnnBelief(trainingSet, actualGammas, k, alpha);
         return KnnUtils.error(crossValidation, model);
     }
 
-
-    private double iterate() {
-        double currentError = error(alpha, normalizedGamma);
-        double newError = 10;
-        double[] grad = computeGrad();
-
-
-        while(newError > currentError) {
-            double newAlpha = iterateAlpha(grad);
-
-            SortedMap<String, Double> newGammas = getNewGammas(grad);
-            newError = error(newAlpha, newGammas);
-
-            if (newError < currentError) {
-                this.step *= 2;
-                alpha = newAlpha;
-                normalizedGamma = newGammas;
-            } else {
-                this.step /= 2;
-            }
+    private SortedMap<String, Double> toNormalizedGamma(double[] point) {
+        SortedMap<String, Double> gammas = new TreeMap<>();
+        int i = 1;
+        for (String state : states) {
+            gammas.put(state, point[i++]);
         }
-
-//        System.out.println("step: " + step);
-//        System.out.println("(" + alpha + "," + normalizedGamma + " ) -> " + error(alpha,
-//                normalizedGamma));
-        return error(alpha, normalizedGamma);
+        return gammas;
     }
 
-    private SortedMap<String, Double> getNewGammas(double[] grad) {
-        SortedMap<String, Double> newGammas = new TreeMap<>(this.normalizedGamma);
-        AtomicInteger i = new AtomicInteger(1);
-        for (String state : states) {
-            Double value = this.normalizedGamma.get(state)- (grad[i.get()] * step);
-            if (value <= DIFF) {
-                value = 2 * DIFF;
-            }
-            newGammas.put(state, value);
-            i.incrementAndGet();
-        }
-        return newGammas;
+    /**
+     * Sets the strategy of the descent, a ProjectedLbfgs by default.
+     */
+    public void setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
     }
 
-    private double iterateAlpha(double[] grad) {
-        double newAlpha = alpha;
-        newAlpha -= step * grad[0];
-        if(newAlpha > MAX_ALPHA ) {
-            newAlpha = MAX_ALPHA ;
-        }
-        else if (newAlpha <= DIFF) {
-            newAlpha = 2 * DIFF;
-        }
-        return newAlpha;
+    /**
+     * Starts the next descent from the parameters of a model, such as the model of another
+     * fold. The gammas of the states the model does not know are left unchanged.
+     */
+    public void warmStart(KnnBelief<T> model) {
+        alpha = model.getAlpha();
+        model.getGammas().forEach((state, gamma) -> {
+            if (normalizedGamma.containsKey(state)) {
+                normalizedGamma.put(state, gamma / stdDevs.get(state));
+            }
+        });
     }
 
+    /**
+     * Minimizes the error over alpha, in (0, MAX_ALPHA], and the normalized gammas, which are
+     * kept positive.
+     * @param times maximal number of iterations of the optimizer
+     * @return the model of the best parameters found
+     */
     public KnnBelief<T> iterate(final int times) {
-        double currentError = error(alpha, normalizedGamma);
-        double newError = currentError;
-        for (int i = 0; i < times; i++) {
-            currentError = newError;
-            newError = iterate();
-            if(currentError - newError < STOP_CRITERION) {
-//                System.out.println("reached stop criterion");
-                break;
-            }
-//            System.out.println(newError);
+        double[] start = new double[states.size() + 1];
+        double[] lower = new double[start.length];
+        double[] upper = new double[start.length];
+        start[0] = alpha;
+        upper[0] = MAX_ALPHA;
+        int i = 1;
+        for (String state : states) {
+            start[i] = normalizedGamma.get(state);
+            upper[i++] = Double.POSITIVE_INFINITY;
         }
+        Arrays.fill(lower, 2 * DIFF);
+        double[] best = optimizer.minimize(this::errorAndGradient, start, lower, upper, times);
+        alpha = best[0];
+        normalizedGamma = toNormalizedGamma(best);
 //        System.out.println();
         return factory.newKnnBelief(trainingSet, getGamma(), k, alpha);
     }
 
-    public static double getAlpha() {
+    public double getAlpha() {
         return alpha;
     }
 
     public Map<String, Double> getGamma() {
+        return toGamma(normalizedGamma);
+    }
+
+    private Map<String, Double> toGamma(SortedMap<String, Double> normalizedGamma) {
         Map<String, Double> actualGammas = new HashMap<>();
         normalizedGamma.forEach((key, value) -> actualGammas.put(key, value * stdDevs.get(key)));
         return actualGammas;
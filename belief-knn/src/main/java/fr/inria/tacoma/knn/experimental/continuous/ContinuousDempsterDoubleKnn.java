@@ -1,87 +1,55 @@
 package fr.inria.tacoma.knn.experimental.continuous;
 
-import fr.inria.tacoma.bft.combinations.Combinations;
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
-import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.Distance;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.unidimensional.DempsterDoubleKnn;
+import fr.inria.tacoma.knn.unidimensional.SortedPoints;
 
 import java.util.*;
-import java.util.function.BiFunction;
 
 /**
- * Optimization of the Knn for a double value and a Dempster combination.
+ * Optimization of the Knn for a double value and a Dempster combination, where k can take any
+ * real value: the point after the (int) k nearest ones has a weight of k - (int) k. The model is
+ * then continuous in k, so k can be optimized along with alpha and the gammas.
  */
 public class ContinuousDempsterDoubleKnn implements ContinuousKnnBelief<Double> {
 
+    /**
+     * Buffer reused by toMass, so computing a mass function only allocates the result.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
     private final double k;
     private final double alpha;
     private final FrameOfDiscernment frame;
-    private final List<LabelledPoint<Double>> sortedPoints;
+    private final SortedPoints points;
     private final Map<String, Double> gammaProvider;
-    private final BiFunction<Double, Double, Double> distance;
-
-    public ContinuousDempsterDoubleKnn(List<LabelledPoint<Double>> points, double k, double alpha,
-                             FrameOfDiscernment frame,
-                             BiFunction<Double, Double, Double> distance,
-                             Map<String,Double> gammaProvider) {
-        this(points, k, alpha, frame, distance, gammaProvider, false);
+    private final double[] gammas;
+    private final ScalarDistance distance;
+
+    public ContinuousDempsterDoubleKnn(List<? extends LabelledPoint<Double>> points, double k,
+                                       double alpha, FrameOfDiscernment frame,
+                                       Distance<Double> distance,
+                                       Map<String,Double> gammaProvider) {
+        this(new SortedPoints(frame, points), k, alpha, distance, gammaProvider);
     }
 
-    private ContinuousDempsterDoubleKnn(List<LabelledPoint<Double>> points, double k, double alpha,
-                              FrameOfDiscernment frame,
-                              BiFunction<Double, Double, Double> distance,
-                              Map<String,Double> gammaProvider, boolean sorted) {
+    public ContinuousDempsterDoubleKnn(SortedPoints points, double k, double alpha,
+                                       Distance<Double> distance,
+                                       Map<String,Double> gammaProvider) {
         assert alpha > 0;
         this.k = k;
         this.alpha = alpha;
-        this.frame = frame;
-        this.distance = distance;
+        this.frame = points.getFrame();
+        this.distance = ScalarDistance.of(distance);
         this.gammaProvider = gammaProvider;
-        if(sorted) {
-            this.sortedPoints = points;
-        }
-        else {
-            this.sortedPoints = new ArrayList<>(points);
-            Collections.sort(sortedPoints, (p1, p2) -> Double.compare(p1.getValue(), p2.getValue()));
-        }
-    }
-
-    private List<LabelledPoint<Double>> knn(Double value) {
-        int startIndex = 0, endIndex = sortedPoints.size() - 1 ;
-        while(endIndex - startIndex > 1) {
-            int index = (startIndex + endIndex) / 2;
-            if(sortedPoints.get(index).getValue() >= value) {
-                endIndex = index;
-            }
-            else {
-                startIndex = index;
-            }
-        }
-
-        int integerK = ((int)this.k) + 1;
-        while (endIndex - startIndex < integerK - 1) {
-            if(startIndex == 0) {
-                endIndex = integerK - 1;
-                break;
-            }
-            else if (endIndex == sortedPoints.size() - 1) {
-                startIndex = endIndex - integerK + 1;
-                break;
-            }
-
-            Double startValue = sortedPoints.get(startIndex - 1).getValue();
-            Double endValue = sortedPoints.get(endIndex + 1).getValue();
-            if(value - startValue < endValue - value) {
-                startIndex--;
-            }
-            else {
-                endIndex++;
-            }
-        }
-
-        return sortedPoints.subList(startIndex, endIndex + 1);
+        this.gammas = points.byOrdinal(gammaProvider);
+        this.points = points;
     }
 
     @Override
@@ -101,119 +69,93 @@ public class ContinuousDempsterDoubleKnn implements ContinuousKnnBelief<Double>
 
     @Override
     public ContinuousKnnBelief<Double> withAlpha(double newAlpha) {
-        return new ContinuousDempsterDoubleKnn(sortedPoints, k, newAlpha, frame, distance,
-                gammaProvider, true);
+        return new ContinuousDempsterDoubleKnn(points, k, newAlpha, distance, gammaProvider);
     }
 
     @Override
     public ContinuousKnnBelief<Double> withK(double newK) {
-        return null;
+        return new ContinuousDempsterDoubleKnn(points, newK, alpha, distance, gammaProvider);
     }
 
     @Override
     public ContinuousKnnBelief<Double> withAlphaAndK(double newAlpha, double newK) {
-        return null;
+        return new ContinuousDempsterDoubleKnn(points, newK, newAlpha, distance, gammaProvider);
     }
 
     @Override
     public MutableMass toMass(Double sensorValue) {
-        List<LabelledPoint<Double>> knn = knn(sensorValue);
-        LabelledPoint<Double> farthestPoint;
-        LabelledPoint<Double> firstPoint = knn.get(0);
-        LabelledPoint<Double> lastPoint = knn.get(knn.size() - 1);
-
-        if(sensorValue - firstPoint.getValue() >
-                lastPoint.getValue()  - sensorValue ) {
-            farthestPoint = firstPoint;
-            knn = knn.subList(1, knn.size());
+        return toMass(sensorValue, points.neighborhoodStart(sensorValue,
+                ((int) this.k) + 1));
+    }
+
+    /**
+     * Computes the mass functions of several values, the neighbors of all the values being
+     * searched in a single sweep of the training points.
+     * @param values sensor values, in any order
+     * @return the mass functions, in the order of the values
+     */
+    public MutableMass[] toMasses(double[] values) {
+        int[] starts = points.neighborhoodStarts(values, ((int) this.k) + 1);
+        MutableMass[] masses = new MutableMass[values.length];
+        for (int i = 0; i < values.length; i++) {
+            masses[i] = toMass(values[i], starts[i]);
+        }
+        return masses;
+    }
+
+    /**
+     * Combines the (int) k closest points of the window with the farthest one, whose support is
+     * reduced to the fractional part of k.
+     */
+    private MutableMass toMass(double sensorValue, int start) {
+        int end = Math.min(start + ((int) this.k) + 1, points.size());
+        int farthestPoint;
+
+        if(sensorValue - points.value(start) >
+                points.value(end - 1)  - sensorValue ) {
+            farthestPoint = start;
+            start++;
         }
         else {
-            farthestPoint = lastPoint;
-            knn = knn.subList(0, knn.size() - 1);
+            farthestPoint = end - 1;
+            end--;
+        }
+
+        // product of the masses on the full ignorance of the neighbors of each label, the
+        // farthest point being discounted by 1 - (k - (int) k)
+        int labelCount = points.labelCount();
+        double[] products = scratch(labelCount);
+        Arrays.fill(products, 0, labelCount, 1.0);
+        for (int i = start; i < end; i++) {
+            products[points.labelOrdinal(i)] *= 1 - support(sensorValue, i);
         }
+        double remainingK = k - (int) k;
+        products[points.labelOrdinal(farthestPoint)] *=
+                1 - remainingK * support(sensorValue, farthestPoint);
 
-        MutableMass massResult = knn.stream()
-                .map(p -> getMassFunction(sensorValue, p))
-                .reduce(Combinations::dempster).get();
-        double remainingK = k - (int)k;
-        MassFunction reducedMass = getMassFunction(sensorValue, farthestPoint).discount(1 - remainingK);
-        massResult = Combinations.dempster(massResult, reducedMass);
-        return massResult;
-//        Map<StateSet, Double> optimized = getClustersFullIgnoranceValues(sensorValue, knn, farthestPoint);
-//
-//
-//        MutableMass resultMass = frame.newMass();
-//
-//        double ignoranceMass = 1;
-//        for (StateSet stateSet : optimized.keySet()) {
-//            double result = 1;
-//            for (Map.Entry<StateSet, Double> entry : optimized.entrySet()) {
-//                Double value = entry.getValue();
-//                if(!entry.getKey().equals(stateSet)) {
-//                    result = result * value;
-//                }
-//                else {
-//                    result = result * (1 - value);
-//                }
-//
-//                ignoranceMass = ignoranceMass * value;
-//            }
-//            resultMass.set(stateSet, result);
-//        }
-//        resultMass.set(frame.fullIgnoranceSet(), ignoranceMass);
-//
-//        resultMass.normalize();
-//
-//        return resultMass;
+        return DempsterDoubleKnn.combine(points, products);
     }
 
-    private MutableMass getMassFunction(Double value, LabelledPoint<Double> point) {
-        MutableMass mass = frame.newMass();
-        double gamma = 1.0 / gammaProvider.get(point.getLabel());
-        mass.addToFocal(point.getStateSet(),
-                alpha * Math.exp(-distance.apply(value, point.getValue()) * gamma));
-        mass.putRemainingOnIgnorance();
-        return mass;
+    /**
+     * @return mass given by a point to its label
+     */
+    private double support(double value, int index) {
+        return alpha * Math.exp(-distance.between(value, points.value(index))
+                / gammas[points.labelOrdinal(index)]);
     }
 
-    private Map<StateSet, Double> getClustersFullIgnoranceValues(Double sensorValue,
-                                                                 List<LabelledPoint<Double>> knn,
-                                                                 LabelledPoint<Double> farthestPoint) {
-        Map<StateSet, Double> optimized = new HashMap<>();
-
-        for (LabelledPoint<Double> point : knn) {
-            double gamma = gammaProvider.get(point.getLabel());
-            optimized.compute(point.getStateSet(), (k, v) -> {
-                double newValue = 1 - (alpha *
-                        Math.exp(-distance.apply(sensorValue, point.getValue()) / gamma));
-                if(v == null) {
-                    return newValue;
-                }
-                else {
-                    return v * newValue;
-                }
-            });
+    /**
+     * @return the scratch buffer of the current thread, with at least twice the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < 2 * labelCount) {
+            buffer = new double[2 * labelCount];
+            SCRATCH.set(buffer);
         }
-
-        optimized.compute(farthestPoint.getStateSet(), (key, v) -> {
-            double gamma = gammaProvider.get(farthestPoint.getLabel());
-            double newValue = 1 - (alpha *
-                    Math.exp(-distance.apply(sensorValue, farthestPoint.getValue()) / gamma));
-            double remainingK = k - (int) k;
-                newValue = 1 - (remainingK * (1 - newValue));
-//            System.out.print("k=" + remainingK+" ; ");
-            if (v == null) {
-//                System.out.println("newValue=" + newValue +", v not defined -> " + newValue);
-                return newValue;
-            } else {
-//                System.out.println("newValue=" + newValue +", v=" + v + " -> " + v * newValue);
-                return v * newValue;
-            }
-        });
-        return optimized;
+        return buffer;
     }
 
-
     @Override
     public MassFunction toMassWithoutValue() {
         MutableMass massFunction = frame.newMass();
@@ -5,10 +5,13 @@ import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
 import fr.inria.tacoma.knn.core.Kfold;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.ScalarDistance;
 import fr.inria.tacoma.knn.unidimensional.BeliefModelPrinter;
 import fr.inria.tacoma.knn.unidimensional.SensorValue;
 import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.util.SupportCombinations;
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.impl.type.FileArgumentType;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
@@ -18,31 +21,38 @@ import org.apache.commons.csv.CSVRecord;
 
 import java.io.*;
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.concurrent.ForkJoinPool;
 
 
 public class Launcher {
 
-    private static BiFunction<Double, Double, Double> doubleDistance =(a, b) -> Math.abs(a - b);
+    private static ScalarDistance doubleDistance = ScalarDistance.ABSOLUTE;
 
     enum Mode {
         findBest {
             @Override
             public SensorBeliefModel<Double> run(List<LabelledPoint<Double>> points,
                                                  FrameOfDiscernment frame, Namespace arguments) {
-                Combination combination = arguments.get("combination");
-                KnnFactory<Double> factory = combination.getFactory(frame);
+                KnnFactory<Double> factory = getFactory(arguments.get("combination"), frame);
                 int folds = arguments.get("fold");
-
-                return Kfold.generateModel(factory, points, folds);
+                int threads = arguments.get("threads");
+                Integer patience = arguments.get("patience");
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    return Kfold.generateModel(factory, points, folds, pool,
+                            patience == null ? Integer.MAX_VALUE : patience,
+                            arguments.getBoolean("warmStart"));
+                }
+                finally {
+                    pool.shutdown();
+                }
             }
         },
         fixedParams {
             @Override
             public SensorBeliefModel<Double> run(List<LabelledPoint<Double>> points,
                                                  FrameOfDiscernment frame, Namespace arguments) {
-                Combination combination = arguments.get("combination");
-                KnnFactory<Double> factory = combination.getFactory(frame);
+                KnnFactory<Double> factory = getFactory(arguments.get("combination"), frame);
                 int k = arguments.get("k");
                 double alpha = arguments.get("alpha");
                 Map<String, Double> gammaProvider = KnnUtils.generateGammaProvider(doubleDistance,
@@ -56,20 +66,16 @@ public class Launcher {
                                                       FrameOfDiscernment frame, Namespace arguments);
     }
 
-    enum Combination {
-        dubois {
-            @Override
-            public KnnFactory<Double> getFactory(FrameOfDiscernment frame) {
-                return KnnFactory.getDoubleKnnFactory(frame);
-            }
-        }, dempster {
-            @Override
-            public KnnFactory<Double> getFactory(FrameOfDiscernment frame) {
-                return KnnFactory.getDoubleDempsterFactory(frame);
-            }
-        };
-
-        public abstract KnnFactory<Double> getFactory(FrameOfDiscernment frame);
+    /**
+     * Creates the factory of a combination of the registry of SupportCombinations, Dempster's
+     * rule having its own engine.
+     * @param combination name of a registered combination
+     */
+    private static KnnFactory<Double> getFactory(String combination, FrameOfDiscernment frame) {
+        if (SupportCombinations.forName(combination) == SupportCombinations.DEMPSTER) {
+            return KnnFactory.getDoubleDempsterFactory(frame);
+        }
+        return KnnFactory.getDoubleKnnFactory(frame, combination);
     }
 
     public static void main(String[] args) throws ArgumentParserException, IOException {
@@ -162,10 +168,9 @@ public class Launcher {
                         Mode.fixedParams+ ": do not try to find parameters, " +
                         "just use the provided alpha and k");
         parser.addArgument("-c", "--combination")
-                .type(Combination.class)
-                .choices(Combination.values())
-                .setDefault(Combination.dempster)
-                .help("type of combination to use");
+                .choices(SupportCombinations.names())
+                .setDefault("dempster")
+                .help("type of combination to use, default is dempster");
         parser.addArgument("-o", "--output")
                 .type(new FileArgumentType())
                 .help("output for the csv, default is stdout");
@@ -187,6 +192,21 @@ public class Launcher {
                 .type(Integer.class)
                 .setDefault(3)
                 .help("number of folds to use in k-fold.");
+        parser.addArgument("-t", "--threads")
+                .type(Integer.class)
+                .setDefault(Runtime.getRuntime().availableProcessors())
+                .help("number of threads training the folds (for " + Mode.findBest
+                        + " only), default is the number of processors.");
+        parser.addArgument("-p", "--patience")
+                .type(Integer.class)
+                .help("stop the search of k when the error has not decreased for this number "
+                        + "of consecutive values (for " + Mode.findBest + " only), "
+                        + "default is to try every value.");
+        parser.addArgument("-w", "--warmStart")
+                .action(Arguments.storeTrue())
+                .help("train the first fold alone and start the other folds from its alpha "
+                        + "(for " + Mode.findBest + " only), which shortens their searches but "
+                        + "no longer trains the first fold in parallel with the other ones.");
         parser.addArgument("-n", "--numPoints").setDefault(1000)
                 .type(Integer.class)
                 .help("number of point to have in the output csv");
@@ -0,0 +1,51 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.knn.core.VectorPoint;
+
+import java.util.Arrays;
+
+/**
+ * Immutable point with any number of features, such as the values of several sensors taken at
+ * the same time.
+ */
+public final class FeatureVector implements VectorPoint {
+
+    final double[] features;
+
+    public FeatureVector(double... features) {
+        this.features = features.clone();
+    }
+
+    @Override
+    public int dimension() {
+        return features.length;
+    }
+
+    @Override
+    public double coordinate(int axis) {
+        return features[axis];
+    }
+
+    /**
+     * @return a copy of the features
+     */
+    public double[] getFeatures() {
+        return features.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof FeatureVector
+                && Arrays.equals(features, ((FeatureVector) o).features);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(features);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(features);
+    }
+}
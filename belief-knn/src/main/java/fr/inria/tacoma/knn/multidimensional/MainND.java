@@ -0,0 +1,118 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.knn.core.KnnBelief;
+import fr.inria.tacoma.knn.core.KnnFactory;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.util.KnnUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Activity level from several sensors at once: the motion sensors, the sound sensor and the
+ * derivative of the first motion sensor are the features of a single point.
+ */
+public class MainND {
+
+    public static final double ALPHA = 0.3;
+    public static final double TRAINING_SET_RATIO = 0.6;
+    public static final int MAX_NEIGHBOR_COUNT = 30;
+    public static final String SAMPLE = "samples/sample-7/";
+    public static final String[] LABELS = {"absence", "weak", "average", "max"};
+
+    public static void main(String[] args) throws IOException {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("activity", LABELS);
+
+        List<LabelledPoint<FeatureVector>> trainingSet = new ArrayList<>();
+        List<LabelledPoint<FeatureVector>> crossValidationPoints = new ArrayList<>();
+        for (String label : LABELS) {
+            List<LabelledPoint<FeatureVector>> points = getPoints(label, frame);
+            crossValidationPoints.addAll(KnnUtils.extractSubList(points, TRAINING_SET_RATIO));
+            trainingSet.addAll(points);
+        }
+
+        VectorMetric metric = VectorMetric.weighted(inverseVariances(trainingSet));
+        KnnFactory<FeatureVector> factory = KnnFactory.getVectorFactory(frame, metric);
+        long before = System.nanoTime();
+        KnnBelief<FeatureVector> model = KnnUtils.getBestKnnBeliefWithFixedAlpha(factory,
+                trainingSet, crossValidationPoints, ALPHA, MAX_NEIGHBOR_COUNT);
+        System.out.println("elapsed: " + (double) (System.nanoTime() - before) / 1e9 + " s");
+        System.out.println("global error : " + KnnUtils.error(crossValidationPoints, model));
+
+        showApproximation(frame, metric, model, trainingSet, crossValidationPoints);
+    }
+
+    /**
+     * Compares the model to the same model using an approximate neighbor search, for several
+     * search factors.
+     */
+    private static void showApproximation(FrameOfDiscernment frame, VectorMetric metric,
+                                          KnnBelief<FeatureVector> model,
+                                          List<LabelledPoint<FeatureVector>> trainingSet,
+                                          List<LabelledPoint<FeatureVector>> testSample) {
+        for (int searchFactor : new int[]{2, 5, 10, 20}) {
+            KnnFactory<FeatureVector> factory = KnnFactory.getApproximateVectorFactory(frame,
+                    metric, searchFactor);
+            VectorKnnBelief approximate = (VectorKnnBelief) factory.newKnnBelief(trainingSet,
+                    model.getGammas(), model.getK(), model.getAlpha());
+            double recall = ((ProjectionForest) approximate.getSearch()).recall(testSample,
+                    model.getK());
+            System.out.println("search factor " + searchFactor + ": recall " + recall
+                    + ", error " + KnnUtils.error(testSample, approximate));
+        }
+    }
+
+    /**
+     * Joins the readings of the sensors taken while in the given state. The readings are
+     * matched by their position in the files, the extra readings of the longest files are
+     * dropped.
+     */
+    private static List<LabelledPoint<FeatureVector>> getPoints(String label,
+                                                               FrameOfDiscernment frame)
+            throws IOException {
+        List<LabelledPoint<Double>> motion0 = KnnUtils.getPoints(label,
+                SAMPLE + "motion0/" + label + "-motion0.json", frame);
+        List<LabelledPoint<Double>> motion1 = KnnUtils.getPoints(label,
+                SAMPLE + "motion1/" + label + "-motion1.json", frame);
+        List<LabelledPoint<Double>> sound = KnnUtils.getPoints(label,
+                SAMPLE + "soundphidget/" + label + "-soundphidget.json", frame);
+
+        int size = Math.min(motion0.size(), Math.min(motion1.size(), sound.size()));
+        List<LabelledPoint<FeatureVector>> points = new ArrayList<>(size);
+        for (int i = 1; i < size; i++) {
+            LabelledPoint<Double> point = motion0.get(i);
+            LabelledPoint<Double> prevPoint = motion0.get(i - 1);
+            double absoluteDerivative = Math.abs(point.getValue() - prevPoint.getValue())
+                    / (point.getTimestamp() - prevPoint.getTimestamp());
+            FeatureVector features = new FeatureVector(point.getValue(),
+                    motion1.get(i).getValue(), sound.get(i).getValue(), absoluteDerivative);
+            points.add(new LabelledPoint<>("joint", label, point.getTimestamp(), features,
+                    frame.toStateSet(label)));
+        }
+        return points;
+    }
+
+    /**
+     * @return the inverse of the variance of each feature, so every feature has the same weight
+     * in the distance whatever its unit.
+     */
+    private static double[] inverseVariances(List<LabelledPoint<FeatureVector>> points) {
+        int dimension = points.get(0).getValue().dimension();
+        double[] weights = new double[dimension];
+        for (int axis = 0; axis < dimension; axis++) {
+            double sum = 0;
+            double squareSum = 0;
+            for (LabelledPoint<FeatureVector> point : points) {
+                double coordinate = point.getValue().coordinate(axis);
+                sum += coordinate;
+                squareSum += coordinate * coordinate;
+            }
+            double mean = sum / points.size();
+            double variance = squareSum / points.size() - mean * mean;
+            weights[axis] = variance > 0 ? 1 / variance : 1;
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,15 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+/**
+ * Search of the neighbors of a vector among packed points (see PackedPoints).
+ */
+@FunctionalInterface
+public interface NeighborSearch {
+
+    /**
+     * @param value vector for which we look for neighbors
+     * @param k number of neighbors
+     * @return indices of at most k points, from the nearest to the farthest
+     */
+    int[] nearest(FeatureVector value, int k);
+}
@@ -0,0 +1,166 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborHeap;
+import fr.inria.tacoma.knn.core.PackedKdTree;
+import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.util.LabelSets;
+
+import java.util.*;
+
+/**
+ * Immutable contiguous storage of a training set of feature vectors. The coordinates of all the
+ * points are packed in a single array, point after point, and the labels are stored as ordinals
+ * of the states of the frame. A store is meant to be built once and shared by every copy of a
+ * model (see withAlpha, withK...).
+ */
+public final class PackedPoints {
+
+    private final FrameOfDiscernment frame;
+    private final List<? extends LabelledPoint<FeatureVector>> points;
+    private final LabelSets labels;
+    private final int dimension;
+    private final double[] coordinates;
+    private final int[] labelOrdinals;
+
+    public PackedPoints(FrameOfDiscernment frame,
+                        List<? extends LabelledPoint<FeatureVector>> points) {
+        this.frame = frame;
+        this.points = points;
+        this.labels = LabelSets.of(frame);
+
+        this.dimension = points.isEmpty() ? 0 : points.get(0).getValue().dimension();
+        this.coordinates = new double[points.size() * dimension];
+        this.labelOrdinals = new int[points.size()];
+        for (int i = 0; i < labelOrdinals.length; i++) {
+            LabelledPoint<FeatureVector> point = points.get(i);
+            int ordinal = labels.ordinal(point.getLabel());
+            if (ordinal < 0) {
+                throw new IllegalArgumentException("label " + point.getLabel()
+                        + " is not a state of the frame");
+            }
+            double[] features = point.getValue().features;
+            if (features.length != dimension) {
+                throw new IllegalArgumentException("point " + i + " has " + features.length
+                        + " features instead of " + dimension);
+            }
+            System.arraycopy(features, 0, coordinates, i * dimension, dimension);
+            labelOrdinals[i] = ordinal;
+        }
+    }
+
+    /**
+     * Tells if this storage holds exactly the given points, in the same order.
+     */
+    public boolean packs(List<? extends LabelledPoint<FeatureVector>> points) {
+        return KnnUtils.samePoints(this.points, points);
+    }
+
+    /**
+     * Finds the exact k nearest neighbors of a vector by computing its distance to every point.
+     * Points at the same distance are ordered as in the training set.
+     * @param metric distance between the vectors
+     * @param features coordinates of the vector, of the same dimension as the points
+     * @param k number of neighbors
+     * @return indices of the min(k, size()) nearest points, from the nearest to the farthest
+     */
+    public int[] nearest(VectorMetric metric, double[] features, int k) {
+        NeighborHeap neighbors = new NeighborHeap(Math.min(k, size()));
+        for (int i = 0; i < size(); i++) {
+            neighbors.offer(i, metric.between(features, 0, coordinates, i * dimension,
+                    dimension));
+        }
+        return drain(neighbors);
+    }
+
+    /**
+     * Gives an exact search of the neighbors, with the same neighbors as nearest. The search
+     * goes through a KD-tree over the packed coordinates (see PackedKdTree) when the metric
+     * gives a positive factor to every axis (see VectorMetric.axisFactor), and compares the
+     * value to every point otherwise. The tree is built by this call, so the search should
+     * be shared by the models of these points.
+     * @param metric distance between the vectors
+     */
+    public NeighborSearch exactSearch(VectorMetric metric) {
+        NeighborSearch scan = (value, k) -> nearest(metric, value.features, k);
+        if (dimension < 1 || dimension > PackedKdTree.MAX_DIMENSION) {
+            return scan;
+        }
+        double[] axisFactors = new double[dimension];
+        for (int axis = 0; axis < dimension; axis++) {
+            axisFactors[axis] = metric.axisFactor(axis);
+            if (!(axisFactors[axis] > 0) || Double.isInfinite(axisFactors[axis])) {
+                return scan;
+            }
+        }
+        PackedKdTree tree = new PackedKdTree(coordinates, dimension, axisFactors);
+        return (value, k) -> {
+            double[] features = value.features;
+            NeighborHeap neighbors = new NeighborHeap(Math.min(k, size()));
+            tree.search(features, index -> metric.between(features, 0, coordinates,
+                    index * dimension, dimension), neighbors);
+            return drain(neighbors);
+        };
+    }
+
+    /**
+     * Empties a heap of neighbors.
+     * @return indices of the neighbors, from the nearest to the farthest
+     */
+    static int[] drain(NeighborHeap neighbors) {
+        int[] nearest = new int[neighbors.size()];
+        for (int i = nearest.length - 1; i >= 0; i--) {
+            nearest[i] = neighbors.removeFarthest();
+        }
+        return nearest;
+    }
+
+    public int size() {
+        return labelOrdinals.length;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * @return the packed coordinates, the coordinates of the point i start at i * dimension().
+     * The array must not be modified.
+     */
+    double[] coordinates() {
+        return coordinates;
+    }
+
+    public int labelOrdinal(int index) {
+        return labelOrdinals[index];
+    }
+
+    /**
+     * @return number of label ordinals, which is the cardinal of the frame
+     */
+    public int labelCount() {
+        return labels.size();
+    }
+
+    public String label(int ordinal) {
+        return labels.label(ordinal);
+    }
+
+    public StateSet stateSet(int ordinal) {
+        return labels.singleton(ordinal);
+    }
+
+    /**
+     * Resolves a value per label (such as the gammas) into an array indexed by label ordinal
+     * (see LabelSets.byOrdinal).
+     */
+    public double[] byOrdinal(Map<String, Double> valuesByLabel) {
+        return labels.byOrdinal(valuesByLabel);
+    }
+
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+}
@@ -0,0 +1,428 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborHeap;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Approximate neighbor search with a forest of random projection trees. Each tree splits the
+ * points in two halves on a random direction, recursively, until the leaves hold a few points.
+ * A search descends all the trees at once, visiting first the leaves closest to the splitting
+ * planes, and computes the distance to the points of the visited leaves only.
+ *
+ * The number of points compared to the value is the search factor times the number of
+ * neighbors: the greater the factor, the closer the neighbors are to the exact ones, and the
+ * slower the search. The trees are immutable once built, so a forest can be shared by every
+ * copy of a model and the search factor can be changed without building them again (see
+ * withSearchFactor).
+ */
+public final class ProjectionForest implements NeighborSearch {
+
+    public static final int DEFAULT_TREE_COUNT = 8;
+    public static final int DEFAULT_LEAF_SIZE = 16;
+    public static final int DEFAULT_SEARCH_FACTOR = 20;
+
+    private final PackedPoints points;
+    private final VectorMetric metric;
+    private final Tree[] trees;
+    private final int searchFactor;
+
+    /**
+     * Builds a forest with the default number of trees, leaf size and search factor.
+     */
+    public ProjectionForest(PackedPoints points, VectorMetric metric) {
+        this(points, metric, DEFAULT_TREE_COUNT, DEFAULT_LEAF_SIZE, DEFAULT_SEARCH_FACTOR,
+                new Random(0));
+    }
+
+    /**
+     * @param points training set
+     * @param metric distance between the vectors
+     * @param treeCount number of trees
+     * @param leafSize maximal number of points in a leaf
+     * @param searchFactor number of points compared to a value for each neighbor wanted
+     * @param random source of the random directions
+     */
+    public ProjectionForest(PackedPoints points, VectorMetric metric, int treeCount,
+                            int leafSize, int searchFactor, Random random) {
+        if (treeCount < 1 || leafSize < 1 || searchFactor < 1) {
+            throw new IllegalArgumentException("the number of trees, the leaf size and the "
+                    + "search factor must be at least 1");
+        }
+        this.points = points;
+        this.metric = metric;
+        this.searchFactor = searchFactor;
+        this.trees = new Tree[treeCount];
+        for (int i = 0; i < treeCount; i++) {
+            trees[i] = new Tree(points, leafSize, random);
+        }
+    }
+
+    private ProjectionForest(ProjectionForest forest, int searchFactor) {
+        this.points = forest.points;
+        this.metric = forest.metric;
+        this.trees = forest.trees;
+        this.searchFactor = searchFactor;
+    }
+
+    public PackedPoints getPoints() {
+        return points;
+    }
+
+    public int getSearchFactor() {
+        return searchFactor;
+    }
+
+    /**
+     * @return a forest sharing the trees of this one, with another search factor
+     */
+    public ProjectionForest withSearchFactor(int newSearchFactor) {
+        if (newSearchFactor < 1) {
+            throw new IllegalArgumentException("the search factor must be at least 1");
+        }
+        return new ProjectionForest(this, newSearchFactor);
+    }
+
+    @Override
+    public int[] nearest(FeatureVector value, int k) {
+        int neighborCount = Math.min(k, points.size());
+        if (neighborCount <= 0) {
+            return new int[0];
+        }
+        int[] candidates = candidates(value.features,
+                (int) Math.min((long) searchFactor * neighborCount, points.size()));
+
+        double[] coordinates = points.coordinates();
+        int dimension = points.dimension();
+        NeighborHeap neighbors = new NeighborHeap(neighborCount);
+        for (int candidate : candidates) {
+            neighbors.offer(candidate, metric.between(value.features, 0, coordinates,
+                    candidate * dimension, dimension));
+        }
+        return PackedPoints.drain(neighbors);
+    }
+
+    /**
+     * Collects the points of the leaves closest to the value, best leaves first across all the
+     * trees, until there are enough of them. The trees share many points, so each point is
+     * counted and compared once.
+     * @return the indices of the collected points, without duplicates
+     */
+    private int[] candidates(double[] features, int wanted) {
+        Frontier frontier = new Frontier();
+        for (int tree = 0; tree < trees.length; tree++) {
+            frontier.push(Double.POSITIVE_INFINITY, tree, 0);
+        }
+
+        // the last leaf may go beyond the wanted points by less than a leaf
+        int[] candidates = new int[(int) Math.min((long) wanted + trees[0].leafSize,
+                points.size())];
+        CandidateSet collected = new CandidateSet(candidates.length);
+        int count = 0;
+        while (frontier.size > 0 && count < wanted) {
+            double priority = frontier.priorities[0];
+            int treeIndex = frontier.trees[0];
+            Tree tree = trees[treeIndex];
+            int node = frontier.nodes[0];
+            frontier.pop();
+
+            // go down to a leaf, keeping the other side of each split for later
+            while (tree.left[node] >= 0) {
+                double margin = tree.margin(node, features);
+                int near = margin < 0 ? tree.left[node] : tree.right[node];
+                int far = margin < 0 ? tree.right[node] : tree.left[node];
+                frontier.push(Math.min(priority, -Math.abs(margin)), treeIndex, far);
+                node = near;
+            }
+            for (int i = tree.starts[node]; i < tree.ends[node]; i++) {
+                if (collected.add(tree.order[i])) {
+                    candidates[count++] = tree.order[i];
+                }
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * Measures how many of the exact neighbors are found by this forest.
+     * @param values values for which we look for neighbors
+     * @param k number of neighbors
+     * @return the ratio of the exact k nearest neighbors found, between 0 and 1
+     */
+    public double recall(List<? extends LabelledPoint<FeatureVector>> values, int k) {
+        long found = 0;
+        long expected = 0;
+        for (LabelledPoint<FeatureVector> value : values) {
+            int[] exact = points.nearest(metric, value.getValue().features, k);
+            int[] approximate = nearest(value.getValue(), k);
+            Arrays.sort(approximate);
+            for (int index : exact) {
+                if (Arrays.binarySearch(approximate, index) >= 0) {
+                    found++;
+                }
+            }
+            expected += exact.length;
+        }
+        return expected == 0 ? 1.0 : (double) found / expected;
+    }
+
+    /**
+     * Random projection tree, stored in arrays. Each node is a range of order, the range of an
+     * inner node being split in its two children by a hyperplane.
+     */
+    private static final class Tree {
+        private final int leafSize;
+        private final int dimension;
+        private final double[] coordinates;
+        private final int[] order;
+        private int nodeCount;
+        private int[] starts;
+        private int[] ends;
+        /**
+         * Children of the inner nodes, -1 for a leaf.
+         */
+        private int[] left;
+        private int[] right;
+        /**
+         * Unit normal of the splitting plane of each node, node after node.
+         */
+        private double[] normals;
+        private double[] offsets;
+
+        Tree(PackedPoints points, int leafSize, Random random) {
+            this.leafSize = leafSize;
+            this.dimension = points.dimension();
+            this.coordinates = points.coordinates();
+            this.order = new int[points.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            int capacity = 2 * (order.length / Math.max(1, leafSize / 2)) + 1;
+            this.starts = new int[capacity];
+            this.ends = new int[capacity];
+            this.left = new int[capacity];
+            this.right = new int[capacity];
+            this.normals = new double[capacity * dimension];
+            this.offsets = new double[capacity];
+            build(0, order.length, random, new double[order.length]);
+        }
+
+        private int build(int start, int end, Random random, double[] projections) {
+            int node = newNode(start, end);
+            if (end - start <= leafSize || dimension == 0) {
+                return node;
+            }
+            chooseNormal(node, start, end, random);
+            for (int i = start; i < end; i++) {
+                projections[i] = project(node, coordinates, order[i] * dimension);
+            }
+            int middle = (start + end) >>> 1;
+            select(projections, start, end - 1, middle);
+            offsets[node] = projections[middle];
+            int leftChild = build(start, middle, random, projections);
+            int rightChild = build(middle, end, random, projections);
+            left[node] = leftChild;
+            right[node] = rightChild;
+            return node;
+        }
+
+        private int newNode(int start, int end) {
+            if (nodeCount == starts.length) {
+                int capacity = 2 * nodeCount;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                left = Arrays.copyOf(left, capacity);
+                right = Arrays.copyOf(right, capacity);
+                normals = Arrays.copyOf(normals, capacity * dimension);
+                offsets = Arrays.copyOf(offsets, capacity);
+            }
+            starts[nodeCount] = start;
+            ends[nodeCount] = end;
+            left[nodeCount] = -1;
+            right[nodeCount] = -1;
+            return nodeCount++;
+        }
+
+        /**
+         * Uses the direction between two random points of the node, so the directions follow
+         * the spread of the data, or a random direction if the points are equal.
+         */
+        private void chooseNormal(int node, int start, int end, Random random) {
+            int offset = node * dimension;
+            double norm = 0;
+            for (int attempt = 0; attempt < 4 && norm == 0; attempt++) {
+                int point1 = order[start + random.nextInt(end - start)] * dimension;
+                int point2 = order[start + random.nextInt(end - start)] * dimension;
+                norm = 0;
+                for (int axis = 0; axis < dimension; axis++) {
+                    double difference = coordinates[point1 + axis] - coordinates[point2 + axis];
+                    normals[offset + axis] = difference;
+                    norm += difference * difference;
+                }
+            }
+            while (norm == 0) {
+                for (int axis = 0; axis < dimension; axis++) {
+                    normals[offset + axis] = random.nextGaussian();
+                    norm += normals[offset + axis] * normals[offset + axis];
+                }
+            }
+            norm = Math.sqrt(norm);
+            for (int axis = 0; axis < dimension; axis++) {
+                normals[offset + axis] /= norm;
+            }
+        }
+
+        private double project(int node, double[] vector, int vectorOffset) {
+            int offset = node * dimension;
+            double projection = 0;
+            for (int axis = 0; axis < dimension; axis++) {
+                projection += normals[offset + axis] * vector[vectorOffset + axis];
+            }
+            return projection;
+        }
+
+        /**
+         * @return signed distance of the vector to the splitting plane of the node, negative on
+         * the side of the left child.
+         */
+        double margin(int node, double[] features) {
+            return project(node, features, 0) - offsets[node];
+        }
+
+        /**
+         * Moves the points between low and high (included) so the point at index nth has the
+         * nth projection, lower projections before it and greater ones after it.
+         */
+        private void select(double[] projections, int low, int high, int nth) {
+            while (low < high) {
+                double pivot = projections[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while (i <= j) {
+                    while (projections[i] < pivot) {
+                        i++;
+                    }
+                    while (projections[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(projections, i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (nth <= j) {
+                    high = j;
+                }
+                else if (nth >= i) {
+                    low = i;
+                }
+                else {
+                    return;
+                }
+            }
+        }
+
+        private void swap(double[] projections, int i, int j) {
+            double projection = projections[i];
+            projections[i] = projections[j];
+            projections[j] = projection;
+            int point = order[i];
+            order[i] = order[j];
+            order[j] = point;
+        }
+    }
+
+    /**
+     * Set of point indices with a fixed capacity, by open addressing, so the candidates of a
+     * search are deduplicated without allocating a mark per point of the training set.
+     */
+    private static final class CandidateSet {
+        /**
+         * Index plus one of the points, 0 for an empty slot.
+         */
+        private final int[] slots;
+
+        CandidateSet(int capacity) {
+            this.slots = new int[Integer.highestOneBit(Math.max(1, capacity)) << 2];
+        }
+
+        /**
+         * @return true if the index was not in the set yet
+         */
+        boolean add(int index) {
+            int mask = slots.length - 1;
+            int slot = ((index * 0x9E3779B9) >>> 16) & mask;
+            while (slots[slot] != 0) {
+                if (slots[slot] == index + 1) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Max heap of the nodes left to visit, the priority of a node being minus the distance of
+     * the value to the closest splitting plane on the way to the node.
+     */
+    private static final class Frontier {
+        private double[] priorities = new double[16];
+        private int[] trees = new int[16];
+        private int[] nodes = new int[16];
+        private int size;
+
+        void push(double priority, int tree, int node) {
+            if (size == priorities.length) {
+                priorities = Arrays.copyOf(priorities, 2 * size);
+                trees = Arrays.copyOf(trees, 2 * size);
+                nodes = Arrays.copyOf(nodes, 2 * size);
+            }
+            int child = size++;
+            while (child > 0) {
+                int parent = (child - 1) / 2;
+                if (priorities[parent] >= priority) {
+                    break;
+                }
+                move(parent, child);
+                child = parent;
+            }
+            priorities[child] = priority;
+            trees[child] = tree;
+            nodes[child] = node;
+        }
+
+        void pop() {
+            size--;
+            double priority = priorities[size];
+            int tree = trees[size];
+            int node = nodes[size];
+            int parent = 0;
+            while (2 * parent + 1 < size) {
+                int child = 2 * parent + 1;
+                if (child + 1 < size && priorities[child + 1] > priorities[child]) {
+                    child++;
+                }
+                if (priorities[child] <= priority) {
+                    break;
+                }
+                move(child, parent);
+                parent = child;
+            }
+            priorities[parent] = priority;
+            trees[parent] = tree;
+            nodes[parent] = node;
+        }
+
+        private void move(int from, int to) {
+            priorities[to] = priorities[from];
+            trees[to] = trees[from];
+            nodes[to] = nodes[from];
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.Distance;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+import fr.inria.tacoma.knn.core.KnnBelief;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.SupportCombination;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Knn on feature vectors. By default the neighbors are searched exactly, by a KD-tree over the
+ * packed coordinates of the training set when the distance allows it (see
+ * PackedPoints.exactSearch), and the masses are the same as the ones of GenericKnn with the same
+ * distance. An approximate search (see ProjectionForest) can be given instead.
+ */
+public class VectorKnnBelief implements KnnBelief<FeatureVector> {
+
+    /**
+     * Buffer of the merged ignorances reused by toMass.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
+    private final int k;
+    private final double alpha;
+    private final FrameOfDiscernment frame;
+    private final PackedPoints points;
+    private final Map<String, Double> gammaProvider;
+    private final double[] gammas;
+    private final Function<List<MassFunction>, MassFunction> combination;
+    private final VectorMetric metric;
+    private final NeighborSearch search;
+
+    public VectorKnnBelief(List<? extends LabelledPoint<FeatureVector>> points, int k,
+                           double alpha, FrameOfDiscernment frame,
+                           Function<List<MassFunction>, MassFunction> combination,
+                           Distance<FeatureVector> distance,
+                           Map<String, Double> gammaProvider) {
+        this(new PackedPoints(frame, points), k, alpha, combination, distance, gammaProvider);
+    }
+
+    public VectorKnnBelief(PackedPoints points, int k, double alpha,
+                           Function<List<MassFunction>, MassFunction> combination,
+                           Distance<FeatureVector> distance,
+                           Map<String, Double> gammaProvider) {
+        this(points, k, alpha, combination, distance, gammaProvider, null);
+    }
+
+    /**
+     * @param search search of the neighbors among the points, null for the exact search of
+     *               the points (see PackedPoints.exactSearch), which is then built by this call
+     */
+    public VectorKnnBelief(PackedPoints points, int k, double alpha,
+                           Function<List<MassFunction>, MassFunction> combination,
+                           Distance<FeatureVector> distance,
+                           Map<String, Double> gammaProvider, NeighborSearch search) {
+        assert alpha > 0;
+        this.k = k;
+        this.alpha = alpha;
+        this.frame = points.getFrame();
+        this.points = points;
+        this.combination = combination;
+        this.metric = VectorMetric.of(distance);
+        this.gammaProvider = gammaProvider;
+        this.gammas = points.byOrdinal(gammaProvider);
+        this.search = search != null ? search : points.exactSearch(metric);
+    }
+
+    @Override
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public double getAlpha() {
+        return alpha;
+    }
+
+    @Override
+    public Map<String, Double> getGammas() {
+        return gammaProvider;
+    }
+
+    @Override
+    public KnnBelief<FeatureVector> withAlpha(double newAlpha) {
+        return new VectorKnnBelief(points, k, newAlpha, combination, metric, gammaProvider,
+                search);
+    }
+
+    @Override
+    public KnnBelief<FeatureVector> withK(int newK) {
+        return new VectorKnnBelief(points, newK, alpha, combination, metric, gammaProvider,
+                search);
+    }
+
+    @Override
+    public KnnBelief<FeatureVector> withAlphaAndK(double newAlpha, int newK) {
+        return new VectorKnnBelief(points, newK, newAlpha, combination, metric,
+                gammaProvider, search);
+    }
+
+    @Override
+    public MutableMass toMass(FeatureVector sensorValue) {
+        MutableMass mass = frame.newMass();
+        toMassInto(sensorValue, mass);
+        return mass;
+    }
+
+    @Override
+    public void toMassInto(FeatureVector sensorValue, MutableMass target) {
+        int dimension = points.dimension();
+        if (sensorValue.features.length != dimension) {
+            throw new IllegalArgumentException("expected " + dimension + " features but got "
+                    + sensorValue.features.length);
+        }
+
+        int[] nearest = search.nearest(sensorValue, k);
+        if (combination instanceof SupportCombination) {
+            // the supports are merged by label without creating their mass functions
+            SupportCombination supports = (SupportCombination) combination;
+            int labelCount = points.labelCount();
+            double[] ignorances = scratch(labelCount);
+            Arrays.fill(ignorances, 0, labelCount, 1.0);
+            for (int index : nearest) {
+                int label = points.labelOrdinal(index);
+                ignorances[label] = supports.merge(ignorances[label], support(sensorValue, index));
+            }
+            supports.combineInto(frame, ignorances, target);
+            return;
+        }
+        MassFunction[] masses = new MassFunction[nearest.length];
+        for (int i = 0; i < nearest.length; i++) {
+            masses[i] = getMassFunction(sensorValue, nearest[i]);
+        }
+        InPlaceBeliefModel.copy(combination.apply(Arrays.asList(masses)), target);
+    }
+
+    /**
+     * @return the scratch buffer of the current thread, with at least the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < labelCount) {
+            buffer = new double[labelCount];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    private MassFunction getMassFunction(FeatureVector value, int index) {
+        MutableMass mass = frame.newMass();
+        mass.addToFocal(points.stateSet(points.labelOrdinal(index)), support(value, index));
+        mass.putRemainingOnIgnorance();
+        return mass;
+    }
+
+    /**
+     * @return mass given by a point to its label
+     */
+    private double support(FeatureVector value, int index) {
+        int dimension = points.dimension();
+        double distance = metric.between(value.features, 0, points.coordinates(),
+                index * dimension, dimension);
+        return alpha * Math.exp(-distance * (1.0 / gammas[points.labelOrdinal(index)]));
+    }
+
+    @Override
+    public MassFunction toMassWithoutValue() {
+        MutableMass massFunction = frame.newMass();
+        massFunction.putRemainingOnIgnorance();
+        return massFunction;
+    }
+
+    /**
+     * @return the search of the neighbors used by this model
+     */
+    public NeighborSearch getSearch() {
+        return search;
+    }
+
+    @Override
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+}
@@ -0,0 +1,124 @@
+package fr.inria.tacoma.knn.multidimensional;
+
+import fr.inria.tacoma.knn.core.AxisBoundedDistance;
+import fr.inria.tacoma.knn.core.Distance;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Distance between feature vectors, which can be computed directly on packed coordinates (see
+ * PackedPoints) so the neighbor search is a loop over a primitive array. A metric tells how it
+ * is bounded by the difference on each axis (see axisFactor), so the exact search can skip the
+ * points too far on an axis.
+ */
+@FunctionalInterface
+public interface VectorMetric extends AxisBoundedDistance<FeatureVector> {
+
+    VectorMetric EUCLIDEAN = withAxisFactors(
+            (coordinates1, offset1, coordinates2, offset2, dimension) -> {
+                double sum = 0;
+                for (int axis = 0; axis < dimension; axis++) {
+                    double difference = coordinates1[offset1 + axis]
+                            - coordinates2[offset2 + axis];
+                    sum += difference * difference;
+                }
+                return Math.sqrt(sum);
+            }, axis -> 1);
+
+    VectorMetric MANHATTAN = withAxisFactors(
+            (coordinates1, offset1, coordinates2, offset2, dimension) -> {
+                double sum = 0;
+                for (int axis = 0; axis < dimension; axis++) {
+                    sum += Math.abs(coordinates1[offset1 + axis] - coordinates2[offset2 + axis]);
+                }
+                return sum;
+            }, axis -> 1);
+
+    /**
+     * Distance between the vectors whose coordinates start at the given offsets.
+     */
+    double between(double[] coordinates1, int offset1, double[] coordinates2, int offset2,
+                   int dimension);
+
+    /**
+     * Nothing is known of a metric given as a lambda, so it is not bounded by default (see
+     * withAxisFactors).
+     */
+    @Override
+    default double axisFactor(int axis) {
+        return 0;
+    }
+
+    @Override
+    default double between(FeatureVector vector1, FeatureVector vector2) {
+        if (vector1.features.length != vector2.features.length) {
+            throw new IllegalArgumentException("vectors of dimension " + vector1.features.length
+                    + " and " + vector2.features.length + " can not be compared");
+        }
+        return between(vector1.features, 0, vector2.features, 0, vector1.features.length);
+    }
+
+    /**
+     * Euclidean distance where the squared difference on each axis is multiplied by a weight.
+     * Weighting each axis by the inverse of its variance puts features of different units on
+     * the same scale. The factor of an axis is the square root of its weight.
+     * @param weights weight of each axis
+     */
+    static VectorMetric weighted(double... weights) {
+        for (double weight : weights) {
+            if (!(weight >= 0)) {
+                throw new IllegalArgumentException("weights must be positive: "
+                        + Arrays.toString(weights));
+            }
+        }
+        double[] axisWeights = weights.clone();
+        return withAxisFactors((coordinates1, offset1, coordinates2, offset2, dimension) -> {
+            if (dimension != axisWeights.length) {
+                throw new IllegalArgumentException("expected vectors of dimension "
+                        + axisWeights.length + " but got " + dimension);
+            }
+            double sum = 0;
+            for (int axis = 0; axis < dimension; axis++) {
+                double difference = coordinates1[offset1 + axis] - coordinates2[offset2 + axis];
+                sum += axisWeights[axis] * difference * difference;
+            }
+            return Math.sqrt(sum);
+        }, axis -> axis < axisWeights.length ? Math.sqrt(axisWeights[axis]) : 0);
+    }
+
+    /**
+     * Gives a metric computing the same distance as the given one, with the given factor per
+     * axis (see AxisBoundedDistance.axisFactor).
+     * @param metric distance between the vectors
+     * @param axisFactors factor of each axis, such that the distance between two vectors is
+     *                    never lower than their difference on an axis times its factor
+     */
+    static VectorMetric withAxisFactors(VectorMetric metric, IntToDoubleFunction axisFactors) {
+        return new VectorMetric() {
+            @Override
+            public double between(double[] coordinates1, int offset1, double[] coordinates2,
+                                  int offset2, int dimension) {
+                return metric.between(coordinates1, offset1, coordinates2, offset2, dimension);
+            }
+
+            @Override
+            public double axisFactor(int axis) {
+                return axisFactors.applyAsDouble(axis);
+            }
+        };
+    }
+
+    /**
+     * Gives a metric computing the same distance as the given one. The distance is returned as
+     * is when it already is a metric, otherwise vectors are created from the coordinates.
+     */
+    static VectorMetric of(Distance<FeatureVector> distance) {
+        if (distance instanceof VectorMetric) {
+            return (VectorMetric) distance;
+        }
+        return (coordinates1, offset1, coordinates2, offset2, dimension) -> distance.between(
+                new FeatureVector(Arrays.copyOfRange(coordinates1, offset1, offset1 + dimension)),
+                new FeatureVector(Arrays.copyOfRange(coordinates2, offset2, offset2 + dimension)));
+    }
+}
@@ -3,12 +3,15 @@ package fr.inria.tacoma.knn.unidimensional;
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.knn.util.KnnUtils;
 
 import java.io.PrintStream;
-import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class BeliefModelPrinter {
@@ -16,11 +19,14 @@ public class BeliefModelPrinter {
     public static void printSensorBeliefAsCSV(SensorBeliefModel<Double> beliefModel,
                                                 PrintStream printStream, double min, double max,
                                               int numPoints) {
+        List<Double> values = IntStream.range(0, numPoints)
+                .mapToObj(x -> min + (x * ((max - min) / numPoints)))
+                .collect(Collectors.toList());
+        MutableMass[] masses = KnnUtils.toMasses(beliefModel, values);
         TreeMap<Double, MassFunction> massFunctionSet = new TreeMap<>();
-        Map<Double, MassFunction> syncMap = Collections.synchronizedMap(massFunctionSet);
-        IntStream.range(0, numPoints).parallel()
-                .mapToDouble(x -> min + (x * ((max - min) / numPoints)))
-                .forEach(value -> syncMap.put(value, beliefModel.toMass(value)));
+        for (int i = 0; i < masses.length; i++) {
+            massFunctionSet.put(values.get(i), masses[i]);
+        }
 
         printSensorBeliefAsCSV(massFunctionSet, beliefModel.getFrame(), printStream);
     }
@@ -0,0 +1,325 @@
+package fr.inria.tacoma.knn.unidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+
+import java.util.*;
+
+/**
+ * Piecewise linear lookup table of a one dimensional model. The neighbors of a value only change
+ * at a finite set of breakpoints, and between two breakpoints every focal mass is a smooth
+ * function of the value, so it is approximated by linear pieces until the error is below a
+ * given bound. Getting a mass function is then a binary search and an interpolation.
+ *
+ * The error bound is a sampled one: the interpolation of each piece is compared to the model at
+ * CHECKS - 1 evenly spaced values inside the piece, with half of the bound as a margin for the
+ * values in between. A piece still imprecise after MAX_DEPTH splits, such as one around a
+ * discontinuity missed by the breakpoints, is kept and counted (see getImprecisePieceCount).
+ *
+ * Far from the training points, the model is sampled until it is close enough to the total
+ * ignorance, and the last pieces are extended as constants.
+ */
+public class CompiledBeliefModel implements InPlaceBeliefModel<Double> {
+
+    /**
+     * Number of times a piece can be split in two while looking for the error bound.
+     */
+    private static final int MAX_DEPTH = 40;
+
+    /**
+     * Number of intervals between the values at which the interpolation of a piece is checked.
+     */
+    private static final int CHECKS = 8;
+
+    private static final double[] IGNORANCE = {1.0};
+
+    /**
+     * Mass function of a model when the window of neighbors starts at the given index.
+     */
+    @FunctionalInterface
+    interface WindowMass {
+        MassFunction toMass(double value, int start);
+    }
+
+    private final FrameOfDiscernment frame;
+    private final StateSet[] focalSets;
+    private final double[] nodes;
+    private final double[] masses;
+    private final int imprecisePieceCount;
+
+    private CompiledBeliefModel(FrameOfDiscernment frame, StateSet[] focalSets, double[] nodes,
+                                double[] masses, int imprecisePieceCount) {
+        this.frame = frame;
+        this.focalSets = focalSets;
+        this.nodes = nodes;
+        this.masses = masses;
+        this.imprecisePieceCount = imprecisePieceCount;
+    }
+
+    /**
+     * Compiles a model which combines the masses of windows of neighbors.
+     * @param points training points of the model
+     * @param size number of points in the windows of the model
+     * @param windowMass mass function of the model for a given window
+     * @param maxError maximal absolute error allowed on any focal element, checked at sampled
+     *                 values of each piece
+     * @return the compiled model
+     */
+    static CompiledBeliefModel compile(SortedPoints points, int size, WindowMass windowMass,
+                                       double maxError) {
+        if (!(maxError > 0)) {
+            throw new IllegalArgumentException("the error bound must be positive");
+        }
+        return new Compiler(points, size, windowMass, maxError).compile();
+    }
+
+    @Override
+    public MutableMass toMass(Double sensorValue) {
+        MutableMass mass = frame.newMass();
+        write(sensorValue, mass);
+        return mass;
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        write(sensorValue, target);
+    }
+
+    /**
+     * Writes the mass function of a value into a mass function without focal element.
+     */
+    private void write(double sensorValue, MutableMass mass) {
+        int columns = focalSets.length;
+        int node = lastNodeBefore(sensorValue);
+        if (node < 0 || node == nodes.length - 1) {
+            int offset = Math.max(node, 0) * columns;
+            for (int column = 0; column < columns; column++) {
+                if (masses[offset + column] != 0) {
+                    mass.set(focalSets[column], masses[offset + column]);
+                }
+            }
+            return;
+        }
+
+        double ratio = (sensorValue - nodes[node]) / (nodes[node + 1] - nodes[node]);
+        int offset = node * columns;
+        for (int column = 0; column < columns; column++) {
+            double low = masses[offset + column];
+            double value = low + (masses[offset + columns + column] - low) * ratio;
+            if (value != 0) {
+                mass.set(focalSets[column], value);
+            }
+        }
+    }
+
+    /**
+     * @return index of the last node lower or equal to the value, -1 if there is none. Nodes
+     * can be duplicated at breakpoints, the last one holds the value at the breakpoint.
+     */
+    private int lastNodeBefore(double value) {
+        int low = 0;
+        int high = nodes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (nodes[middle] <= value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * @return number of nodes of the table
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * @return number of pieces whose interpolation was still above the error bound at some
+     * checked value after MAX_DEPTH splits, 0 when the bound holds at every checked value
+     */
+    public int getImprecisePieceCount() {
+        return imprecisePieceCount;
+    }
+
+    @Override
+    public MassFunction toMassWithoutValue() {
+        MutableMass massFunction = frame.newMass();
+        massFunction.putRemainingOnIgnorance();
+        return massFunction;
+    }
+
+    @Override
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * Samples the model and builds the table.
+     */
+    private static class Compiler {
+        private final SortedPoints points;
+        private final int size;
+        private final WindowMass windowMass;
+        private final double maxError;
+        private final Map<StateSet, Integer> columns = new LinkedHashMap<>();
+        private final List<Double> nodes = new ArrayList<>();
+        private final List<double[]> masses = new ArrayList<>();
+        private int imprecisePieceCount;
+
+        Compiler(SortedPoints points, int size, WindowMass windowMass, double maxError) {
+            this.points = points;
+            this.size = size;
+            this.windowMass = windowMass;
+            this.maxError = maxError;
+            // the total ignorance is the first column, see IGNORANCE
+            columns.put(points.getFrame().fullIgnoranceSet(), 0);
+        }
+
+        CompiledBeliefModel compile() {
+            double[] breakpoints = points.windowBreakpoints(size);
+            double first = points.value(0);
+            double last = points.value(points.size() - 1);
+            if (breakpoints.length > 0) {
+                first = Math.min(first, Math.nextDown(breakpoints[0]));
+                last = Math.max(last, breakpoints[breakpoints.length - 1]);
+            }
+            int firstStart = points.neighborhoodStart(first, size);
+            int lastStart = points.neighborhoodStart(last, size);
+
+            // the pieces go from the first breakpoint to the last one, plus the two pieces
+            // extending to the values where the model is almost the total ignorance
+            double span = Math.max(last - first, 1.0);
+            double[] bounds = new double[breakpoints.length + 2];
+            System.arraycopy(breakpoints, 0, bounds, 1, breakpoints.length);
+            bounds[0] = ignoranceBound(first, -span, firstStart);
+            bounds[bounds.length - 1] = ignoranceBound(last, span, lastStart);
+
+            for (int piece = 0; piece < bounds.length - 1; piece++) {
+                double low = bounds[piece];
+                double high = bounds[piece + 1];
+                int start = piece == 0 ? firstStart : points.neighborhoodStart(low, size);
+                double[] lowMass = sample(low, start);
+                addNode(low, lowMass);
+                approximate(low, lowMass, high, sample(high, start), start, 0);
+            }
+            return build();
+        }
+
+        /**
+         * Looks for a value far enough from the training points for the model to be close to
+         * the total ignorance.
+         */
+        private double ignoranceBound(double from, double step, int start) {
+            double value = from;
+            for (int i = 0; i < 64; i++) {
+                value = from + step;
+                if (error(sample(value, start), IGNORANCE) <= maxError / 2) {
+                    break;
+                }
+                step *= 2;
+            }
+            return value;
+        }
+
+        /**
+         * Adds nodes between low (already added) and high until linear interpolation gives
+         * the expected precision.
+         */
+        private void approximate(double low, double[] lowMass, double high, double[] highMass,
+                                 int start, int depth) {
+            double middle = low + (high - low) / 2;
+            double[] middleMass = sample(middle, start);
+            if (isPrecise(low, lowMass, high, highMass, middleMass, start)) {
+                addNode(high, highMass);
+            }
+            else if (depth < MAX_DEPTH && middle > low && middle < high) {
+                approximate(low, lowMass, middle, middleMass, start, depth + 1);
+                approximate(middle, middleMass, high, highMass, start, depth + 1);
+            }
+            else {
+                imprecisePieceCount++;
+                addNode(high, highMass);
+            }
+        }
+
+        /**
+         * Checks the interpolation between low and high at CHECKS - 1 evenly spaced values,
+         * the middle first. The error is only known at these values, so half of the bound is
+         * kept as a margin.
+         */
+        private boolean isPrecise(double low, double[] lowMass, double high, double[] highMass,
+                                  double[] middleMass, int start) {
+            double checkedError = maxError / 2;
+            if (error(middleMass, interpolate(lowMass, highMass, 0.5)) > checkedError) {
+                return false;
+            }
+            for (int check = 1; check < CHECKS; check++) {
+                double ratio = (double) check / CHECKS;
+                if (2 * check != CHECKS && error(sample(low + (high - low) * ratio, start),
+                        interpolate(lowMass, highMass, ratio)) > checkedError) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double[] sample(double value, int start) {
+            MassFunction mass = windowMass.toMass(value, start);
+            for (StateSet stateSet : mass.getFocalStateSets()) {
+                columns.putIfAbsent(stateSet, columns.size());
+            }
+            double[] vector = new double[columns.size()];
+            mass.foreachFocalElement((stateSet, focalMass) ->
+                    vector[columns.get(stateSet)] = focalMass);
+            return vector;
+        }
+
+        private void addNode(double value, double[] mass) {
+            nodes.add(value);
+            masses.add(mass);
+        }
+
+        private static double[] interpolate(double[] low, double[] high, double ratio) {
+            double[] result = new double[Math.max(low.length, high.length)];
+            for (int i = 0; i < result.length; i++) {
+                double lowValue = get(low, i);
+                result[i] = lowValue + (get(high, i) - lowValue) * ratio;
+            }
+            return result;
+        }
+
+        private static double error(double[] mass1, double[] mass2) {
+            double error = 0;
+            for (int i = 0; i < Math.max(mass1.length, mass2.length); i++) {
+                error = Math.max(error, Math.abs(get(mass1, i) - get(mass2, i)));
+            }
+            return error;
+        }
+
+        private static double get(double[] mass, int column) {
+            return column < mass.length ? mass[column] : 0;
+        }
+
+        private CompiledBeliefModel build() {
+            StateSet[] focalSets = columns.keySet().toArray(new StateSet[columns.size()]);
+            double[] nodeArray = new double[nodes.size()];
+            double[] massArray = new double[nodes.size() * focalSets.length];
+            for (int node = 0; node < nodeArray.length; node++) {
+                nodeArray[node] = nodes.get(node);
+                double[] mass = masses.get(node);
+                System.arraycopy(mass, 0, massArray, node * focalSets.length, mass.length);
+            }
+            return new CompiledBeliefModel(points.getFrame(), focalSets, nodeArray, massArray,
+                    imprecisePieceCount);
+        }
+    }
+}
@@ -1,87 +1,54 @@
 package fr.inria.tacoma.knn.unidimensional;
 
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
-import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
-import fr.inria.tacoma.bft.util.Mass;
+import fr.inria.tacoma.knn.core.Distance;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.util.ConsonantMass;
+import fr.inria.tacoma.knn.util.ConsonantModel;
+import fr.inria.tacoma.knn.util.SupportCombinations;
 
 import java.util.*;
-import java.util.function.BiFunction;
 
 /**
- * Optimization of the Knn for a double value and a Dempster combination.
+ * Optimization of the Knn for a double value and a Dempster combination, with an alpha per
+ * label. The mass functions are given in their consonant form.
  */
-public class DempsterAlphaDoubleKnn implements KnnBelief<Double> {
+public class DempsterAlphaDoubleKnn implements KnnBelief<Double>, ConsonantModel<Double> {
 
     private final int k;
     private final Map<String, Double> alphaProvider;
     private final FrameOfDiscernment frame;
-    private final List<LabelledPoint<Double>> sortedPoints;
+    private final SortedPoints points;
     private final Map<String, Double> gammaProvider;
-    private final BiFunction<Double, Double, Double> distance;
+    private final double[] alphas;
+    private final double[] gammas;
+    private final ScalarDistance distance;
 
-    public DempsterAlphaDoubleKnn(List<LabelledPoint<Double>> points, int k, Map<String, Double> alphaProvider,
+    public DempsterAlphaDoubleKnn(List<? extends LabelledPoint<Double>> points, int k,
+                                  Map<String, Double> alphaProvider,
                                   FrameOfDiscernment frame,
-                                  BiFunction<Double, Double, Double> distance,
+                                  Distance<Double> distance,
                                   Map<String, Double> gammaProvider) {
-        this(points, k, alphaProvider, frame, distance, gammaProvider, false);
+        this(new SortedPoints(frame, points), k, alphaProvider, distance, gammaProvider);
     }
 
-    private DempsterAlphaDoubleKnn(List<LabelledPoint<Double>> points, int k,
-                                   Map<String, Double> alphaProvider,
-                                   FrameOfDiscernment frame,
-                                   BiFunction<Double, Double, Double> distance,
-                                   Map<String, Double> gammaProvider, boolean sorted) {
+    public DempsterAlphaDoubleKnn(SortedPoints points, int k,
+                                  Map<String, Double> alphaProvider,
+                                  Distance<Double> distance,
+                                  Map<String, Double> gammaProvider) {
         this.k = k;
         this.alphaProvider = alphaProvider;
-        this.frame = frame;
-        this.distance = distance;
+        this.frame = points.getFrame();
+        this.distance = ScalarDistance.of(distance);
         this.gammaProvider = gammaProvider;
-        if(sorted) {
-            this.sortedPoints = points;
-        }
-        else {
-            this.sortedPoints = new ArrayList<>(points);
-            Collections.sort(sortedPoints, (p1, p2) -> Double.compare(p1.getValue(), p2.getValue()));
-        }
-    }
-
-    private List<LabelledPoint<Double>> knn(Double value) {
-        int startIndex = 0, endIndex = sortedPoints.size() - 1 ;
-        while(endIndex - startIndex > 1) {
-            int index = (startIndex + endIndex) / 2;
-            if(sortedPoints.get(index).getValue() >= value) {
-                endIndex = index;
-            }
-            else {
-                startIndex = index;
-            }
-        }
-
-        while (endIndex - startIndex < k) {
-            if(startIndex == 0) {
-                endIndex = k;
-                break;
-            }
-            else if (endIndex == sortedPoints.size() - 1) {
-                startIndex = endIndex - k;
-                break;
-            }
-
-            Double startValue = sortedPoints.get(startIndex - 1).getValue();
-            Double endValue = sortedPoints.get(endIndex + 1).getValue();
-            if(value - startValue < endValue - value) {
-                startIndex--;
-            }
-            else {
-                endIndex++;
-            }
-        }
-
-        return sortedPoints.subList(startIndex, endIndex + 1);
+        this.alphas = points.byOrdinal(alphaProvider);
+        this.gammas = points.byOrdinal(gammaProvider);
+        this.points = points;
     }
 
     public Map<String, Double> getAlphaProvider() {
@@ -120,46 +87,83 @@ public class DempsterAlphaDoubleKnn implements KnnBelief<Double> {
 
     @Override
     public MutableMass toMass(Double sensorValue) {
-        List<LabelledPoint<Double>> knn = knn(sensorValue);
-
-        Map<StateSet, Double> optimized = new HashMap<>();
-        for (LabelledPoint<Double> point : knn) {
-            double gamma = gammaProvider.get(point.getLabel());
-            double alpha = alphaProvider.get(point.getLabel());
-            optimized.compute(point.getStateSet(), (k, v) -> {
-                double newValue = 1 - (alpha *
-                        Math.exp(-distance.apply(sensorValue, point.getValue()) / gamma));
-                if(v == null) {
-                    return newValue;
-                }
-                else {
-                    return v * newValue;
-                }
-            });
+        return toMass(sensorValue, points.neighborhoodStart(sensorValue,
+                k + 1));
+    }
+
+    @Override
+    public MutableMass[] toMasses(List<? extends Double> values) {
+        return toMasses(values.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    /**
+     * Computes the mass functions of several values, the neighbors of all the values being
+     * searched in a single sweep of the training points.
+     * @param values sensor values, in any order
+     * @return the mass functions, in the order of the values
+     */
+    public MutableMass[] toMasses(double[] values) {
+        int[] starts = points.neighborhoodStarts(values, k + 1);
+        MutableMass[] masses = new MutableMass[values.length];
+        for (int i = 0; i < values.length; i++) {
+            masses[i] = toMass(values[i], starts[i]);
         }
+        return masses;
+    }
+
+    /**
+     * Compiles the model into a lookup table, which gives mass functions without computing
+     * any neighbor nor combination.
+     * @param maxError maximal absolute error allowed on any focal element, checked at sampled
+     *                 values (see CompiledBeliefModel)
+     * @return the compiled model
+     */
+    public CompiledBeliefModel compile(double maxError) {
+        return CompiledBeliefModel.compile(points, k + 1, this::toMass, maxError);
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        toConsonantMass(sensorValue).toMassInto(target);
+    }
+
+    private MutableMass toMass(double sensorValue, int start) {
+        return toConsonantMass(sensorValue, start).toMass();
+    }
+
+    @Override
+    public ConsonantMass toConsonantMass(Double sensorValue) {
+        return toConsonantMass(sensorValue, points.neighborhoodStart(sensorValue,
+                k + 1));
+    }
 
-        MutableMass resultMass = frame.newMass();
-
-        double ignoranceMass = 1;
-        for (StateSet stateSet : optimized.keySet()) {
-            double result = 1;
-            for (Map.Entry<StateSet, Double> entry : optimized.entrySet()) {
-                Double value = entry.getValue();
-                if(!entry.getKey().equals(stateSet)) {
-                    result = result * value;
-                }
-                else {
-                    result = result * (1 - value);
-                }
-
-                ignoranceMass = ignoranceMass * value;
-            }
-            resultMass.set(stateSet, result);
+    /**
+     * The Dempster's combination of the neighbors is never computed, the plausibilities of its
+     * consonant form come from the products of the ignorances of each label.
+     */
+    private ConsonantMass toConsonantMass(double sensorValue, int start) {
+        int end = Math.min(start + k + 1, points.size());
+
+        double[] products = new double[points.labelCount()];
+        Arrays.fill(products, 1.0);
+        for (int i = start; i < end; i++) {
+            int label = points.labelOrdinal(i);
+            products[label] *= 1 - (alphas[label] *
+                    Math.exp(-distance.between(sensorValue, points.value(i)) / gammas[label]));
         }
-        resultMass.set(frame.fullIgnoranceSet(), ignoranceMass);
+        return ConsonantMass.ofSupports(frame, products);
+    }
+
 
-        resultMass.normalize();
-        return (MutableMass)Mass.toConsonant(resultMass);
+    /**
+     * The table gives the errors of the consonant forms of the combinations, with the alphas
+     * given by label (see NeighborTable.error(int, Map, Map)).
+     */
+    @Override
+    public NeighborTable neighborTable(List<? extends LabelledPoint<Double>> crossValidation,
+                                       int maxK) {
+        return NeighborTable.ofWindows(points, distance, crossValidation, maxK,
+                SupportCombinations.CONSONANT_DEMPSTER);
     }
 
 
@@ -4,84 +4,60 @@ import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.Distance;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.util.ConsonantMass;
+import fr.inria.tacoma.knn.util.ConsonantModel;
+import fr.inria.tacoma.knn.util.SupportCombinations;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiFunction;
 
 /**
  * Optimization of the Knn for a double value and a Dempster combination.
  */
-public class DempsterDoubleKnn implements KnnBelief<Double> {
+public class DempsterDoubleKnn implements KnnBelief<Double>, ConsonantModel<Double> {
+
+    /**
+     * Buffer reused by toMass, so computing a mass function only allocates the result.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
 
     private final int k;
     private final double alpha;
     private final FrameOfDiscernment frame;
-    private final List<LabelledPoint<Double>> sortedPoints;
+    private final SortedPoints points;
     private final Map<String, Double> gammaProvider;
-    private final BiFunction<Double, Double, Double> distance;
+    private final double[] gammas;
+    private final double[] inverseGammas;
+    private final ScalarDistance distance;
 
-    public DempsterDoubleKnn(List<LabelledPoint<Double>> points, int k, double alpha,
+    public DempsterDoubleKnn(List<? extends LabelledPoint<Double>> points, int k, double alpha,
                            FrameOfDiscernment frame,
-                           BiFunction<Double, Double, Double> distance,
+                           Distance<Double> distance,
                            Map<String,Double> gammaProvider) {
-        this(points, k, alpha, frame, distance, gammaProvider, false);
+        this(new SortedPoints(frame, points), k, alpha, distance, gammaProvider);
     }
 
-    private DempsterDoubleKnn(List<LabelledPoint<Double>> points, int k, double alpha,
-                            FrameOfDiscernment frame,
-                            BiFunction<Double, Double, Double> distance,
-                            Map<String,Double> gammaProvider, boolean sorted) {
+    public DempsterDoubleKnn(SortedPoints points, int k, double alpha,
+                             Distance<Double> distance,
+                             Map<String,Double> gammaProvider) {
         assert alpha > 0;
         this.k = k;
         this.alpha = alpha;
-        this.frame = frame;
-        this.distance = distance;
+        this.frame = points.getFrame();
+        this.distance = ScalarDistance.of(distance);
         this.gammaProvider = gammaProvider;
-        if(sorted) {
-            this.sortedPoints = points;
-        }
-        else {
-            this.sortedPoints = new ArrayList<>(points);
-            Collections.sort(sortedPoints, (p1, p2) -> Double.compare(p1.getValue(), p2.getValue()));
-        }
-    }
-
-    private List<LabelledPoint<Double>> knn(Double value) {
-        int startIndex = 0, endIndex = sortedPoints.size() - 1 ;
-        while(endIndex - startIndex > 1) {
-            int index = (startIndex + endIndex) / 2;
-            if(sortedPoints.get(index).getValue() >= value) {
-                endIndex = index;
-            }
-            else {
-                startIndex = index;
-            }
-        }
-
-        while (endIndex - startIndex < k) {
-            if(startIndex == 0) {
-                endIndex = k;
-                break;
-            }
-            else if (endIndex == sortedPoints.size() - 1) {
-                startIndex = endIndex - k;
-                break;
-            }
-
-            Double startValue = sortedPoints.get(startIndex - 1).getValue();
-            Double endValue = sortedPoints.get(endIndex + 1).getValue();
-            if(value - startValue < endValue - value) {
-                startIndex--;
-            }
-            else {
-                endIndex++;
-            }
+        this.gammas = points.byOrdinal(gammaProvider);
+        this.inverseGammas = new double[gammas.length];
+        for (int label = 0; label < gammas.length; label++) {
+            inverseGammas[label] = 1.0 / gammas[label];
         }
-
-        return sortedPoints.subList(startIndex, endIndex + 1);
+        this.points = points;
     }
 
     @Override
@@ -99,65 +75,170 @@ public class DempsterDoubleKnn implements KnnBelief<Double> {
         return gammaProvider;
     }
 
+    SortedPoints getPoints() {
+        return points;
+    }
+
+    ScalarDistance getDistance() {
+        return distance;
+    }
+
     @Override
     public KnnBelief<Double> withAlpha(double newAlpha) {
-        return new DempsterDoubleKnn(sortedPoints, k, newAlpha, frame, distance,
-                gammaProvider, true);
+        return new DempsterDoubleKnn(points, k, newAlpha, distance, gammaProvider);
     }
 
     @Override
     public KnnBelief<Double> withK(int newK) {
-        return new DempsterDoubleKnn(sortedPoints, newK, alpha, frame, distance,
-                gammaProvider, true);
+        return new DempsterDoubleKnn(points, newK, alpha, distance, gammaProvider);
     }
 
     @Override
     public KnnBelief<Double> withAlphaAndK(double newAlpha, int newK) {
-        return new DempsterDoubleKnn(sortedPoints, newK, newAlpha, frame, distance,
-                gammaProvider, true);
+        return new DempsterDoubleKnn(points, newK, newAlpha, distance, gammaProvider);
     }
 
     @Override
     public MutableMass toMass(Double sensorValue) {
-        List<LabelledPoint<Double>> knn = knn(sensorValue);
-
-        Map<StateSet, Double> optimized = new HashMap<>();
-        for (LabelledPoint<Double> point : knn) {
-            double gamma = gammaProvider.get(point.getLabel());
-            optimized.compute(point.getStateSet(), (k, v) -> {
-                double newValue = 1 - (alpha *
-                        Math.exp(-distance.apply(sensorValue, point.getValue()) / gamma));
-                if(v == null) {
-                    return newValue;
-                }
-                else {
-                    return v * newValue;
-                }
-            });
+        return toMass(sensorValue, points.neighborhoodStart(sensorValue,
+                k + 1));
+    }
+
+    @Override
+    public MutableMass[] toMasses(List<? extends Double> values) {
+        return toMasses(values.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    /**
+     * Computes the mass functions of several values, the neighbors of all the values being
+     * searched in a single sweep of the training points.
+     * @param values sensor values, in any order
+     * @return the mass functions, in the order of the values
+     */
+    public MutableMass[] toMasses(double[] values) {
+        int[] starts = points.neighborhoodStarts(values, k + 1);
+        MutableMass[] masses = new MutableMass[values.length];
+        for (int i = 0; i < values.length; i++) {
+            masses[i] = toMass(values[i], starts[i]);
         }
+        return masses;
+    }
 
-        MutableMass resultMass = frame.newMass();
-
-        double ignoranceMass = 1;
-        for (StateSet stateSet : optimized.keySet()) {
-            double result = 1;
-            for (Map.Entry<StateSet, Double> entry : optimized.entrySet()) {
-                Double value = entry.getValue();
-                if(!entry.getKey().equals(stateSet)) {
-                    result = result * value;
-                }
-                else {
-                    result = result * (1 - value);
-                }
-
-                ignoranceMass = ignoranceMass * value;
+    /**
+     * Compiles the model into a lookup table, which gives mass functions without computing
+     * any neighbor nor combination.
+     * @param maxError maximal absolute error allowed on any focal element, checked at sampled
+     *                 values (see CompiledBeliefModel)
+     * @return the compiled model
+     */
+    public CompiledBeliefModel compile(double maxError) {
+        return CompiledBeliefModel.compile(points, k + 1, this::toMass, maxError);
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        combine(points, products(sensorValue, points.neighborhoodStart(
+                sensorValue, k + 1)), target);
+    }
+
+    /**
+     * Decides from the products of the ignorances without creating any mass function (see
+     * PignisticDecision).
+     */
+    @Override
+    public StateSet decide(Double sensorValue) {
+        int start = points.neighborhoodStart(sensorValue, k + 1);
+        return points.stateSet(PignisticDecision.decide(points, distance, sensorValue, start,
+                Math.min(start + k + 1, points.size()), alpha, inverseGammas,
+                SupportCombinations.DEMPSTER));
+    }
+
+    private MutableMass toMass(double sensorValue, int start) {
+        return combine(points, products(sensorValue, start));
+    }
+
+    /**
+     * Gives the consonant form of the mass function without computing the combination.
+     */
+    @Override
+    public ConsonantMass toConsonantMass(Double sensorValue) {
+        return ConsonantMass.ofSupports(frame, products(sensorValue,
+                points.neighborhoodStart(sensorValue, k + 1)));
+    }
+
+    /**
+     * @return product of the masses on the full ignorance of the neighbors of each label, in
+     * the scratch buffer of the current thread
+     */
+    private double[] products(double sensorValue, int start) {
+        int end = Math.min(start + k + 1, points.size());
+        int labelCount = points.labelCount();
+        double[] products = scratch(labelCount);
+        Arrays.fill(products, 0, labelCount, 1.0);
+        for (int i = start; i < end; i++) {
+            int label = points.labelOrdinal(i);
+            products[label] *= 1 - (alpha *
+                    Math.exp(-distance.between(sensorValue, points.value(i)) / gammas[label]));
+        }
+        return products;
+    }
+
+    /**
+     * Combines with Dempster's rule simple support functions on the labels, such as the masses
+     * of neighbors. The combined mass of a label is its own support times the ignorance of the
+     * other labels, and the ignorance is the product of every ignorance. The products of the
+     * other ignorances are computed in linear time (see SupportCombinations.exclusiveProducts).
+     * @param points points giving the frame and the labels
+     * @param buffer for each label ordinal, the product of the masses on the full ignorance of
+     *               the support functions on this label (1 when there is none). The buffer must
+     *               hold twice the number of labels, the second half is overwritten.
+     * @return the combined mass function
+     */
+    public static MutableMass combine(SortedPoints points, double[] buffer) {
+        MutableMass result = points.getFrame().newMass();
+        combine(points, buffer, result);
+        return result;
+    }
+
+    /**
+     * Same as combine, the result being written into a mass function without focal element.
+     */
+    private static void combine(SortedPoints points, double[] buffer, MutableMass result) {
+        int labelCount = points.labelCount();
+        double ignoranceMass = SupportCombinations.exclusiveProducts(buffer, labelCount, buffer,
+                labelCount);
+        double total = ignoranceMass;
+        for (int label = 0; label < labelCount; label++) {
+            buffer[labelCount + label] *= 1 - buffer[label];
+            total += buffer[labelCount + label];
+        }
+
+        for (int label = 0; label < labelCount; label++) {
+            if (buffer[labelCount + label] != 0) {
+                result.set(points.stateSet(label), buffer[labelCount + label] / total);
             }
-            resultMass.set(stateSet, result);
         }
-        resultMass.set(frame.fullIgnoranceSet(), ignoranceMass);
+        result.set(points.getFrame().fullIgnoranceSet(), ignoranceMass / total);
+    }
+
+    /**
+     * @return the scratch buffer of the current thread, with at least twice the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < 2 * labelCount) {
+            buffer = new double[2 * labelCount];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
 
-        resultMass.normalize();
-        return resultMass;
+    @Override
+    public NeighborTable neighborTable(List<? extends LabelledPoint<Double>> crossValidation,
+                                       int maxK) {
+        return NeighborTable.ofWindows(points, distance, crossValidation, maxK, SupportCombinations.DEMPSTER);
     }
 
 
@@ -1,95 +1,68 @@
 package fr.inria.tacoma.knn.unidimensional;
 
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.Distance;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.core.SupportCombination;
 
 import java.util.*;
-import java.util.function.BiFunction;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 public class DoubleKnnBelief implements KnnBelief<Double> {
 
+    /**
+     * Buffer of the merged ignorances reused by toMass.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
     private final int k;
     private final double alpha;
     private final FrameOfDiscernment frame;
-    private final List<LabelledPoint<Double>> sortedPoints;
+    private final SortedPoints points;
     private final Map<String, Double> gammaProvider;
+    private final double[] inverseGammas;
     private final Function<List<MassFunction>, MassFunction> combination;
-    private final BiFunction<Double, Double, Double> distance;
+    private final ScalarDistance distance;
 
-    public DoubleKnnBelief(List<LabelledPoint<Double>> points, int k, double alpha,
+    public DoubleKnnBelief(List<? extends LabelledPoint<Double>> points, int k, double alpha,
                      FrameOfDiscernment frame,
                      Function<List<MassFunction>, MassFunction> combination,
-                     BiFunction<Double, Double, Double> distance,
+                     Distance<Double> distance,
                      Map<String,Double> gammaProvider) {
-        this(points, k, alpha, frame, combination, distance, gammaProvider, false);
+        this(new SortedPoints(frame, points), k, alpha, combination, distance, gammaProvider);
     }
 
-    private DoubleKnnBelief(List<LabelledPoint<Double>> points, int k, double alpha,
-                           FrameOfDiscernment frame,
+    public DoubleKnnBelief(SortedPoints points, int k, double alpha,
                            Function<List<MassFunction>, MassFunction> combination,
-                           BiFunction<Double, Double, Double> distance,
-                           Map<String,Double> gammaProvider, boolean sorted) {
+                           Distance<Double> distance,
+                           Map<String,Double> gammaProvider) {
         assert alpha > 0;
         this.k = k;
         this.alpha = alpha;
-        this.frame = frame;
+        this.frame = points.getFrame();
         this.combination = combination;
-        this.distance = distance;
+        this.distance = ScalarDistance.of(distance);
         this.gammaProvider = gammaProvider;
-        if(sorted) {
-            this.sortedPoints = points;
-        }
-        else {
-            this.sortedPoints = new ArrayList<>(points);
-            Collections.sort(sortedPoints, (p1,p2) -> Double.compare(p1.getValue(), p2.getValue()));
-        }
-    }
-
-    private List<LabelledPoint<Double>> knn(Double value) {
-        int startIndex = 0, endIndex = sortedPoints.size() - 1 ;
-        while(endIndex - startIndex > 1) {
-            int index = (startIndex + endIndex) / 2;
-            if(sortedPoints.get(index).getValue() >= value) {
-                endIndex = index;
-            }
-            else {
-                startIndex = index;
-            }
-        }
-
-        while (endIndex - startIndex < k) {
-            if(startIndex == 0) {
-                endIndex = k;
-                break;
-            }
-            else if (endIndex == sortedPoints.size() - 1) {
-                startIndex = endIndex - k;
-                break;
-            }
-
-            Double startValue = sortedPoints.get(startIndex - 1).getValue();
-            Double endValue = sortedPoints.get(endIndex + 1).getValue();
-            if(value - startValue < endValue - value) {
-                startIndex--;
-            }
-            else {
-                endIndex++;
-            }
+        this.inverseGammas = points.byOrdinal(gammaProvider);
+        for (int label = 0; label < inverseGammas.length; label++) {
+            inverseGammas[label] = 1.0 / inverseGammas[label];
         }
-
-        return sortedPoints.subList(startIndex, endIndex + 1);
+        this.points = points;
     }
 
-    private MassFunction getMassFunction(Double value, LabelledPoint<Double> point) {
+    private MassFunction getMassFunction(double value, int index) {
         MutableMass mass = frame.newMass();
-        double gamma = 1.0 / gammaProvider.get(point.getLabel());
-        mass.addToFocal(point.getStateSet(),
-                alpha * Math.exp(- distance.apply(value, point.getValue()) * gamma));
+        int label = points.labelOrdinal(index);
+        mass.addToFocal(points.stateSet(label), alpha * Math.exp(
+                - distance.between(value, points.value(index)) * inverseGammas[label]));
         mass.putRemainingOnIgnorance();
         return mass;
     }
@@ -109,31 +82,138 @@ public class DoubleKnnBelief implements KnnBelief<Double> {
         return gammaProvider;
     }
 
+    SortedPoints getPoints() {
+        return points;
+    }
+
+    ScalarDistance getDistance() {
+        return distance;
+    }
+
+    Function<List<MassFunction>, MassFunction> getCombination() {
+        return combination;
+    }
+
     @Override
     public KnnBelief<Double> withAlpha(double newAlpha) {
-        return new DoubleKnnBelief(sortedPoints, k, newAlpha, frame, combination, distance,
-                gammaProvider, true);
+        return new DoubleKnnBelief(points, k, newAlpha, combination, distance, gammaProvider);
     }
 
     @Override
     public KnnBelief<Double> withK(int newK) {
-        return new DoubleKnnBelief(sortedPoints, newK, alpha, frame, combination, distance,
-                gammaProvider, true);
+        return new DoubleKnnBelief(points, newK, alpha, combination, distance, gammaProvider);
     }
 
     @Override
     public KnnBelief<Double> withAlphaAndK(double newAlpha, int newK) {
-        return new DoubleKnnBelief(sortedPoints, newK, newAlpha, frame, combination, distance,
-                gammaProvider, true);
+        return new DoubleKnnBelief(points, newK, newAlpha, combination, distance,
+                gammaProvider);
     }
 
     @Override
     public MutableMass toMass(Double sensorValue) {
-        List<LabelledPoint<Double>> knn = knn(sensorValue);
-        List<MassFunction> masses = knn.stream()
-                .map(p -> getMassFunction(sensorValue, p))
-                .collect(Collectors.toList());
-        return frame.newMass(combination.apply(masses));
+        return toMass(sensorValue, points.neighborhoodStart(sensorValue,
+                k + 1));
+    }
+
+    @Override
+    public MutableMass[] toMasses(List<? extends Double> values) {
+        return toMasses(values.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    /**
+     * Computes the mass functions of several values, the neighbors of all the values being
+     * searched in a single sweep of the training points.
+     * @param values sensor values, in any order
+     * @return the mass functions, in the order of the values
+     */
+    public MutableMass[] toMasses(double[] values) {
+        int[] starts = points.neighborhoodStarts(values, k + 1);
+        MutableMass[] masses = new MutableMass[values.length];
+        for (int i = 0; i < values.length; i++) {
+            masses[i] = toMass(values[i], starts[i]);
+        }
+        return masses;
+    }
+
+    /**
+     * Compiles the model into a lookup table, which gives mass functions without computing
+     * any neighbor nor combination.
+     * @param maxError maximal absolute error allowed on any focal element, checked at sampled
+     *                 values (see CompiledBeliefModel)
+     * @return the compiled model
+     */
+    public CompiledBeliefModel compile(double maxError) {
+        return CompiledBeliefModel.compile(points, k + 1, this::toMass, maxError);
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        toMassInto(sensorValue, points.neighborhoodStart(sensorValue, k + 1),
+                target);
+    }
+
+    /**
+     * Decides from the merged ignorances without creating any mass function when the
+     * combination allows it (see PignisticDecision).
+     */
+    @Override
+    public StateSet decide(Double sensorValue) {
+        if (!PignisticDecision.supports(combination)) {
+            return KnnBelief.super.decide(sensorValue);
+        }
+        int start = points.neighborhoodStart(sensorValue, k + 1);
+        return points.stateSet(PignisticDecision.decide(points, distance, sensorValue, start,
+                Math.min(start + k + 1, points.size()), alpha, inverseGammas,
+                (SupportCombination) combination));
+    }
+
+    private MutableMass toMass(double sensorValue, int start) {
+        MutableMass mass = frame.newMass();
+        toMassInto(sensorValue, start, mass);
+        return mass;
+    }
+
+    private void toMassInto(double sensorValue, int start, MutableMass target) {
+        int end = Math.min(start + k + 1, points.size());
+        if (combination instanceof SupportCombination) {
+            // the supports are merged by label without creating their mass functions
+            SupportCombination supports = (SupportCombination) combination;
+            int labelCount = points.labelCount();
+            double[] ignorances = scratch(labelCount);
+            Arrays.fill(ignorances, 0, labelCount, 1.0);
+            for (int i = start; i < end; i++) {
+                int label = points.labelOrdinal(i);
+                ignorances[label] = supports.merge(ignorances[label], alpha * Math.exp(
+                        -distance.between(sensorValue, points.value(i)) * inverseGammas[label]));
+            }
+            supports.combineInto(frame, ignorances, target);
+            return;
+        }
+        List<MassFunction> masses = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            masses.add(getMassFunction(sensorValue, i));
+        }
+        InPlaceBeliefModel.copy(combination.apply(masses), target);
+    }
+
+    /**
+     * @return the scratch buffer of the current thread, with at least the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < labelCount) {
+            buffer = new double[labelCount];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+
+    @Override
+    public NeighborTable neighborTable(List<? extends LabelledPoint<Double>> crossValidation,
+                                       int maxK) {
+        return NeighborTable.ofWindows(points, distance, crossValidation, maxK, combination);
     }
 
 
@@ -4,19 +4,30 @@ import fr.inria.tacoma.bft.combinations.Combinations;
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.criteria.Criteria;
 import fr.inria.tacoma.bft.decision.CriteriaDecisionStrategy;
 import fr.inria.tacoma.bft.decision.Decision;
 import fr.inria.tacoma.bft.decision.DecisionStrategy;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.util.DenseMass;
+import fr.inria.tacoma.knn.util.KnnUtils;
 import org.jfree.chart.ChartPanel;
 
 import javax.swing.*;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class Errors {
 
+    /**
+     * Counts the errors and imprecisions of the decisions of a model on a cross validation set.
+     * The decision strategy may choose a union of states when the pignistic probabilities are
+     * close, so it needs the mass functions: see showPignisticErrors for the decision of a
+     * single state.
+     */
     public static void showErrors(SensorBeliefModel<Double> model,
                            List<LabelledPoint<Double>> crossValidation) {
         DecisionStrategy decisionStrategy =
@@ -24,9 +35,11 @@ public class Errors {
         int errorCount = 0;
         int imprecisionCount = 0;
 
-        for (LabelledPoint<Double> sensorValue : crossValidation) {
-            Decision decision = decisionStrategy.decide(
-                    model.toMass(sensorValue.getValue()));
+        MutableMass[] masses = KnnUtils.toMasses(model, crossValidation.stream()
+                .map(LabelledPoint::getValue).collect(Collectors.toList()));
+        for (int i = 0; i < masses.length; i++) {
+            LabelledPoint<Double> sensorValue = crossValidation.get(i);
+            Decision decision = decisionStrategy.decide(masses[i]);
             StateSet actualDecision = decision.getStateSet();
             StateSet expectedDecision = model.getFrame().toStateSet(sensorValue.getLabel());
 
@@ -46,6 +59,24 @@ public class Errors {
                 " with decision algorithm.");
     }
 
+    /**
+     * Same as showErrors with the pignistic decision of the model (see KnnBelief.decide),
+     * which gives a single state without computing the mass functions.
+     */
+    public static void showPignisticErrors(KnnBelief<Double> model,
+                                           List<LabelledPoint<Double>> crossValidation) {
+        int errorCount = 0;
+        for (LabelledPoint<Double> sensorValue : crossValidation) {
+            StateSet actualDecision = model.decide(sensorValue.getValue());
+            if (!actualDecision.equals(model.getFrame().toStateSet(sensorValue.getLabel()))) {
+                errorCount++;
+            }
+        }
+        System.out.println(errorCount + " errors out of " + crossValidation.size()
+                + " (" + (double)errorCount * 100 / crossValidation.size() +" %) tested point" +
+                " with pignistic decision.");
+    }
+
     /**
      *
      * @param models map from sensor model to their sample
@@ -63,11 +94,9 @@ public class Errors {
         FrameOfDiscernment frame = referenceList.get(0).getStateSet().getFrame();
 
 
+        List<MutableMass[]> modelMasses = toMasses(models);
         for (int i = 0; i < size; i++) {
-            final int index = i;
-            MassFunction resultingMass = models.entrySet().stream()
-                    .map(entry -> entry.getKey().toMass(entry.getValue().get(index).getValue()))
-                    .reduce(Combinations::dempster).get();
+            MassFunction resultingMass = fuse(modelMasses, i);
 
             Decision decision = decisionStrategy.decide(resultingMass);
             StateSet actualDecision = decision.getStateSet();
@@ -94,6 +123,33 @@ public class Errors {
                 " with decision algorithm.");
     }
 
+    /**
+     * Computes the mass functions of every model on its sample.
+     * @param models map from sensor model to their sample
+     * @return masses of each model, in the iteration order of the map
+     */
+    private static List<MutableMass[]> toMasses(
+            Map<SensorBeliefModel<Double>,List<LabelledPoint<Double>>> models) {
+        return models.entrySet().stream()
+                .map(entry -> KnnUtils.toMasses(entry.getKey(), entry.getValue().stream()
+                        .map(LabelledPoint::getValue).collect(Collectors.toList())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Fuses the masses of every model for the same point with Dempster's rule.
+     */
+    private static MassFunction fuse(List<MutableMass[]> modelMasses, int index) {
+        List<MassFunction> masses = new ArrayList<>(modelMasses.size());
+        for (MutableMass[] model : modelMasses) {
+            masses.add(model[index]);
+        }
+        if (DenseMass.isCheaper(masses)) {
+            return DenseMass.dempster(masses).toMass();
+        }
+        return masses.stream().reduce(Combinations::dempster).get();
+    }
+
     public static Map<Double, MassFunction> showTimeLine(
             Map<SensorBeliefModel<Double>,List<LabelledPoint<Double>>> models) {
         List<LabelledPoint<Double>> referenceList = models.values().iterator().next();
@@ -101,11 +157,9 @@ public class Errors {
         FrameOfDiscernment frame = referenceList.get(0).getStateSet().getFrame();
         SortedMap<Double, MassFunction> timeline = new TreeMap<>();
 
+        List<MutableMass[]> modelMasses = toMasses(models);
         for (int i = 0; i < size; i++) {
-            final int index = i;
-            MassFunction resultingMass = models.entrySet().stream()
-                    .map(entry -> entry.getKey().toMass(entry.getValue().get(index).getValue()))
-                    .reduce(Combinations::dempster).get();
+            MassFunction resultingMass = fuse(modelMasses, i);
             timeline.put((double)i, resultingMass);
         }
 
@@ -7,6 +7,7 @@ import fr.inria.tacoma.knn.core.Kfold;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.ScalarDistance;
 import fr.inria.tacoma.knn.util.ConsonantBeliefModel;
 import fr.inria.tacoma.knn.util.KnnUtils;
 
@@ -139,7 +140,7 @@ public class Experiments {
 
         for (double alpha = 0; alpha < 1; alpha += 0.01){
             KnnBelief<Double> beliefModel = factory.newKnnBelief(data,
-                    KnnUtils.generateGammaProvider((a, b) -> Math.abs(a - b), data), 2, alpha);
+                    KnnUtils.generateGammaProvider(ScalarDistance.ABSOLUTE, data), 2, alpha);
             System.out.println(KnnUtils.error(data, beliefModel));
         }
     }
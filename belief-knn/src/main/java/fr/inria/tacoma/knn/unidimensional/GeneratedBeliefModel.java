@@ -0,0 +1,432 @@
+package fr.inria.tacoma.knn.unidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.core.SupportCombination.Kind;
+import fr.inria.tacoma.knn.util.LabelSets;
+import fr.inria.tacoma.knn.util.SupportCombinations;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * One dimensional model whose combination of the neighbors is generated and compiled at runtime
+ * for a trained model. The loops on the labels are unrolled and alpha, the gammas and the
+ * combination rule are constants of the generated code, so the JIT compiles code specialized
+ * for the frame instead of the shared code of the engines. The neighbors are still found by the
+ * training points of the model.
+ *
+ * Generating a model needs the Java compiler, which is only available when running on a JDK.
+ * When the model can not be generated, generate gives back the model itself.
+ */
+public final class GeneratedBeliefModel implements InPlaceBeliefModel<Double> {
+
+    /**
+     * Maximal number of states of the frame, above which the unrolled code would be too large.
+     */
+    public static final int MAX_STATES = 16;
+
+    private static final AtomicInteger CLASS_COUNT = new AtomicInteger();
+
+    /**
+     * Buffer reused by toMass, so computing a mass function only allocates the result.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
+    /**
+     * Combination of the neighbors of a window, implemented by the generated classes. It is
+     * public as the generated classes have their own class loader.
+     */
+    public interface Kernel {
+        /**
+         * @param points training points of the model
+         * @param distance distance of the model
+         * @param value sensor value
+         * @param start index of the first neighbor
+         * @param end index after the last neighbor
+         * @param out array receiving the masses of the singletons by state ordinal, then the
+         *            mass of the full ignorance, then the mass of the union of the states of
+         *            the returned mask
+         * @return bits of the ordinals of the states of the union
+         */
+        long combine(SortedPoints points, ScalarDistance distance, double value, int start,
+                     int end, double[] out);
+    }
+
+    private final SortedPoints points;
+    private final int size;
+    private final ScalarDistance distance;
+    private final Kernel kernel;
+    private final FrameOfDiscernment frame;
+
+    private GeneratedBeliefModel(SortedPoints points, int size, ScalarDistance distance,
+                                 Kernel kernel) {
+        this.points = points;
+        this.size = size;
+        this.distance = distance;
+        this.kernel = kernel;
+        this.frame = points.getFrame();
+    }
+
+    /**
+     * Generates a model giving the same mass functions as the given one. The models which can
+     * be generated are DempsterDoubleKnn, and DoubleKnnBelief or TwoClassDoubleKnn with the
+     * Dempster, Dubois and Prade, Yager or cautious combination of SupportCombinations.
+     * @param model trained model
+     * @return the generated model, or the given model when it can not be generated or the
+     * generated code can not be compiled and loaded
+     */
+    public static SensorBeliefModel<Double> generate(SensorBeliefModel<Double> model) {
+        Generator generator = Generator.of(model);
+        if (generator == null) {
+            return model;
+        }
+        Kernel kernel = generator.compile();
+        if (kernel == null) {
+            return model;
+        }
+        return new GeneratedBeliefModel(generator.points, generator.size, generator.distance,
+                kernel);
+    }
+
+    /**
+     * Tells why a model is not generated, such as the diagnostics of the compiler when the
+     * generated code does not compile. The model is generated again, so this is meant to be
+     * called when generate gave back the model itself.
+     * @param model trained model
+     * @return null if the model can be generated, the reason otherwise
+     */
+    public static String generationFailure(SensorBeliefModel<Double> model) {
+        Generator generator = Generator.of(model);
+        if (generator == null) {
+            return "the model or its combination can not be generated";
+        }
+        return generator.compile() == null ? generator.failure : null;
+    }
+
+    @Override
+    public MutableMass toMass(Double sensorValue) {
+        MutableMass mass = frame.newMass();
+        write(sensorValue, mass);
+        return mass;
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        write(sensorValue, target);
+    }
+
+    /**
+     * Writes the mass function of a value into a mass function without focal element.
+     */
+    private void write(double value, MutableMass result) {
+        int start = points.neighborhoodStart(value, size);
+        int card = points.labelCount();
+        double[] masses = scratch(card + 2);
+        long union = kernel.combine(points, distance, value, start,
+                Math.min(start + size, points.size()), masses);
+
+        for (int label = 0; label < card; label++) {
+            if (masses[label] != 0) {
+                result.set(points.stateSet(label), masses[label]);
+            }
+        }
+        // the union may be the full ignorance, so the masses are added
+        if (masses[card + 1] != 0) {
+            result.addToFocal(LabelSets.of(frame).union(union), masses[card + 1]);
+        }
+        if (masses[card] > 0) {
+            result.addToFocal(frame.fullIgnoranceSet(), masses[card]);
+        }
+    }
+
+    private static double[] scratch(int length) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < length) {
+            buffer = new double[length];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    @Override
+    public MassFunction toMassWithoutValue() {
+        MutableMass massFunction = frame.newMass();
+        massFunction.putRemainingOnIgnorance();
+        return massFunction;
+    }
+
+    @Override
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * Writes and compiles the kernel of a model.
+     */
+    private static class Generator {
+        private final SortedPoints points;
+        private final int size;
+        private final ScalarDistance distance;
+        private final double alpha;
+        private final double[] inverseGammas;
+        private final Kind kind;
+        /**
+         * Why the last compilation failed.
+         */
+        private String failure;
+
+        private Generator(SortedPoints points, int k, double alpha, Map<String, Double> gammas,
+                          ScalarDistance distance,
+                          Function<List<MassFunction>, MassFunction> combination) {
+            this.points = points;
+            this.size = k + 1;
+            this.distance = distance;
+            this.alpha = alpha;
+            this.kind = SupportCombinations.kindOf(combination);
+            this.inverseGammas = points.byOrdinal(gammas);
+            for (int label = 0; label < inverseGammas.length; label++) {
+                inverseGammas[label] = 1.0 / inverseGammas[label];
+            }
+        }
+
+        /**
+         * @return the generator of the given model, null if it can not be generated
+         */
+        static Generator of(SensorBeliefModel<Double> model) {
+            Generator generator = null;
+            if (model instanceof DoubleKnnBelief) {
+                DoubleKnnBelief knn = (DoubleKnnBelief) model;
+                generator = new Generator(knn.getPoints(), knn.getK(), knn.getAlpha(),
+                        knn.getGammas(), knn.getDistance(), knn.getCombination());
+            }
+            else if (model instanceof TwoClassDoubleKnn) {
+                TwoClassDoubleKnn knn = (TwoClassDoubleKnn) model;
+                generator = new Generator(knn.getPoints(), knn.getK(), knn.getAlpha(),
+                        knn.getGammas(), knn.getDistance(), knn.getCombination());
+            }
+            else if (model instanceof DempsterDoubleKnn) {
+                DempsterDoubleKnn knn = (DempsterDoubleKnn) model;
+                generator = new Generator(knn.getPoints(), knn.getK(), knn.getAlpha(),
+                        knn.getGammas(), knn.getDistance(), SupportCombinations.DEMPSTER);
+            }
+            if (generator == null || generator.points.labelCount() > MAX_STATES
+                    || !TwoClassDoubleKnn.supports(generator.kind)) {
+                return null;
+            }
+            return generator;
+        }
+
+        /**
+         * @return the kernel, null if it could not be compiled or loaded
+         */
+        Kernel compile() {
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler == null) {
+                failure = "no Java compiler, the application does not run on a JDK";
+                return null;
+            }
+            String className = "GeneratedKernel" + CLASS_COUNT.incrementAndGet();
+            Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+            JavaFileObject source = new SimpleJavaFileObject(URI.create("string:///"
+                    + className + JavaFileObject.Kind.SOURCE.extension),
+                    JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source(className);
+                }
+            };
+            try (JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(
+                    compiler.getStandardFileManager(null, null, null)) {
+                @Override
+                public JavaFileObject getJavaFileForOutput(Location location, String name,
+                                                           JavaFileObject.Kind kind,
+                                                           FileObject sibling) {
+                    return new SimpleJavaFileObject(URI.create("bytes:///" + name + kind.extension),
+                            kind) {
+                        @Override
+                        public OutputStream openOutputStream() {
+                            return classes.computeIfAbsent(name,
+                                    ignored -> new ByteArrayOutputStream());
+                        }
+                    };
+                }
+            }) {
+                DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+                boolean compiled = compiler.getTask(null, fileManager, diagnostics,
+                        Arrays.asList("-classpath", classPath()), null,
+                        Collections.singletonList(source)).call();
+                if (!compiled) {
+                    failure = diagnostics.getDiagnostics().stream()
+                            .map(Object::toString)
+                            .collect(Collectors.joining(System.lineSeparator()));
+                    return null;
+                }
+                ClassLoader loader = new ClassLoader(GeneratedBeliefModel.class.getClassLoader()) {
+                    @Override
+                    protected Class<?> findClass(String name) throws ClassNotFoundException {
+                        ByteArrayOutputStream bytes = classes.get(name);
+                        if (bytes == null) {
+                            throw new ClassNotFoundException(name);
+                        }
+                        return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+                    }
+                };
+                return (Kernel) loader.loadClass(className).getDeclaredConstructor()
+                        .newInstance();
+            }
+            catch (IOException | ReflectiveOperationException | RuntimeException
+                    | LinkageError e) {
+                // the compiler may fail at any step (no tools, class loading...), the model is
+                // then interpreted
+                failure = e.toString();
+                return null;
+            }
+        }
+
+        /**
+         * @return class path of the application, with the location of this class which may
+         * have been loaded by another class loader
+         */
+        private static String classPath() {
+            String classPath = System.getProperty("java.class.path");
+            CodeSource codeSource = GeneratedBeliefModel.class.getProtectionDomain()
+                    .getCodeSource();
+            if (codeSource != null) {
+                try {
+                    classPath = new File(codeSource.getLocation().toURI()).getPath()
+                            + File.pathSeparator + classPath;
+                }
+                catch (URISyntaxException | IllegalArgumentException e) {
+                    // the class path of the application may still be enough
+                }
+            }
+            return classPath;
+        }
+
+        /**
+         * @return source of the kernel class
+         */
+        String source(String className) {
+            int card = points.labelCount();
+            StringBuilder code = new StringBuilder();
+            code.append("public final class ").append(className).append(" implements ")
+                    .append(Kernel.class.getCanonicalName()).append(" {\n")
+                    .append("    public long combine(")
+                    .append(SortedPoints.class.getCanonicalName()).append(" points, ")
+                    .append(ScalarDistance.class.getCanonicalName()).append(" distance, ")
+                    .append("double value, int start, int end, double[] out) {\n");
+            for (int label = 0; label < card; label++) {
+                code.append("        double i").append(label).append(" = 1;\n");
+            }
+
+            // merge the supports of the neighbors by label
+            code.append("        for (int i = start; i < end; i++) {\n");
+            if (distance == ScalarDistance.ABSOLUTE) {
+                code.append("            double d = Math.abs(value - points.value(i));\n");
+            }
+            else {
+                code.append("            double d = distance.between(value, points.value(i));\n");
+            }
+            code.append("            switch (points.labelOrdinal(i)) {\n");
+            for (int label = 0; label < card; label++) {
+                String support = alpha + " * Math.exp(-d * " + inverseGammas[label] + ")";
+                code.append("                case ").append(label).append(":\n");
+                if (kind == Kind.CAUTIOUS) {
+                    code.append("                    i").append(label).append(" = Math.min(i")
+                            .append(label).append(", 1 - ").append(support).append(");\n");
+                }
+                else {
+                    code.append("                    i").append(label).append(" *= 1 - ")
+                            .append(support).append(";\n");
+                }
+                code.append("                    break;\n");
+            }
+            code.append("            }\n        }\n");
+
+            // conjunctive masses of the singletons and of the full ignorance
+            for (int label = 0; label < card; label++) {
+                code.append("        double m").append(label).append(" = (1 - i")
+                        .append(label).append(")");
+                for (int other = 0; other < card; other++) {
+                    if (other != label) {
+                        code.append(" * i").append(other);
+                    }
+                }
+                code.append(";\n");
+            }
+            code.append("        double ignorance = ").append(terms("i", " * ", card))
+                    .append(";\n");
+
+            if (kind == Kind.DEMPSTER || kind == Kind.CAUTIOUS) {
+                code.append("        double scale = 1 / (").append(terms("m", " + ", card))
+                        .append(" + ignorance);\n");
+                for (int label = 0; label < card; label++) {
+                    code.append("        out[").append(label).append("] = m").append(label)
+                            .append(" * scale;\n");
+                }
+                code.append("        out[").append(card).append("] = ignorance * scale;\n")
+                        .append("        out[").append(card + 1).append("] = 0;\n")
+                        .append("        return 0;\n");
+            }
+            else if (kind == Kind.YAGER) {
+                appendSingletons(code, card);
+                code.append("        out[").append(card).append("] = Math.max(1 - ")
+                        .append(terms("m", " - ", card)).append(", 0);\n")
+                        .append("        out[").append(card + 1).append("] = 0;\n")
+                        .append("        return 0;\n");
+            }
+            else {
+                // Dubois and Prade: the supported states conflict on their union
+                code.append("        long mask = 0;\n        double conflict = 1;\n");
+                for (int label = 0; label < card; label++) {
+                    code.append("        if (i").append(label).append(" < 1) {\n")
+                            .append("            mask |= 1L << ").append(label).append(";\n")
+                            .append("            conflict *= 1 - i").append(label)
+                            .append(";\n        }\n");
+                }
+                code.append("        double union = Long.bitCount(mask) >= 2 ? conflict : 0;\n");
+                appendSingletons(code, card);
+                code.append("        out[").append(card).append("] = Math.max(1 - ")
+                        .append(terms("m", " - ", card)).append(" - union, 0);\n")
+                        .append("        out[").append(card + 1).append("] = union;\n")
+                        .append("        return mask;\n");
+            }
+            return code.append("    }\n}\n").toString();
+        }
+
+        private static void appendSingletons(StringBuilder code, int card) {
+            for (int label = 0; label < card; label++) {
+                code.append("        out[").append(label).append("] = m").append(label)
+                        .append(";\n");
+            }
+        }
+
+        /**
+         * @return the variables of the given prefix for every state, joined by an operator
+         */
+        private static String terms(String prefix, String operator, int card) {
+            StringJoiner joiner = new StringJoiner(operator);
+            for (int label = 0; label < card; label++) {
+                joiner.add(prefix + label);
+            }
+            return joiner.toString();
+        }
+    }
+}
@@ -3,8 +3,10 @@ package fr.inria.tacoma.knn.unidimensional;
 import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.frame.StateSet;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
 import fr.inria.tacoma.knn.core.KnnBelief;
+import fr.inria.tacoma.knn.util.KnnUtils;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartPanel;
 import org.jfree.chart.JFreeChart;
@@ -13,6 +15,7 @@ import org.jfree.data.xy.DefaultXYDataset;
 
 import javax.swing.*;
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class JfreeChartDisplay1D {
@@ -72,11 +75,14 @@ public class JfreeChartDisplay1D {
 
     public static ChartPanel getChartPanel(SensorBeliefModel<Double> beliefModel, int numPoints, double min,
                                        double max, String title) {
+        List<Double> values = IntStream.range(0, numPoints)
+                .mapToObj(x -> min + (x * ((max - min) / numPoints)))
+                .collect(Collectors.toList());
+        MutableMass[] masses = KnnUtils.toMasses(beliefModel, values);
         TreeMap<Double, MassFunction> massFunctionSet = new TreeMap<>();
-        Map<Double, MassFunction> syncMap = Collections.synchronizedMap(massFunctionSet);
-        IntStream.range(0, numPoints).parallel()
-                .mapToDouble(x -> min + (x * ((max - min) / numPoints)))
-                .forEach(value -> syncMap.put(value, beliefModel.toMass(value)));
+        for (int i = 0; i < masses.length; i++) {
+            massFunctionSet.put(values.get(i), masses[i]);
+        }
 
         return getChartPanel(massFunctionSet, beliefModel.getFrame(), title);
     }
@@ -2,6 +2,7 @@ package fr.inria.tacoma.knn.unidimensional;
 
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
 import fr.inria.tacoma.knn.experimental.GradientDescentGamma;
+import fr.inria.tacoma.knn.core.Kfold;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
@@ -10,53 +11,55 @@ import fr.inria.tacoma.knn.util.KnnUtils;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class KfoldAlphaGammas<T> {
 
+    /**
+     * Trains a model on each fold in the common fork/join pool, see generateModel(KnnFactory,
+     * List, int, ForkJoinPool).
+     */
     public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
                                                      List<LabelledPoint<T>> samples, int k) {
-//        List<LabelledPoint<T>> shuffled = new ArrayList<>(samples);
-//        Collections.shuffle(shuffled, random);
-//        List<List<LabelledPoint<T>>> sublists = KnnUtils.split(shuffled, k);
-        List<List<LabelledPoint<T>>> sublists = createSubLists(samples, k);
-
-        List<SensorBeliefModel<T>> models = new ArrayList<>(k);
-
-        for (int validationIndex = 0; validationIndex < k; validationIndex++) {
-            List<LabelledPoint<T>> trainingSet = new ArrayList<>();
-            List<LabelledPoint<T>> crossValidation = sublists.get(validationIndex);
-            for (int j = 0; j < k; j++) {
-                if(validationIndex != j) {
-                    trainingSet.addAll(sublists.get(j));
-                }
-            }
-            GradientDescentGamma<T> grad = new GradientDescentGamma<>(factory, trainingSet, crossValidation,
-                    KnnUtils.generateGammaProvider(factory.getDistance(),trainingSet));
-            KnnBelief<T> model = grad.iterate(1000);
-            System.out.println("result : k=" + model.getK() + "; alpha=" + model.getAlpha() +
-                    "; gammas=" + model.getGammas() +
-                    "; error=" + KnnUtils.error(crossValidation, model));
-            models.add(model);
-        }
+        return generateModel(factory, samples, k, ForkJoinPool.commonPool());
+    }
 
-        return new AveragingBeliefModel<>(models);
+    /**
+     * Trains a model on each fold by gradient descent and averages them. The folds are
+     * trained in parallel in the given pool.
+     */
+    public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
+                                                     List<LabelledPoint<T>> samples, int k,
+                                                     ForkJoinPool pool) {
+        return generateModel(factory, samples, k, pool, false);
     }
 
-    private static <T> List<List<T>> createSubLists(List<T> list, int nb) {
-        List<List<T>> sublists = new ArrayList<>();
-        for (int i = 0; i < nb; i++) {
-            sublists.add(new ArrayList<>());
-        }
+    /**
+     * Same as generateModel(KnnFactory, List, int, ForkJoinPool).
+     * @param warmStart true to train the first fold alone, the descents of the other folds
+     *                  starting from its model (see Kfold.trainFolds)
+     */
+    public static  <T> SensorBeliefModel<T> generateModel(KnnFactory<T> factory,
+                                                     List<LabelledPoint<T>> samples, int k,
+                                                     ForkJoinPool pool, boolean warmStart) {
+//        List<LabelledPoint<T>> shuffled = new ArrayList<>(samples);
+//        Collections.shuffle(shuffled, random);
+//        List<List<LabelledPoint<T>>> sublists = KnnUtils.split(shuffled, k);
+        List<KnnBelief<T>> models = Kfold.trainFolds(samples, k, pool,
+                (trainingSet, crossValidation, start) -> {
+                    GradientDescentGamma<T> grad = new GradientDescentGamma<>(factory,
+                            trainingSet, crossValidation,
+                            KnnUtils.generateGammaProvider(factory.getDistance(), trainingSet));
+                    if (start != null) {
+                        grad.warmStart(start);
+                    }
+                    KnnBelief<T> model = grad.iterate(1000);
+                    System.out.println("result : k=" + model.getK() + "; alpha="
+                            + model.getAlpha() + "; gammas=" + model.getGammas()
+                            + "; error=" + KnnUtils.error(crossValidation, model));
+                    return model;
+                }, warmStart);
 
-        int sublistIndex = 0;
-        for (T object : list) {
-            sublists.get(sublistIndex).add(object);
-            sublistIndex++;
-            if(sublistIndex >= sublists.size()) {
-                sublistIndex = 0;
-            }
-        }
-        return sublists;
+        return new AveragingBeliefModel<>(new ArrayList<>(models));
     }
-
 }
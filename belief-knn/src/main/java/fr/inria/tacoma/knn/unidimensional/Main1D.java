@@ -119,10 +119,11 @@ public class Main1D {
         trainingSet.addAll(absence);
         trainingSet.addAll(presence);
         KnnFactory<Double> factory = KnnFactory.getDoubleKnnFactory(frame);
-        factory.setCombination(functions -> functions.stream().reduce(Combinations::dempster).get());
-        SensorBeliefModel<Double> result =
+        factory.setCombination("dempster");
+        KnnBelief<Double> result =
                 KnnUtils.getBestKnnBeliefForAlphaAndK(factory, trainingSet, crossValidation);
         show(result, data, "cross validation");
+        Errors.showPignisticErrors(result, crossValidation);
 //        result = generateWeakeningModel(result, data);
 //        result = new ConsonantBeliefModel<>(result);
 //        System.out.println("error for best model : " + KnnUtils.error(data, result));
@@ -164,7 +165,7 @@ public class Main1D {
         KnnFactory<Double> factory = KnnFactory.getDoubleKnnFactory(frame);
 
         Map<String, Double> gammas = KnnUtils
-                .generateGammaProvider((a, b) -> Math.abs(a - b), trainingSet);
+                .generateGammaProvider(ScalarDistance.ABSOLUTE, trainingSet);
 
         for (int neighborCount = 1; neighborCount <= Math.min(100, trainingSet.size()); neighborCount++) {
             KnnBelief<Double>  beliefModel =
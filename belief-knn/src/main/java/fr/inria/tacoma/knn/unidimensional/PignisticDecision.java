@@ -0,0 +1,189 @@
+package fr.inria.tacoma.knn.unidimensional;
+
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.core.SupportCombination;
+import fr.inria.tacoma.knn.core.SupportCombination.Kind;
+import fr.inria.tacoma.knn.util.SupportCombinations;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Pignistic decision of the one dimensional engines computed from the merged ignorances of
+ * the labels, without any mass function.
+ *
+ * With Dempster's, Dubois and Prade's, Yager's or the cautious rule, the pignistic probability
+ * of a label only grows when its merged ignorance decreases, whatever the other labels: the
+ * decision is the label with the lowest merged ignorance, the first label of the frame on a tie.
+ * The neighbors are scanned from the closest one, and the scan stops as soon as the remaining
+ * neighbors, all at least as far as the last one, can not lower the ignorance of another label
+ * below the one of the chosen label.
+ */
+final class PignisticDecision {
+
+    /**
+     * Buffer of the merged ignorances, reused by every decision of the current thread.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
+    private static final double FLOOR_MARGIN = 1e-12;
+
+    private PignisticDecision() {
+    }
+
+    /**
+     * Tells if the decision of a combination is the label with the lowest merged ignorance.
+     */
+    static boolean supports(Function<List<MassFunction>, MassFunction> combination) {
+        Kind kind = SupportCombinations.kindOf(combination);
+        return kind == Kind.DEMPSTER || kind == Kind.DUBOIS_AND_PRADE || kind == Kind.YAGER
+                || kind == Kind.CAUTIOUS;
+    }
+
+    /**
+     * Gives the pignistic decision for a value.
+     * @param points training points
+     * @param distance distance between the values
+     * @param sensorValue the value
+     * @param start first point of the window of neighbors
+     * @param end end of the window of neighbors, excluded
+     * @param alpha maximal support of a neighbor
+     * @param inverseGammas inverse of the gamma of each label ordinal
+     * @param combination a combination accepted by supports
+     * @return ordinal of the chosen label
+     */
+    static int decide(SortedPoints points, ScalarDistance distance, double sensorValue,
+                      int start, int end, double alpha, double[] inverseGammas,
+                      SupportCombination combination) {
+        boolean cautious = combination.getKind() == Kind.CAUTIOUS;
+        int labelCount = points.labelCount();
+        double[] ignorances = scratch(labelCount);
+        Arrays.fill(ignorances, 0, labelCount, 1.0);
+
+        // the window is scanned from the value outward, so the distances only grow
+        int right = start;
+        while (right < end && points.value(right) < sensorValue) {
+            right++;
+        }
+        int left = right - 1;
+        int best = 0;
+        int blocking = 0;
+        // lowest factor of the remaining supports on an ignorance, slightly lowered so the
+        // rounding errors of the divisions can not make it greater than the exact factor
+        double floor = cautious ? 1 - alpha
+                : Math.pow(1 - alpha, end - start) * (1 - FLOOR_MARGIN);
+        int checkpoint = 1;
+        double leftDistance = left >= start
+                ? distance.between(sensorValue, points.value(left)) : Double.MAX_VALUE;
+        double rightDistance = right < end
+                ? distance.between(sensorValue, points.value(right)) : Double.MAX_VALUE;
+        for (int remaining = end - start - 1; remaining >= 0; remaining--) {
+            int index;
+            double pointDistance;
+            if (leftDistance < rightDistance) {
+                index = left--;
+                pointDistance = leftDistance;
+                leftDistance = left >= start
+                        ? distance.between(sensorValue, points.value(left)) : Double.MAX_VALUE;
+            }
+            else {
+                index = right++;
+                pointDistance = rightDistance;
+                rightDistance = right < end
+                        ? distance.between(sensorValue, points.value(right)) : Double.MAX_VALUE;
+            }
+
+            int label = points.labelOrdinal(index);
+            ignorances[label] = combination.merge(ignorances[label],
+                    alpha * Math.exp(-pointDistance * inverseGammas[label]));
+            if (ignorances[label] < ignorances[best]
+                    || ignorances[label] == ignorances[best] && label < best) {
+                best = label;
+            }
+            if (remaining == 0) {
+                break;
+            }
+            if (!cautious) {
+                floor /= 1 - alpha;
+            }
+            // the bounds at the current distance cost an exponential per label, so they are
+            // only computed after 1, 2, 4, 8... neighbors
+            int scanned = end - start - remaining;
+            boolean exact = scanned == checkpoint;
+            if (exact) {
+                checkpoint *= 2;
+            }
+            // the label which prevented the last exit is likely to prevent this one
+            if (blocking != best && mayReach(ignorances[blocking], ignorances[best], remaining,
+                    floor, exact, pointDistance, alpha, inverseGammas[blocking], cautious)) {
+                continue;
+            }
+            blocking = -1;
+            for (int other = 0; other < labelCount && blocking < 0; other++) {
+                if (other != best && mayReach(ignorances[other], ignorances[best], remaining,
+                        floor, exact, pointDistance, alpha, inverseGammas[other], cautious)) {
+                    blocking = other;
+                }
+            }
+            if (blocking < 0) {
+                return best;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Tells if a label may get an ignorance lower or equal to a given one from the remaining
+     * neighbors. The bound of neighbors at distance 0 is tried first, then, when exact is set,
+     * the bound of neighbors at the current distance.
+     * @param ignorance merged ignorance of the label
+     * @param target ignorance to reach
+     * @param remaining number of remaining neighbors
+     * @param floor lowest factor of the remaining supports on an ignorance
+     * @param exact tells if the bound at the current distance is computed, the label being
+     *              considered as able to reach the target otherwise
+     */
+    private static boolean mayReach(double ignorance, double target, int remaining,
+                                    double floor, boolean exact, double distance, double alpha,
+                                    double inverseGamma, boolean cautious) {
+        if (cautious) {
+            if (ignorance <= target) {
+                return true;
+            }
+            if (floor > target) {
+                return false;
+            }
+            return !exact || 1 - alpha * Math.exp(-distance * inverseGamma) <= target;
+        }
+        if (ignorance * floor > target) {
+            return false;
+        }
+        if (!exact) {
+            return true;
+        }
+        double support = alpha * Math.exp(-distance * inverseGamma);
+        if (ignorance * (1 - support) <= target) {
+            return true;
+        }
+        // (1 - support)^remaining is at least 1 - remaining * support
+        if (ignorance * (1 - remaining * support) > target) {
+            return false;
+        }
+        return ignorance * Math.pow(1 - support, remaining) <= target;
+    }
+
+    /**
+     * @return the scratch buffer of the current thread, with at least the given size.
+     */
+    private static double[] scratch(int labelCount) {
+        double[] buffer = SCRATCH.get();
+        if (buffer.length < labelCount) {
+            buffer = new double[labelCount];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+}
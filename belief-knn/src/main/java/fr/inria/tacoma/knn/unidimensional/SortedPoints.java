@@ -0,0 +1,421 @@
+package fr.inria.tacoma.knn.unidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.util.LabelSets;
+
+import java.util.*;
+
+/**
+ * Immutable columnar storage of a one dimensional training set. The values are kept sorted in a
+ * primitive array and the labels are stored as ordinals of the states of the frame, so looking
+ * for neighbors never unboxes a value nor dereferences a point. A store is meant to be built once
+ * and shared by every copy of a model (see withAlpha, withK...).
+ */
+public final class SortedPoints {
+
+    private final FrameOfDiscernment frame;
+    private final LabelSets labels;
+    private final double[] values;
+    private final int[] labelOrdinals;
+
+    public SortedPoints(FrameOfDiscernment frame, List<? extends LabelledPoint<Double>> points) {
+        this.frame = frame;
+        this.labels = LabelSets.of(frame);
+        int labelCount = labels.size();
+
+        // split the values by label, then sort each label on its own
+        int[] counts = new int[labelCount];
+        int[] pointOrdinals = new int[points.size()];
+        for (int i = 0; i < pointOrdinals.length; i++) {
+            String label = points.get(i).getLabel();
+            int ordinal = labels.ordinal(label);
+            if (ordinal < 0) {
+                throw new IllegalArgumentException("label " + label + " is not a state of "
+                        + "the frame");
+            }
+            pointOrdinals[i] = ordinal;
+            counts[ordinal]++;
+        }
+        double[][] valuesByLabel = new double[labelCount][];
+        for (int label = 0; label < labelCount; label++) {
+            valuesByLabel[label] = new double[counts[label]];
+        }
+        int[] heads = new int[labelCount];
+        for (int i = 0; i < pointOrdinals.length; i++) {
+            int label = pointOrdinals[i];
+            valuesByLabel[label][heads[label]++] = points.get(i).getValue();
+        }
+        for (double[] labelValues : valuesByLabel) {
+            Arrays.parallelSort(labelValues);
+        }
+
+        // merge the sorted runs with a heap of the labels ordered by their next value, labels
+        // are known by construction
+        this.values = new double[pointOrdinals.length];
+        this.labelOrdinals = new int[pointOrdinals.length];
+        Arrays.fill(heads, 0);
+        int[] heap = new int[labelCount];
+        int heapSize = 0;
+        for (int label = 0; label < labelCount; label++) {
+            if (counts[label] > 0) {
+                heap[heapSize++] = label;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i, valuesByLabel, heads);
+        }
+        for (int i = 0; i < values.length; i++) {
+            int best = heap[0];
+            values[i] = valuesByLabel[best][heads[best]++];
+            labelOrdinals[i] = best;
+            if (heads[best] == counts[best]) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0, valuesByLabel, heads);
+        }
+    }
+
+    /**
+     * Moves down a label of the heap of the merge until it precedes its children.
+     */
+    private static void siftDown(int[] heap, int size, int index, double[][] valuesByLabel,
+                                 int[] heads) {
+        int label = heap[index];
+        while (2 * index + 1 < size) {
+            int child = 2 * index + 1;
+            if (child + 1 < size
+                    && precedes(heap[child + 1], heap[child], valuesByLabel, heads)) {
+                child++;
+            }
+            if (!precedes(heap[child], label, valuesByLabel, heads)) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = label;
+    }
+
+    /**
+     * @return true if the next value of a label comes before the next value of another label
+     * in the merge, the lowest ordinal coming first on equal values. NaN comes last, as in
+     * the sorted values of each label.
+     */
+    private static boolean precedes(int label1, int label2, double[][] valuesByLabel,
+                                    int[] heads) {
+        double value1 = valuesByLabel[label1][heads[label1]];
+        double value2 = valuesByLabel[label2][heads[label2]];
+        if (value1 == value2 || Double.isNaN(value1) && Double.isNaN(value2)) {
+            return label1 < label2;
+        }
+        return value1 < value2 || Double.isNaN(value2);
+    }
+
+    /**
+     * Finds the window of neighbors of a value. The window always holds the two points
+     * surrounding the value, and is extended with the closest points on each side until it
+     * reaches the given size. When two candidates are at the same distance, the greatest one is
+     * taken.
+     * @param value value for which we look for neighbors
+     * @param size number of points wanted in the window
+     * @return index of the first point of the window, the window ends at
+     * min(start + size, size())
+     */
+    public int neighborhoodStart(double value, int size) {
+        return constrain(closestStart(value, size, 0, lastStart(size)),
+                lowerBound(value, 0, values.length), size);
+    }
+
+    /**
+     * @return a new cursor on these points, see Cursor. The cursor is owned by its caller, such
+     * as the reader of a sensor, and is dropped with it.
+     */
+    public Cursor newCursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Finds the windows of neighbors of several values at once. The values are sorted, then the
+     * training points are swept in a single pass, both ends of the window only moving forward.
+     * The windows are the same as the ones of neighborhoodStart.
+     * @param values values for which we look for neighbors, in any order
+     * @param size number of points wanted in each window
+     * @return index of the first point of the window of each value, in the order of the values
+     */
+    public int[] neighborhoodStarts(double[] values, int size) {
+        double[] sortedValues = values.clone();
+        Arrays.sort(sortedValues);
+
+        int[] sortedStarts = new int[sortedValues.length];
+        int lastStart = lastStart(size);
+        int start = 0;
+        int lowerBound = 0;
+        for (int i = 0; i < sortedValues.length; i++) {
+            double value = sortedValues[i];
+            while (lowerBound < this.values.length && this.values[lowerBound] < value) {
+                lowerBound++;
+            }
+            while (start < lastStart && isCloserAfter(value, start, size)) {
+                start++;
+            }
+            sortedStarts[i] = constrain(start, lowerBound, size);
+        }
+
+        // equal values share the same window, so any of their sorted positions will do
+        int[] starts = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            starts[i] = sortedStarts[Arrays.binarySearch(sortedValues, values[i])];
+        }
+        return starts;
+    }
+
+    /**
+     * Gives the points of the window of neighbors of a value in the order in which they join the
+     * window as its size grows: the two points surrounding the value, then the closest point on
+     * either side, the greatest one on a tie. For any size up to the given one, the window of
+     * neighborhoodStart is made of the first points of the order.
+     * @param value value for which we look for neighbors
+     * @param size number of points wanted in the window
+     * @return indexes of the min(size, size()) points of the window
+     */
+    public int[] windowOrder(double value, int size) {
+        int[] order = new int[Math.min(size, values.length)];
+        if (order.length == 0) {
+            return order;
+        }
+        int left = Math.max(0, Math.min(values.length - 2,
+                lowerBound(value, 0, values.length) - 1));
+        int right = left + 1;
+        order[0] = left--;
+        for (int i = 1; i < order.length; i++) {
+            if (i == 1 || left < 0
+                    || right < values.length && value - values[left] >= values[right] - value) {
+                order[i] = right++;
+            }
+            else {
+                order[i] = left--;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Computes the values at which the window of neighbors changes. The window only depends on
+     * the closest points of the value and on the points surrounding it, so it changes either
+     * when the point after the window becomes closer than the first one (around the middle of
+     * the two points) or when the value goes past a training point.
+     * @param size number of points in the windows
+     * @return sorted breakpoints, the window is the same for every value between two
+     * consecutive breakpoints (including the lower one, excluding the upper one)
+     */
+    public double[] windowBreakpoints(int size) {
+        int lastStart = lastStart(size);
+        double[] candidates = new double[lastStart + values.length];
+        for (int start = 0; start < lastStart; start++) {
+            candidates[start] = slideValue(start, size);
+        }
+        for (int i = 0; i < values.length; i++) {
+            candidates[lastStart + i] = Math.nextUp(values[i]);
+        }
+        Arrays.sort(candidates);
+
+        int[] starts = neighborhoodStarts(candidates, size);
+        double[] breakpoints = new double[candidates.length];
+        int count = 0;
+        int previousStart = candidates.length == 0 ? 0
+                : neighborhoodStart(Math.nextDown(candidates[0]), size);
+        for (int i = 0; i < candidates.length; i++) {
+            if (starts[i] != previousStart) {
+                breakpoints[count++] = candidates[i];
+                previousStart = starts[i];
+            }
+        }
+        return Arrays.copyOf(breakpoints, count);
+    }
+
+    /**
+     * @return the lowest value for which the window starting at start must be slid to the right.
+     */
+    private double slideValue(int start, int size) {
+        double value = values[start] + (values[start + size] - values[start]) / 2;
+        while (!isCloserAfter(value, start, size)) {
+            value = Math.nextUp(value);
+        }
+        while (isCloserAfter(Math.nextDown(value), start, size)) {
+            value = Math.nextDown(value);
+        }
+        return value;
+    }
+
+    /**
+     * @return start of the window of the closest points, looked for between low and high
+     * (included), which must surround it.
+     */
+    private int closestStart(double value, int size, int low, int high) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (isCloserAfter(value, middle, size)) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first value greater or equal to the given value, looked for between
+     * low and high (included), which must surround it. high may be size().
+     */
+    private int lowerBound(double value, int low, int high) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Moves the start of a window of closest points so it contains the two points surrounding the
+     * value, as the windows of the engines always did.
+     * @param start start of the window of the closest points
+     * @param lowerBound index of the first point greater or equal to the value
+     * @param size size of the window
+     */
+    int constrain(int start, int lowerBound, int size) {
+        int bracket = Math.max(0, Math.min(values.length - 2, lowerBound - 1));
+        start = Math.min(Math.max(start, bracket + 2 - size), bracket);
+        return Math.max(0, Math.min(start, lastStart(size)));
+    }
+
+    /**
+     * Tells if the window starting at start must be slid to the right, i.e. if the point just
+     * after the window is at least as close to the value as the first point of the window.
+     * start must be lower than lastStart(size).
+     */
+    boolean isCloserAfter(double value, int start, int size) {
+        return value - values[start] >= values[start + size] - value;
+    }
+
+    /**
+     * @return greatest index at which a window of the given size can start
+     */
+    int lastStart(int size) {
+        return values.length - Math.min(size, values.length);
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public double value(int index) {
+        return values[index];
+    }
+
+    public int labelOrdinal(int index) {
+        return labelOrdinals[index];
+    }
+
+    /**
+     * @return number of label ordinals, which is the cardinal of the frame
+     */
+    public int labelCount() {
+        return labels.size();
+    }
+
+    public String label(int ordinal) {
+        return labels.label(ordinal);
+    }
+
+    /**
+     * Resolves a value per label (such as the gammas) into an array indexed by label ordinal
+     * (see LabelSets.byOrdinal).
+     */
+    public double[] byOrdinal(Map<String, Double> valuesByLabel) {
+        return labels.byOrdinal(valuesByLabel);
+    }
+
+    public StateSet stateSet(int ordinal) {
+        return labels.singleton(ordinal);
+    }
+
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * Stateful search of the windows of neighbors, for values coming one after the other such as
+     * the readings of a sensor. The search starts from the position of the previous value and
+     * gallops (steps of 1, 2, 4...) toward the new one, so a slowly drifting signal costs a few
+     * comparisons per value, while a jump costs about twice a binary search. The windows are the
+     * same as the ones of neighborhoodStart whatever the previous values are.
+     *
+     * A cursor must not be shared between threads.
+     */
+    public final class Cursor {
+        private int lowerBound;
+        private int closestStart;
+
+        private Cursor() {
+        }
+
+        /**
+         * Same as SortedPoints.neighborhoodStart, starting from the previous position of the
+         * cursor.
+         */
+        public int neighborhoodStart(double value, int size) {
+            lowerBound = gallopLowerBound(value);
+            closestStart = gallopClosestStart(value, size);
+            return constrain(closestStart, lowerBound, size);
+        }
+
+        private int gallopLowerBound(double value) {
+            int hint = Math.min(lowerBound, values.length);
+            int step = 1;
+            if (hint < values.length && values[hint] < value) {
+                // the bound is after the hint
+                int low = hint + 1;
+                while (hint + step < values.length && values[hint + step] < value) {
+                    low = hint + step + 1;
+                    step <<= 1;
+                }
+                return lowerBound(value, low, Math.min(hint + step, values.length));
+            }
+            int high = hint;
+            while (hint - step >= 0 && !(values[hint - step] < value)) {
+                high = hint - step;
+                step <<= 1;
+            }
+            return lowerBound(value, Math.max(hint - step + 1, 0), high);
+        }
+
+        private int gallopClosestStart(double value, int size) {
+            int lastStart = lastStart(size);
+            int hint = Math.min(closestStart, lastStart);
+            int step = 1;
+            if (hint < lastStart && isCloserAfter(value, hint, size)) {
+                // the start is after the hint
+                int low = hint + 1;
+                while (hint + step < lastStart && isCloserAfter(value, hint + step, size)) {
+                    low = hint + step + 1;
+                    step <<= 1;
+                }
+                return closestStart(value, size, low, Math.min(hint + step, lastStart));
+            }
+            int high = hint;
+            while (hint - step >= 0 && !isCloserAfter(value, hint - step, size)) {
+                high = hint - step;
+                step <<= 1;
+            }
+            return closestStart(value, size, Math.max(hint - step + 1, 0), high);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package fr.inria.tacoma.knn.unidimensional;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.Distance;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+import fr.inria.tacoma.knn.core.KnnBelief;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.core.SupportCombination;
+import fr.inria.tacoma.knn.core.SupportCombination.Kind;
+import fr.inria.tacoma.knn.util.ConsonantMass;
+import fr.inria.tacoma.knn.util.ConsonantModel;
+import fr.inria.tacoma.knn.util.SupportCombinations;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Optimization of the Knn for a double value on a frame of two states, such as
+ * presence/absence. The only focal sets are the two singletons and the full ignorance, so the
+ * combination of the neighbors is computed in closed form from the merged ignorance of each
+ * state, without any map nor mass function (see toMass(double, double[])).
+ *
+ * With two states, Dubois and Prade's rule and Yager's rule both put the conflict on the full
+ * ignorance, while Dempster's rule and the cautious rule remove it by normalization. Other
+ * combinations are not supported (see supports).
+ */
+public class TwoClassDoubleKnn implements KnnBelief<Double>, ConsonantModel<Double> {
+
+    /**
+     * Buffer reused by toMass, so computing a mass function only allocates the result.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[3]);
+
+    private final int k;
+    private final double alpha;
+    private final FrameOfDiscernment frame;
+    private final SortedPoints points;
+    private final Map<String, Double> gammaProvider;
+    private final double[] inverseGammas;
+    private final SupportCombination combination;
+    /**
+     * 1 when the combination removes the conflict by normalization, 0 when it puts the
+     * conflict on the full ignorance.
+     */
+    private final double normalized;
+    private final ScalarDistance distance;
+
+    public TwoClassDoubleKnn(List<? extends LabelledPoint<Double>> points, int k, double alpha,
+                             FrameOfDiscernment frame, SupportCombination combination,
+                             Distance<Double> distance, Map<String, Double> gammaProvider) {
+        this(new SortedPoints(frame, points), k, alpha, combination, distance, gammaProvider);
+    }
+
+    public TwoClassDoubleKnn(SortedPoints points, int k, double alpha,
+                             SupportCombination combination, Distance<Double> distance,
+                             Map<String, Double> gammaProvider) {
+        assert alpha > 0;
+        if (points.labelCount() != 2) {
+            throw new IllegalArgumentException("the frame must have two states, not "
+                    + points.labelCount());
+        }
+        if (!supports(combination)) {
+            throw new IllegalArgumentException("no closed form for the combination "
+                    + combination);
+        }
+        this.k = k;
+        this.alpha = alpha;
+        this.frame = points.getFrame();
+        this.points = points;
+        this.combination = combination;
+        this.normalized = combination.getKind() == Kind.DEMPSTER
+                || combination.getKind() == Kind.CAUTIOUS ? 1 : 0;
+        this.distance = ScalarDistance.of(distance);
+        this.gammaProvider = gammaProvider;
+        this.inverseGammas = points.byOrdinal(gammaProvider);
+        for (int label = 0; label < inverseGammas.length; label++) {
+            inverseGammas[label] = 1.0 / inverseGammas[label];
+        }
+    }
+
+    /**
+     * Tells if the combination has a closed form in this engine: it computes Dempster, Dubois
+     * and Prade, Yager or the cautious rule of SupportCombinations (see
+     * SupportCombination.getKind).
+     */
+    public static boolean supports(Function<List<MassFunction>, MassFunction> combination) {
+        return supports(SupportCombinations.kindOf(combination));
+    }
+
+    static boolean supports(Kind kind) {
+        return kind == Kind.DEMPSTER || kind == Kind.DUBOIS_AND_PRADE || kind == Kind.YAGER
+                || kind == Kind.CAUTIOUS;
+    }
+
+    @Override
+    public int getK() {
+        return k;
+    }
+
+    @Override
+    public double getAlpha() {
+        return alpha;
+    }
+
+    @Override
+    public Map<String, Double> getGammas() {
+        return gammaProvider;
+    }
+
+    SortedPoints getPoints() {
+        return points;
+    }
+
+    ScalarDistance getDistance() {
+        return distance;
+    }
+
+    Function<List<MassFunction>, MassFunction> getCombination() {
+        return combination;
+    }
+
+    @Override
+    public KnnBelief<Double> withAlpha(double newAlpha) {
+        return new TwoClassDoubleKnn(points, k, newAlpha, combination, distance, gammaProvider);
+    }
+
+    @Override
+    public KnnBelief<Double> withK(int newK) {
+        return new TwoClassDoubleKnn(points, newK, alpha, combination, distance, gammaProvider);
+    }
+
+    @Override
+    public KnnBelief<Double> withAlphaAndK(double newAlpha, int newK) {
+        return new TwoClassDoubleKnn(points, newK, newAlpha, combination, distance,
+                gammaProvider);
+    }
+
+    @Override
+    public MutableMass toMass(Double sensorValue) {
+        return toMass(sensorValue, points.neighborhoodStart(sensorValue,
+                k + 1));
+    }
+
+    @Override
+    public MutableMass[] toMasses(List<? extends Double> values) {
+        return toMasses(values.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    /**
+     * Computes the mass functions of several values, the neighbors of all the values being
+     * searched in a single sweep of the training points.
+     * @param values sensor values, in any order
+     * @return the mass functions, in the order of the values
+     */
+    public MutableMass[] toMasses(double[] values) {
+        int[] starts = points.neighborhoodStarts(values, k + 1);
+        MutableMass[] masses = new MutableMass[values.length];
+        for (int i = 0; i < values.length; i++) {
+            masses[i] = toMass(values[i], starts[i]);
+        }
+        return masses;
+    }
+
+    /**
+     * Compiles the model into a lookup table, which gives mass functions without computing
+     * any neighbor nor combination.
+     * @param maxError maximal absolute error allowed on any focal element, checked at sampled
+     *                 values (see CompiledBeliefModel)
+     * @return the compiled model
+     */
+    public CompiledBeliefModel compile(double maxError) {
+        return CompiledBeliefModel.compile(points, k + 1, this::toMass, maxError);
+    }
+
+    /**
+     * Computes the mass function of a value without creating it.
+     * @param sensorValue sensor value
+     * @param out array receiving the mass of the first state, the mass of the second state and
+     *            the mass of the full ignorance, the states being in the order of the frame
+     */
+    public void toMass(double sensorValue, double[] out) {
+        toMass(sensorValue, points.neighborhoodStart(sensorValue, k + 1), out);
+    }
+
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        write(sensorValue, points.neighborhoodStart(sensorValue, k + 1), target);
+    }
+
+    /**
+     * Decides from the merged ignorances without creating any mass function (see
+     * PignisticDecision).
+     */
+    @Override
+    public StateSet decide(Double sensorValue) {
+        int start = points.neighborhoodStart(sensorValue, k + 1);
+        return points.stateSet(PignisticDecision.decide(points, distance, sensorValue, start,
+                Math.min(start + k + 1, points.size()), alpha, inverseGammas, combination));
+    }
+
+    /**
+     * The plausibility of a state is its mass plus the mass of the full ignorance, so the
+     * consonant form comes from the closed form without any mass function.
+     */
+    @Override
+    public ConsonantMass toConsonantMass(Double sensorValue) {
+        double[] masses = SCRATCH.get();
+        toMass(sensorValue, points.neighborhoodStart(sensorValue, k + 1), masses);
+        return new ConsonantMass(frame, new double[]{masses[0] + masses[2],
+                masses[1] + masses[2]});
+    }
+
+    private MutableMass toMass(double sensorValue, int start) {
+        MutableMass result = frame.newMass();
+        write(sensorValue, start, result);
+        return result;
+    }
+
+    /**
+     * Writes the mass function of a value into a mass function without focal element.
+     */
+    private void write(double sensorValue, int start, MutableMass result) {
+        double[] masses = SCRATCH.get();
+        toMass(sensorValue, start, masses);
+        if (masses[0] != 0) {
+            result.set(points.stateSet(0), masses[0]);
+        }
+        if (masses[1] != 0) {
+            result.set(points.stateSet(1), masses[1]);
+        }
+        if (masses[2] > 0) {
+            result.set(frame.fullIgnoranceSet(), masses[2]);
+        }
+    }
+
+    private void toMass(double sensorValue, int start, double[] out) {
+        int end = Math.min(start + k + 1, points.size());
+        // the ignorances are merged in the output, indexed by label
+        out[0] = 1;
+        out[1] = 1;
+        for (int i = start; i < end; i++) {
+            int label = points.labelOrdinal(i);
+            out[label] = combination.merge(out[label], alpha * Math.exp(
+                    -distance.between(sensorValue, points.value(i)) * inverseGammas[label]));
+        }
+
+        double ignorance0 = out[0];
+        double ignorance1 = out[1];
+        double mass0 = (1 - ignorance0) * ignorance1;
+        double mass1 = ignorance0 * (1 - ignorance1);
+        double ignorance = ignorance0 * ignorance1
+                + (1 - normalized) * (1 - ignorance0) * (1 - ignorance1);
+        // the total is not computed as 1 - conflict, which loses precision on high conflicts
+        double scale = 1 / (mass0 + mass1 + ignorance);
+        out[0] = mass0 * scale;
+        out[1] = mass1 * scale;
+        out[2] = ignorance * scale;
+    }
+
+    @Override
+    public NeighborTable neighborTable(List<? extends LabelledPoint<Double>> crossValidation,
+                                       int maxK) {
+        return NeighborTable.ofWindows(points, distance, crossValidation, maxK, combination);
+    }
+
+
+    @Override
+    public MassFunction toMassWithoutValue() {
+        MutableMass massFunction = frame.newMass();
+        massFunction.putRemainingOnIgnorance();
+        return massFunction;
+    }
+
+    @Override
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+}
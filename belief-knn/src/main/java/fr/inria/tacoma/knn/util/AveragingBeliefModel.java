@@ -5,18 +5,24 @@ import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
 import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
 
 import java.util.List;
 import java.util.stream.Collectors;
 
-public class AveragingBeliefModel<T> implements SensorBeliefModel<T>{
+public class AveragingBeliefModel<T> implements InPlaceBeliefModel<T> {
 
     private final FrameOfDiscernment frame;
     List<SensorBeliefModel<T>> beliefModels;
+    /**
+     * Mass function of the current thread receiving the mass of each model in toMassInto.
+     */
+    private final ThreadLocal<MutableMass> scratch;
 
     public AveragingBeliefModel(List<SensorBeliefModel<T>> beliefModels) {
         this.beliefModels = beliefModels;
         this.frame = beliefModels.get(0).getFrame();
+        this.scratch = ThreadLocal.withInitial(frame::newMass);
     }
 
     @Override
@@ -26,6 +32,18 @@ public class AveragingBeliefModel<T> implements SensorBeliefModel<T>{
         return Combinations.average(masses);
     }
 
+    @Override
+    public void toMassInto(T data, MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        MutableMass mass = scratch.get();
+        int count = beliefModels.size();
+        for (int i = 0; i < count; i++) {
+            InPlaceBeliefModel.toMassInto(beliefModels.get(i), data, mass);
+            mass.foreachFocalElement((stateSet, value) -> target.addToFocal(stateSet,
+                    value / count));
+        }
+    }
+
     @Override
     public MassFunction toMassWithoutValue() {
         List<MassFunction> masses = beliefModels.stream().map(
@@ -0,0 +1,124 @@
+package fr.inria.tacoma.knn.util;
+
+/**
+ * Minimization of a function of one parameter between two finite bounds, by Brent's method:
+ * parabolic interpolation through the three best points when it moves toward the minimum,
+ * golden section of the interval otherwise. The gradient of the objective is not used.
+ *
+ * The first point evaluated is the start, so a good start (warm start) lets the search
+ * converge sooner.
+ */
+public final class BrentSearch implements Optimizer {
+
+    private static final double GOLDEN_SECTION = (3 - Math.sqrt(5)) / 2;
+
+    private final double tolerance;
+
+    /**
+     * @param tolerance the search stops when the minimum is known within this distance
+     */
+    public BrentSearch(double tolerance) {
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("the tolerance must be positive, not "
+                    + tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public double[] minimize(Objective objective, double[] start, double[] lower,
+                             double[] upper, int maxIterations) {
+        Optimizer.checkBox(start, lower, upper);
+        if (start.length != 1) {
+            throw new IllegalArgumentException("Brent's method minimizes over one parameter, not "
+                    + start.length);
+        }
+        if (Double.isInfinite(lower[0]) || Double.isInfinite(upper[0])) {
+            throw new IllegalArgumentException("Brent's method needs finite bounds, not ["
+                    + lower[0] + ", " + upper[0] + "]");
+        }
+        double[] point = new double[1];
+        double a = lower[0];
+        double b = upper[0];
+        // x is the best point, w the second best and v the previous value of w
+        double x = Math.min(Math.max(start[0], a), b);
+        double fx = value(objective, point, x);
+        double w = x;
+        double v = x;
+        double fw = fx;
+        double fv = fx;
+        double move = 0;
+        double previousMove = 0;
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            double middle = (a + b) / 2;
+            double tol = tolerance / 2 + 1e-10 * Math.abs(x);
+            if (Math.abs(x - middle) <= 2 * tol - (b - a) / 2) {
+                break;
+            }
+            boolean golden = true;
+            if (Math.abs(previousMove) > tol) {
+                double r = (x - w) * (fx - fv);
+                double q = (x - v) * (fx - fw);
+                double p = (x - v) * q - (x - w) * r;
+                q = 2 * (q - r);
+                if (q > 0) {
+                    p = -p;
+                }
+                q = Math.abs(q);
+                // the parabola is accepted when its minimum is in the interval and the step is
+                // less than half the step before the last one
+                if (Math.abs(p) < Math.abs(q * previousMove / 2)
+                        && p > q * (a - x) && p < q * (b - x)) {
+                    previousMove = move;
+                    move = p / q;
+                    double u = x + move;
+                    if (u - a < 2 * tol || b - u < 2 * tol) {
+                        move = x < middle ? tol : -tol;
+                    }
+                    golden = false;
+                }
+            }
+            if (golden) {
+                previousMove = x < middle ? b - x : a - x;
+                move = GOLDEN_SECTION * previousMove;
+            }
+            double u = Math.abs(move) >= tol ? x + move : x + (move > 0 ? tol : -tol);
+            double fu = value(objective, point, u);
+            if (fu <= fx) {
+                if (u < x) {
+                    b = x;
+                } else {
+                    a = x;
+                }
+                v = w;
+                fv = fw;
+                w = x;
+                fw = fx;
+                x = u;
+                fx = fu;
+            } else {
+                if (u < x) {
+                    a = u;
+                } else {
+                    b = u;
+                }
+                if (fu <= fw || w == x) {
+                    v = w;
+                    fv = fw;
+                    w = u;
+                    fw = fu;
+                } else if (fu <= fv || v == x || v == w) {
+                    v = u;
+                    fv = fu;
+                }
+            }
+        }
+        point[0] = x;
+        return point;
+    }
+
+    private static double value(Objective objective, double[] point, double x) {
+        point[0] = x;
+        return objective.evaluate(point, null);
+    }
+}
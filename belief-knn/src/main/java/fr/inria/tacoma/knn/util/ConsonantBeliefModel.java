@@ -5,8 +5,9 @@ import fr.inria.tacoma.bft.core.mass.MassFunction;
 import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
 import fr.inria.tacoma.bft.util.Mass;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
 
-public class ConsonantBeliefModel<T> implements SensorBeliefModel<T> {
+public class ConsonantBeliefModel<T> implements InPlaceBeliefModel<T> {
 
     SensorBeliefModel<T> underlyingModel;
 
@@ -15,9 +16,25 @@ public class ConsonantBeliefModel<T> implements SensorBeliefModel<T> {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public MutableMass toMass(T sensorValue) {
-        //FIXME this is quick and dirty. Should work with current version of jbft
-        return (MutableMass)Mass.toConsonant(underlyingModel.toMass(sensorValue));
+        if (underlyingModel instanceof ConsonantModel) {
+            return ((ConsonantModel<T>) underlyingModel).toConsonantMass(sensorValue).toMass();
+        }
+        return getFrame().newMass(Mass.toConsonant(underlyingModel.toMass(sensorValue)));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void toMassInto(T sensorValue, MutableMass target) {
+        if (underlyingModel instanceof ConsonantModel) {
+            ((ConsonantModel<T>) underlyingModel).toConsonantMass(sensorValue)
+                    .toMassInto(target);
+        }
+        else {
+            InPlaceBeliefModel.copy(Mass.toConsonant(underlyingModel.toMass(sensorValue)),
+                    target);
+        }
     }
 
     @Override
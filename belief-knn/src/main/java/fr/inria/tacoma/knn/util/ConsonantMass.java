@@ -0,0 +1,130 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+
+/**
+ * Consonant mass function, stored as the possibility of each state. The focal sets are nested:
+ * the i-th one holds the i states of highest possibility, and its mass is the difference between
+ * the possibility of its last state and the one of the next state. This is the result of
+ * Mass.toConsonant, the possibility of a state being its plausibility divided by the highest
+ * plausibility.
+ */
+public final class ConsonantMass {
+
+    private final FrameOfDiscernment frame;
+    /**
+     * Possibility of each state ordinal (see LabelSets), the highest being 1.
+     */
+    private final double[] possibilities;
+    /**
+     * State ordinals sorted by decreasing possibility, states of the same possibility being
+     * sorted by ordinal.
+     */
+    private final int[] order;
+
+    /**
+     * @param frame frame of the mass function
+     * @param plausibilities plausibility of each state ordinal, or any values proportional to
+     *                       them
+     */
+    public ConsonantMass(FrameOfDiscernment frame, double[] plausibilities) {
+        this.frame = frame;
+        int card = frame.card();
+        double max = 0;
+        for (int state = 0; state < card; state++) {
+            max = Math.max(max, plausibilities[state]);
+        }
+        if (!(max > 0)) {
+            throw new IllegalArgumentException("no state is plausible");
+        }
+        this.possibilities = new double[card];
+        for (int state = 0; state < card; state++) {
+            possibilities[state] = plausibilities[state] / max;
+        }
+
+        // insertion sort, frames are small
+        this.order = new int[card];
+        for (int state = 0; state < card; state++) {
+            int i = state;
+            while (i > 0 && possibilities[order[i - 1]] < possibilities[state]) {
+                order[i] = order[i - 1];
+                i--;
+            }
+            order[i] = state;
+        }
+    }
+
+    /**
+     * Consonant form of the Dempster's combination of simple support functions on the states.
+     * The plausibility of a state is proportional to the product of the ignorances of the other
+     * states, so the combination itself is never computed.
+     * @param frame frame of the supports
+     * @param ignorances for each state ordinal, the product of the masses on the full ignorance
+     *                   of the supports on this state (see SupportCombination)
+     */
+    public static ConsonantMass ofSupports(FrameOfDiscernment frame, double[] ignorances) {
+        int card = frame.card();
+        double[] plausibilities = new double[card];
+        SupportCombinations.exclusiveProducts(ignorances, card, plausibilities, 0);
+        return new ConsonantMass(frame, plausibilities);
+    }
+
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return possibility of the state of the given ordinal
+     */
+    public double getPossibility(int ordinal) {
+        return possibilities[ordinal];
+    }
+
+    /**
+     * @return ordinal of the state having the i-th highest possibility, the i-th focal set
+     * holding the states of the first i + 1 ordinals.
+     */
+    public int getState(int i) {
+        return order[i];
+    }
+
+    /**
+     * @return mass of the i-th focal set
+     */
+    public double getFocalMass(int i) {
+        double next = i + 1 < order.length ? possibilities[order[i + 1]] : 0;
+        return possibilities[order[i]] - next;
+    }
+
+    /**
+     * Converts to a mass function with the nested focal sets.
+     */
+    public MutableMass toMass() {
+        MutableMass mass = frame.newMass();
+        write(mass);
+        return mass;
+    }
+
+    /**
+     * Writes the mass function with the nested focal sets into target, replacing its content
+     * (see InPlaceBeliefModel).
+     */
+    public void toMassInto(MutableMass target) {
+        InPlaceBeliefModel.clear(target);
+        write(target);
+    }
+
+    private void write(MutableMass mass) {
+        LabelSets labelSets = LabelSets.of(frame);
+        long focalSet = 0;
+        for (int i = 0; i < order.length; i++) {
+            focalSet |= 1L << order[i];
+            double focalMass = getFocalMass(i);
+            if (focalMass > 0) {
+                mass.set(labelSets.union(focalSet), focalMass);
+            }
+        }
+    }
+}
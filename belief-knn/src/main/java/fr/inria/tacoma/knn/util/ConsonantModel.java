@@ -0,0 +1,15 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+
+/**
+ * Model which can give the consonant form of its mass functions without computing them, see
+ * ConsonantBeliefModel.
+ */
+public interface ConsonantModel<T> extends SensorBeliefModel<T> {
+
+    /**
+     * @return the consonant form of toMass(sensorValue)
+     */
+    ConsonantMass toConsonantMass(T sensorValue);
+}
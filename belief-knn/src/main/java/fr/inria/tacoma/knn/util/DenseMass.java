@@ -0,0 +1,295 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mass function stored as an array indexed by the bit masks of the focal sets (see LabelSets),
+ * the empty set being at index 0. The combinations are computed in the commonality (for the
+ * conjunctive and Dempster's rules) or implicability (for the disjunctive rule) space, where
+ * they are pointwise products. The transforms cost O(n.2^n) for a frame of n states, whatever
+ * the number of focal elements, so this is meant for masses having many focal elements compared
+ * to the size of their frame (see isCheaper).
+ */
+public final class DenseMass {
+
+    /**
+     * Greatest number of states of a frame, the array having 2^n values.
+     */
+    public static final int MAX_STATES = 20;
+
+    /**
+     * Absolute precision of the transforms, the masses below it are dropped when converting
+     * back to a mass function.
+     */
+    public static final double PRECISION = 1e-12;
+
+    private final FrameOfDiscernment frame;
+    private final LabelSets labelSets;
+    private final double[] values;
+
+    private DenseMass(FrameOfDiscernment frame, double[] values) {
+        this.frame = frame;
+        this.labelSets = LabelSets.of(frame);
+        this.values = values;
+    }
+
+    /**
+     * Creates a mass function without any focal element.
+     */
+    public DenseMass(FrameOfDiscernment frame) {
+        this(frame, new double[size(frame)]);
+    }
+
+    /**
+     * @return true if the mass functions of the frame can be stored densely
+     */
+    public static boolean supports(FrameOfDiscernment frame) {
+        return frame.card() <= MAX_STATES;
+    }
+
+    /**
+     * Compares the cost of the dense combination, a transform of 2^n values per mass, with the
+     * cost of combining the focal elements pairwise, which is about the square of their number
+     * per combination. Masses of simple supports have a few focal elements, so the dense
+     * combination is only worth it on small frames or for masses having many focal elements.
+     * @param masses masses to combine
+     * @return true if the frame of the masses can be stored densely and combining them densely
+     * is expected to be cheaper
+     */
+    public static boolean isCheaper(List<? extends MassFunction> masses) {
+        FrameOfDiscernment frame = frameOf(masses.get(0));
+        if (!supports(frame)) {
+            return false;
+        }
+        long focalCount = 0;
+        for (MassFunction mass : masses) {
+            focalCount = Math.max(focalCount, mass.getFocalStateSets().size());
+        }
+        return focalCount * focalCount > (long) frame.card() << frame.card();
+    }
+
+    private static int size(FrameOfDiscernment frame) {
+        if (!supports(frame)) {
+            throw new IllegalArgumentException("frames of more than " + MAX_STATES
+                    + " states can not be stored densely");
+        }
+        return 1 << frame.card();
+    }
+
+    /**
+     * Converts a mass function.
+     */
+    public static DenseMass of(MassFunction mass) {
+        FrameOfDiscernment frame = frameOf(mass);
+        DenseMass dense = new DenseMass(frame);
+        mass.foreachFocalElement((stateSet, value) ->
+                dense.values[(int) dense.labelSets.mask(stateSet)] += value);
+        return dense;
+    }
+
+    private static FrameOfDiscernment frameOf(MassFunction mass) {
+        for (StateSet stateSet : mass.getFocalStateSets()) {
+            return stateSet.getFrame();
+        }
+        throw new IllegalArgumentException("the mass function has no focal element");
+    }
+
+    /**
+     * @param mask bits of the ordinals of the states of the set
+     * @return mass of the set, the mass of the empty set being the conflict
+     */
+    public double get(long mask) {
+        return values[(int) mask];
+    }
+
+    public FrameOfDiscernment getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return mass of the empty set
+     */
+    public double getConflict() {
+        return values[0];
+    }
+
+    /**
+     * Combines mass functions with the conjunctive rule, whose result keeps the conflict on
+     * the empty set.
+     */
+    public static DenseMass conjunctive(List<? extends MassFunction> masses) {
+        return combine(masses, true);
+    }
+
+    /**
+     * Combines mass functions with Dempster's rule, i.e. the conjunctive rule normalized.
+     */
+    public static DenseMass dempster(List<? extends MassFunction> masses) {
+        return conjunctive(masses).normalize();
+    }
+
+    /**
+     * Combines mass functions with the disjunctive rule.
+     */
+    public static DenseMass disjunctive(List<? extends MassFunction> masses) {
+        return combine(masses, false);
+    }
+
+    private static DenseMass combine(List<? extends MassFunction> masses, boolean conjunctive) {
+        if (masses.isEmpty()) {
+            throw new IllegalArgumentException("no mass function to combine");
+        }
+        DenseMass result = null;
+        for (MassFunction mass : masses) {
+            double[] transform = of(mass).values;
+            if (conjunctive) {
+                supersetSums(transform);
+            }
+            else {
+                subsetSums(transform);
+            }
+            if (result == null) {
+                result = new DenseMass(frameOf(mass), transform);
+            }
+            else {
+                for (int i = 0; i < transform.length; i++) {
+                    result.values[i] *= transform[i];
+                }
+            }
+        }
+        if (conjunctive) {
+            supersetDifferences(result.values);
+        }
+        else {
+            subsetDifferences(result.values);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the mass of the empty set on the other sets proportionally to their masses.
+     * @return this mass function
+     */
+    public DenseMass normalize() {
+        double conflict = values[0];
+        if (conflict >= 1) {
+            throw new IllegalArgumentException("the mass functions are in total conflict");
+        }
+        values[0] = 0;
+        for (int i = 1; i < values.length; i++) {
+            values[i] /= 1 - conflict;
+        }
+        return this;
+    }
+
+    /**
+     * @return the commonality function, q(A) being the sum of the masses of the supersets of A
+     */
+    public double[] commonalities() {
+        double[] commonalities = values.clone();
+        supersetSums(commonalities);
+        return commonalities;
+    }
+
+    /**
+     * @return the implicability function, b(A) being the sum of the masses of the subsets of A
+     * (including the empty set)
+     */
+    public double[] implicabilities() {
+        double[] implicabilities = values.clone();
+        subsetSums(implicabilities);
+        return implicabilities;
+    }
+
+    /**
+     * Converts this mass function, which must not have any conflict. The masses below the
+     * precision of the transforms, which can come from rounding errors on sets which should have
+     * no mass, are dropped and the other ones are scaled so they still sum to 1.
+     */
+    public MutableMass toMass() {
+        if (values[0] > PRECISION) {
+            throw new IllegalArgumentException("the empty set can not be a focal element, the "
+                    + "mass function must be normalized");
+        }
+        double total = 0;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > PRECISION) {
+                total += values[i];
+            }
+        }
+        MutableMass mass = frame.newMass();
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] > PRECISION) {
+                mass.set(labelSets.union(i), values[i] / total);
+            }
+        }
+        return mass;
+    }
+
+    /**
+     * Zeta transform on the supersets, in place.
+     * @param values values indexed by the bit masks of the sets, 2^n of them
+     */
+    public static void supersetSums(double[] values) {
+        for (int bit = 1; bit < values.length; bit <<= 1) {
+            for (int set = 0; set < values.length; set++) {
+                if ((set & bit) == 0) {
+                    values[set] += values[set | bit];
+                }
+            }
+        }
+    }
+
+    /**
+     * Moebius transform on the supersets, inverse of supersetSums, in place.
+     * @param values values indexed by the bit masks of the sets, 2^n of them
+     */
+    public static void supersetDifferences(double[] values) {
+        for (int bit = 1; bit < values.length; bit <<= 1) {
+            for (int set = 0; set < values.length; set++) {
+                if ((set & bit) == 0) {
+                    values[set] -= values[set | bit];
+                }
+            }
+        }
+    }
+
+    /**
+     * Zeta transform on the subsets, in place.
+     * @param values values indexed by the bit masks of the sets, 2^n of them
+     */
+    public static void subsetSums(double[] values) {
+        for (int bit = 1; bit < values.length; bit <<= 1) {
+            for (int set = 0; set < values.length; set++) {
+                if ((set & bit) != 0) {
+                    values[set] += values[set ^ bit];
+                }
+            }
+        }
+    }
+
+    /**
+     * Moebius transform on the subsets, inverse of subsetSums, in place.
+     * @param values values indexed by the bit masks of the sets, 2^n of them
+     */
+    public static void subsetDifferences(double[] values) {
+        for (int bit = 1; bit < values.length; bit <<= 1) {
+            for (int set = 0; set < values.length; set++) {
+                if ((set & bit) != 0) {
+                    values[set] -= values[set ^ bit];
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
@@ -9,14 +9,16 @@ import fr.inria.tacoma.bft.decision.CriteriaDecisionStrategy;
 import fr.inria.tacoma.bft.decision.Decision;
 import fr.inria.tacoma.bft.decision.DecisionStrategy;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
 import fr.inria.tacoma.knn.core.LabelledPoint;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
-public class DiscountingBeliefModel implements SensorBeliefModel<Double> {
+public class DiscountingBeliefModel implements InPlaceBeliefModel<Double> {
 
     private SensorBeliefModel<Double> underlyingModel;
     private Function<Double, Double> weakeningFunction;
@@ -34,6 +36,23 @@ public class DiscountingBeliefModel implements SensorBeliefModel<Double> {
         return massFunction;
     }
 
+    @Override
+    public void toMassInto(Double sensorValue, MutableMass target) {
+        InPlaceBeliefModel.toMassInto(underlyingModel, sensorValue, target);
+        target.discount(weakening(sensorValue));
+    }
+
+    /**
+     * @return the weakening of a value, without boxing it when the weakening function is a
+     * WeakeningFunction
+     */
+    private double weakening(double sensorValue) {
+        if (weakeningFunction instanceof WeakeningFunction) {
+            return ((WeakeningFunction) weakeningFunction).applyAsDouble(sensorValue);
+        }
+        return weakeningFunction.apply(sensorValue);
+    }
+
     @Override
     public MassFunction toMassWithoutValue() {
         return underlyingModel.toMassWithoutValue();
@@ -44,7 +63,8 @@ public class DiscountingBeliefModel implements SensorBeliefModel<Double> {
         return underlyingModel.getFrame();
     }
 
-    public static class WeakeningFunction implements Function<Double, Double> {
+    public static class WeakeningFunction implements Function<Double, Double>,
+            DoubleUnaryOperator {
         private Map<Double, Double> alphas = new HashMap<>();
         private Map<Double, Double> stdDevs = new HashMap<>();
 
@@ -65,6 +85,20 @@ public class DiscountingBeliefModel implements SensorBeliefModel<Double> {
                 return max * Math.exp(-Math.pow(3 * diff / stdDevs.get(entry.getKey()), 2));
             }).sum();
         }
+
+        /**
+         * Same as apply, without boxing nor stream.
+         */
+        @Override
+        public double applyAsDouble(double value) {
+            double sum = 0;
+            for (Map.Entry<Double, Double> entry : alphas.entrySet()) {
+                double diff = entry.getKey() - value;
+                sum += entry.getValue()
+                        * Math.exp(-Math.pow(3 * diff / stdDevs.get(entry.getKey()), 2));
+            }
+            return sum;
+        }
     }
 
     public static DiscountingBeliefModel
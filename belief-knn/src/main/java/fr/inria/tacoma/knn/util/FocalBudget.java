@@ -0,0 +1,228 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.combinations.Combinations;
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.SupportCombination;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bound on the number of focal elements of combined mass functions. A mass function is
+ * summarized by dropping its focal sets whose mass is below a threshold, then its lightest
+ * focal sets until at most maxFocalElements remain. The mass of a dropped set is moved to the
+ * smallest kept focal set including it, the full ignorance being kept when needed.
+ *
+ * The disjunctive part of Dubois and Prade's rule creates unions of focal sets, so the number
+ * of focal elements grows with the number of neighbors and states. Summarizing the result of a
+ * combination (see wrap) keeps its rule and bounds the mass functions the models give.
+ * Summarizing after each step (see stepwise) also bounds the cost of the combination, but only
+ * keeps the rule of an associative combination. The closed forms of SupportCombinations need no
+ * budget: they give at most the singletons, one union and the full ignorance.
+ *
+ * The budget counts the focal elements dropped and the mass moved by every summary, which may
+ * come from several threads.
+ */
+public class FocalBudget {
+
+    private final int maxFocalElements;
+    private final double minMass;
+    private final LongAdder droppedFocalElements = new LongAdder();
+    private final DoubleAdder movedMass = new DoubleAdder();
+
+    /**
+     * @param maxFocalElements maximal number of focal elements of a summarized mass function,
+     *                         at least 1
+     * @param minMass focal sets with a lower mass are dropped, 0 to only apply the maximal
+     *                number of focal elements
+     */
+    public FocalBudget(int maxFocalElements, double minMass) {
+        if (maxFocalElements < 1) {
+            throw new IllegalArgumentException("at least one focal element must be kept, not "
+                    + maxFocalElements);
+        }
+        if (minMass < 0 || minMass > 1) {
+            throw new IllegalArgumentException("the minimal mass must be between 0 and 1, not "
+                    + minMass);
+        }
+        this.maxFocalElements = maxFocalElements;
+        this.minMass = minMass;
+    }
+
+    public int getMaxFocalElements() {
+        return maxFocalElements;
+    }
+
+    public double getMinMass() {
+        return minMass;
+    }
+
+    /**
+     * @return number of focal elements dropped by the summaries since the last reset
+     */
+    public long getDroppedFocalElements() {
+        return droppedFocalElements.sum();
+    }
+
+    /**
+     * @return total mass moved to other focal sets by the summaries since the last reset
+     */
+    public double getMovedMass() {
+        return movedMass.sum();
+    }
+
+    public void reset() {
+        droppedFocalElements.reset();
+        movedMass.reset();
+    }
+
+    /**
+     * Summarizes a mass function within the budget.
+     * @param mass mass function, which is not modified
+     * @return the mass function itself when it is within the budget, a summarized copy
+     * otherwise
+     */
+    public MassFunction summarize(MassFunction mass) {
+        List<StateSet> focalSets = new ArrayList<>(mass.getFocalStateSets());
+        focalSets.removeIf(stateSet -> mass.get(stateSet) == 0);
+        boolean light = false;
+        for (StateSet stateSet : focalSets) {
+            light |= mass.get(stateSet) < minMass;
+        }
+        if (!light && focalSets.size() <= maxFocalElements) {
+            return mass;
+        }
+
+        StateSet fullIgnorance = focalSets.get(0).getFrame().fullIgnoranceSet();
+        // heaviest first, the full ignorance before any set of the same mass
+        focalSets.sort((a, b) -> {
+            int comparison = Double.compare(mass.get(b), mass.get(a));
+            return comparison != 0 ? comparison
+                    : Boolean.compare(b.equals(fullIgnorance), a.equals(fullIgnorance));
+        });
+        int keptCount = 0;
+        while (keptCount < focalSets.size() && keptCount < maxFocalElements
+                && mass.get(focalSets.get(keptCount)) >= minMass) {
+            keptCount++;
+        }
+        List<StateSet> kept = new ArrayList<>(focalSets.subList(0, keptCount));
+        if (!kept.contains(fullIgnorance)) {
+            // the full ignorance receives the sets without any kept superset
+            if (kept.size() == maxFocalElements) {
+                kept.remove(kept.size() - 1);
+            }
+            kept.add(fullIgnorance);
+        }
+
+        LabelSets labelSets = LabelSets.of(fullIgnorance.getFrame());
+        FrameOfDiscernment frame = fullIgnorance.getFrame();
+        MutableMass summary = frame.newMass();
+        int[] cards = new int[kept.size()];
+        for (int i = 0; i < kept.size(); i++) {
+            cards[i] = Long.bitCount(labelSets.mask(kept.get(i)));
+            if (mass.get(kept.get(i)) != 0) {
+                summary.set(kept.get(i), mass.get(kept.get(i)));
+            }
+        }
+        int dropped = 0;
+        double moved = 0;
+        for (StateSet stateSet : focalSets) {
+            if (kept.contains(stateSet)) {
+                continue;
+            }
+            int superset = -1;
+            for (int i = 0; i < kept.size(); i++) {
+                if (kept.get(i).includesOrEquals(stateSet)
+                        && (superset < 0 || cards[i] < cards[superset])) {
+                    superset = i;
+                }
+            }
+            summary.addToFocal(kept.get(superset), mass.get(stateSet));
+            dropped++;
+            moved += mass.get(stateSet);
+        }
+        droppedFocalElements.add(dropped);
+        movedMass.add(moved);
+        return summary;
+    }
+
+    /**
+     * Gives a combination whose results are summarized within the budget. A support
+     * combination stays a support combination reporting the same rule (see
+     * SupportCombination.getKind), so the engines keep computing it from the merged
+     * ignorances, those with a closed form of the rule without summary.
+     */
+    public Function<List<MassFunction>, MassFunction> wrap(
+            Function<List<MassFunction>, MassFunction> combination) {
+        if (combination instanceof SupportCombination) {
+            SupportCombination supports = (SupportCombination) combination;
+            return new SupportCombination() {
+                @Override
+                public Kind getKind() {
+                    return supports.getKind();
+                }
+
+                @Override
+                public MutableMass combine(FrameOfDiscernment frame, double[] ignorances) {
+                    MutableMass combined = supports.combine(frame, ignorances);
+                    MassFunction summary = summarize(combined);
+                    return summary == combined ? combined : frame.newMass(summary);
+                }
+
+                @Override
+                public double merge(double ignorance, double support) {
+                    return supports.merge(ignorance, support);
+                }
+            };
+        }
+        return masses -> summarize(combination.apply(masses));
+    }
+
+    /**
+     * Gives a combination summarized after each step, so no intermediate mass function exceeds
+     * the budget. The masses with the same focal sets, such as the neighbors of the same label,
+     * are first combined with Dempster's rule, then the results are combined two at a time
+     * with the given combination.
+     *
+     * This is the given rule only when it is associative, such as Dempster's rule. Dubois and
+     * Prade's rule is not: folding three supported labels two at a time puts some of their
+     * conflict on unions of two labels, where the rule applied to the three of them puts it on
+     * the full ignorance.
+     * @param combination combination of a list of mass functions, applied to two of them at
+     *                    each step
+     */
+    public Function<List<MassFunction>, MassFunction> stepwise(
+            Function<List<MassFunction>, MassFunction> combination) {
+        return masses -> {
+            Map<Set<StateSet>, MassFunction> grouped = new LinkedHashMap<>();
+            for (MassFunction mass : masses) {
+                grouped.merge(mass.getFocalStateSets(), mass, Combinations::dempster);
+            }
+            MassFunction combined = null;
+            for (MassFunction mass : grouped.values()) {
+                combined = combined == null ? mass
+                        : combination.apply(Arrays.asList(combined, mass));
+                combined = summarize(combined);
+            }
+            return combined;
+        };
+    }
+
+    /**
+     * Gives Dubois and Prade's combination of KnnUtils.optimizedDuboisAndPrade, its result being
+     * summarized within the budget (see wrap).
+     */
+    public Function<List<MassFunction>, MassFunction> duboisAndPrade() {
+        return wrap(KnnUtils::optimizedDuboisAndPrade);
+    }
+}
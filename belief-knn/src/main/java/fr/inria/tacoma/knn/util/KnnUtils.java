@@ -12,9 +12,11 @@ import fr.inria.tacoma.bft.core.mass.MutableMass;
 import fr.inria.tacoma.bft.criteria.Criteria;
 import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
 import fr.inria.tacoma.bft.util.Mass;
+import fr.inria.tacoma.knn.core.Distance;
 import fr.inria.tacoma.knn.core.KnnBelief;
 import fr.inria.tacoma.knn.core.KnnFactory;
 import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
 import fr.inria.tacoma.knn.unidimensional.SensorValue;
 
 import java.io.IOException;
@@ -23,7 +25,8 @@ import java.io.PrintWriter;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.*;
-import java.util.function.BiFunction;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -32,6 +35,23 @@ public class KnnUtils {
 
     public static final double NEWTON_STEP = 0.0001;
     public static final double MAX_ALPHA = 0.9;
+    /**
+     * Lowest k tried by getBestKnnBeliefForAlphaAndK.
+     */
+    public static final int MIN_NEIGHBOR_COUNT = 2;
+    /**
+     * Maximal number of values of k tried by getBestKnnBeliefForAlphaAndK.
+     */
+    public static final int MAX_K_COUNT = 100;
+    /**
+     * Alpha the search of the best alpha starts from when no better guess is known.
+     */
+    public static final double START_ALPHA = 0.05;
+    /**
+     * Default search of the best alpha for a given k.
+     */
+    public static final Optimizer ALPHA_SEARCH = new BrentSearch(0.001);
+    private static final int MAX_ALPHA_ITERATIONS = 50;
 
     /**
      * Extract the end of a list and returns the extracted list. The items will
@@ -91,6 +111,19 @@ public class KnnUtils {
         return Combinations.duboisAndPrade(new ArrayList<>(optimized.values()));
     }
 
+    /**
+     * Same as optimizedDuboisAndPrade, the result being summarized within the budget (see
+     * FocalBudget).
+     *
+     * @param masses masses to fuse
+     * @param budget bound on the focal elements of the result
+     * @return fused mass function
+     */
+    public static MassFunction optimizedDuboisAndPrade(List<MassFunction> masses,
+                                                       FocalBudget budget) {
+        return budget.duboisAndPrade().apply(masses);
+    }
+
     /**
      * An hybrid fusion mechanism which apply dempster for every points with the same label, end the
      * fuse the resulting mass functions with dubois and prade. This allow to perform a very
@@ -117,7 +150,35 @@ public class KnnUtils {
         return Combinations.duboisAndPrade(new ArrayList<>(optimized.values()));
     }
 
+    /**
+     * Tells if two training sets hold the same points, in the same order, the points being
+     * compared by reference. The indexes of a training set (see KdTree, PackedPoints) use it to
+     * tell if they can be reused for another list.
+     */
+    public static boolean samePoints(List<?> points1, List<?> points2) {
+        if (points1.size() != points2.size()) {
+            return false;
+        }
+        for (int i = 0; i < points1.size(); i++) {
+            if (points1.get(i) != points2.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Dempster's combination of the masses. The masses are combined in the commonality space
+     * when it is cheaper (see DenseMass.isCheaper), otherwise the masses with the same focal
+     * sets are combined first.
+     *
+     * @param masses masses to fuse
+     * @return fused mass function
+     */
     public static MassFunction optimizedDempster(List<MassFunction> masses) {
+        if (DenseMass.isCheaper(masses)) {
+            return DenseMass.dempster(masses).toMass();
+        }
         Map<Set<StateSet>, MassFunction> optimized = new HashMap<>();
 
         for (MassFunction mass : masses) {
@@ -148,8 +209,11 @@ public class KnnUtils {
      */
     public static <T> double error(List<? extends LabelledPoint<T>> crossValidation,
                                    SensorBeliefModel<T> model) {
-        return crossValidation.stream().mapToDouble(point -> {
-            MassFunction actualMassFunction = model.toMass(point.getValue());
+        MutableMass[] masses = toMasses(model, crossValidation.stream()
+                .map(LabelledPoint::getValue).collect(Collectors.toList()));
+        return IntStream.range(0, masses.length).mapToDouble(i -> {
+            LabelledPoint<T> point = crossValidation.get(i);
+            MassFunction actualMassFunction = masses[i];
             MutableMass idealMassFunction = model.getFrame().newMass()
                     .set(point.getStateSet(), 1.0)
                     .putRemainingOnIgnorance();
@@ -158,6 +222,25 @@ public class KnnUtils {
         }).average().orElse(0);
     }
 
+    /**
+     * Computes the mass functions of several values with the given model. When the model is a
+     * KnnBelief, the values are given all at once so it can share the neighbor search.
+     * @param model model to use
+     * @param values sensor values
+     * @param <T> type of data used by the model
+     * @return the mass functions, in the order of the values
+     */
+    public static <T> MutableMass[] toMasses(SensorBeliefModel<T> model, List<? extends T> values) {
+        if (model instanceof KnnBelief) {
+            return ((KnnBelief<T>) model).toMasses(values);
+        }
+        MutableMass[] masses = new MutableMass[values.size()];
+        for (int i = 0; i < masses.length; i++) {
+            masses[i] = model.toMass(values.get(i));
+        }
+        return masses;
+    }
+
 
     public static <T> KnnBelief<T> getBestKnnBeliefWithFixedAlpha(KnnFactory<T> factory,
                                                                   List<? extends LabelledPoint<T>> points,
@@ -170,21 +253,78 @@ public class KnnUtils {
     public static <T> KnnBelief<T> getBestKnnBeliefForAlphaAndK(KnnFactory<T> factory,
             List<LabelledPoint<T>> points,
             List<LabelledPoint<T>> crossValidation) {
+        return getBestKnnBeliefForAlphaAndK(factory, points, crossValidation, Integer.MAX_VALUE);
+    }
 
-        int maxNeighborCount =  points.size() - 1;
-        List<KnnBelief<T>> models = getKnnBeliefsForK(factory, points, crossValidation,
-                maxNeighborCount);
+    /**
+     * Finds the best alpha for each k in increasing order, and keeps the model with the lowest
+     * error. Several values of k are evaluated in parallel, in the fork/join pool of the
+     * current task or in the common pool, and the result is the same as if they were
+     * evaluated one after another.
+     * @param patience the search stops when the error has not decreased for this number of
+     *                 consecutive values of k
+     * @return the model with the lowest error, the one with the lowest k on a tie
+     */
+    public static <T> KnnBelief<T> getBestKnnBeliefForAlphaAndK(KnnFactory<T> factory,
+            List<LabelledPoint<T>> points,
+            List<LabelledPoint<T>> crossValidation, int patience) {
+        return getBestKnnBeliefForAlphaAndK(factory, points, crossValidation, patience,
+                START_ALPHA);
+    }
+
+    /**
+     * Same as getBestKnnBeliefForAlphaAndK(KnnFactory, List, List, int), the search of the best
+     * alpha of every k starting from startAlpha, such as the best alpha of another fold.
+     */
+    public static <T> KnnBelief<T> getBestKnnBeliefForAlphaAndK(KnnFactory<T> factory,
+            List<LabelledPoint<T>> points,
+            List<LabelledPoint<T>> crossValidation, int patience, double startAlpha) {
+        if (patience < 1) {
+            throw new IllegalArgumentException("the patience must be positive, not " + patience);
+        }
+        int maxNeighborCount = Math.min(points.size() - 1, MIN_NEIGHBOR_COUNT + MAX_K_COUNT);
+        ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool()
+                : ForkJoinPool.commonPool();
+        int batchSize = Math.max(1, pool.getParallelism());
+        // the neighbors of the cross validation points are searched once for every k
+        NeighborTable table = maxNeighborCount <= MIN_NEIGHBOR_COUNT ? null
+                : factory.newKnnBelief(points, generateGammaProvider(factory.getDistance(),
+                points), maxNeighborCount - 1, MAX_ALPHA).neighborTable(crossValidation,
+                maxNeighborCount - 1);
 
         KnnBelief<T> bestModel = null;
         double lowestError = Double.POSITIVE_INFINITY;
-        for (KnnBelief<T> model : models) {
-            double error = KnnUtils.error(crossValidation, model);
-//            System.out.println(error);
-            if (error < lowestError) {
-                lowestError = error;
-                bestModel = model;
+        int withoutImprovement = 0;
+        List<ForkJoinTask<Candidate<T>>> tasks = new ArrayList<>(batchSize);
+        for (int batchStart = MIN_NEIGHBOR_COUNT;
+             batchStart < maxNeighborCount && withoutImprovement < patience;
+             batchStart += batchSize) {
+            tasks.clear();
+            for (int k = batchStart; k < Math.min(batchStart + batchSize, maxNeighborCount);
+                 k++) {
+                int neighborCount = k;
+                tasks.add(ForkJoinTask.adapt(() -> new Candidate<>(getBestModelForFixedK(
+                        factory, points, crossValidation, neighborCount, table, ALPHA_SEARCH,
+                        startAlpha),
+                        crossValidation, table)));
+            }
+            inPool(pool, tasks);
+            for (int i = 0; i < tasks.size() && withoutImprovement < patience; i++) {
+                Candidate<T> candidate = tasks.get(i).join();
+                if (candidate.error < lowestError) {
+                    lowestError = candidate.error;
+                    bestModel = candidate.model;
+                    withoutImprovement = 0;
+                }
+                else {
+                    withoutImprovement++;
+                }
             }
         }
+        // the values of k evaluated after the stop are not needed
+        for (ForkJoinTask<Candidate<T>> task : tasks) {
+            task.cancel(false);
+        }
 
         assert bestModel != null;
         System.out.println("lowest error: " + lowestError);
@@ -193,13 +333,34 @@ public class KnnUtils {
         return bestModel;
     }
 
-    private static <T> List<KnnBelief<T>> getKnnBeliefsForK(KnnFactory<T> factory,
-                                                            List<? extends LabelledPoint<T>> points,
-                                                            List<? extends LabelledPoint<T>> crossValidation,
-                                                            int maxNeighborCount) {
-        return IntStream.range(2, maxNeighborCount).limit(100).mapToObj(
-                k -> getBestModelForFixedKNewton(factory, points, crossValidation, k)
-        ).collect(Collectors.toList());
+    /**
+     * Model of the k-sweep with its cross validation error.
+     */
+    private static final class Candidate<T> {
+        private final KnnBelief<T> model;
+        private final double error;
+
+        Candidate(KnnBelief<T> model, List<? extends LabelledPoint<T>> crossValidation,
+                  NeighborTable table) {
+            this.model = model;
+            this.error = table == null ? error(crossValidation, model)
+                    : table.error(model.getK(), model.getAlpha(), model.getGammas());
+        }
+    }
+
+    /**
+     * Runs tasks in a pool: they are forked when the current thread is a worker of the pool,
+     * and submitted otherwise.
+     */
+    private static <V> void inPool(ForkJoinPool pool, List<ForkJoinTask<V>> tasks) {
+        for (ForkJoinTask<V> task : tasks) {
+            if (ForkJoinTask.getPool() == pool) {
+                task.fork();
+            }
+            else {
+                pool.execute(task);
+            }
+        }
     }
 
     private static <T> KnnBelief<T> getBestModelForFixedK(KnnFactory<T> factory,
@@ -222,51 +383,57 @@ public class KnnUtils {
         return model;
     }
 
+    /**
+     * Finds the alpha with the lowest error for a given k with the default search (see
+     * ALPHA_SEARCH), starting from START_ALPHA.
+     */
     public static <T> KnnBelief<T> getBestModelForFixedKNewton(KnnFactory<T> factory,
                                                           List<? extends LabelledPoint<T>> points,
                                                           List<? extends LabelledPoint<T>> crossValidation,
                                                           int k) {
-        Map<String, Double> gammas = generateGammaProvider(factory.getDistance(), points);
-        KnnBelief<T> model = null;
-        double alpha = 0.05;
-        int iterations = 0;
-        double stopCriteria = 0.001;
-        double variation = stopCriteria + 2;
-//        System.out.println("k=" + k);
-        while(iterations < 10 && variation > stopCriteria) {
-            model = factory.newKnnBelief(points, gammas, k, alpha);
-            variation = computeVariation(crossValidation, model, alpha);
-//            System.out.println(alpha + " - " + variation + " -> " +  (alpha - variation));
-            alpha = alpha - variation;
-            if(alpha < NEWTON_STEP) {
-                alpha = 2.0 * NEWTON_STEP;
-            }
-            else if(alpha > MAX_ALPHA) {
-                alpha = MAX_ALPHA;
-            }
-            iterations++;
-        }
-//        System.out.println();
-        return factory.newKnnBelief(points, gammas, k, alpha);
+        return getBestModelForFixedK(factory, points, crossValidation, k, ALPHA_SEARCH,
+                START_ALPHA);
     }
 
-    private static <T> double computeVariation(List<? extends LabelledPoint<T>> crossValidation,
-                                               KnnBelief<T> model, double alpha) {
-
-//        try {
-
-            double errorLeft = KnnUtils.error(crossValidation, model.withAlpha(alpha - NEWTON_STEP));
-            double errorRight = KnnUtils.error(crossValidation, model.withAlpha(alpha + NEWTON_STEP));
-            double errorCenter = KnnUtils.error(crossValidation, model.withAlpha(alpha));
+    /**
+     * Finds the alpha with the lowest error for a given k, alpha being kept between
+     * 2 * NEWTON_STEP and MAX_ALPHA.
+     * @param optimizer strategy of the search, over a single parameter (see BrentSearch)
+     * @param startAlpha alpha the search starts from, such as the best alpha of a similar
+     *                   training set
+     * @return the model with the best alpha found
+     */
+    public static <T> KnnBelief<T> getBestModelForFixedK(KnnFactory<T> factory,
+                                                        List<? extends LabelledPoint<T>> points,
+                                                        List<? extends LabelledPoint<T>> crossValidation,
+                                                        int k, Optimizer optimizer,
+                                                        double startAlpha) {
+        return getBestModelForFixedK(factory, points, crossValidation, k, null, optimizer,
+                startAlpha);
+    }
 
-            double diffCenter = (errorRight - errorLeft) / (2 * NEWTON_STEP);
-            double secondOrder = (errorRight + errorLeft - 2 * errorCenter) / (NEWTON_STEP * NEWTON_STEP);
-            return diffCenter / secondOrder;
-//        }
-//        catch (Exception e) {
-//            printErrorForModel(crossValidation, model);
-//            throw e;
-//        }
+    /**
+     * Same as getBestModelForFixedK, the errors being computed from a table of the neighbors of
+     * the cross validation points (see NeighborTable).
+     * @param table table of a greatest k at least k, null to get it from the first model
+     */
+    private static <T> KnnBelief<T> getBestModelForFixedK(KnnFactory<T> factory,
+                                                         List<? extends LabelledPoint<T>> points,
+                                                         List<? extends LabelledPoint<T>> crossValidation,
+                                                         int k, NeighborTable table,
+                                                         Optimizer optimizer, double startAlpha) {
+        Map<String, Double> gammas = generateGammaProvider(factory.getDistance(), points);
+        KnnBelief<T> model = factory.newKnnBelief(points, gammas, k, startAlpha);
+        NeighborTable neighbors = table != null ? table
+                : model.neighborTable(crossValidation, k);
+        Objective error = Objective.withFiniteDifferences(neighbors != null
+                ? alpha -> neighbors.error(k, alpha[0], gammas)
+                : alpha -> KnnUtils.error(crossValidation, model.withAlpha(alpha[0])),
+                NEWTON_STEP);
+        double[] alpha = optimizer.minimize(error, new double[]{startAlpha},
+                new double[]{2.0 * NEWTON_STEP}, new double[]{MAX_ALPHA},
+                MAX_ALPHA_ITERATIONS);
+        return factory.newKnnBelief(points, gammas, k, alpha[0]);
     }
 
     public static <T> void printErrorForModel(List<? extends LabelledPoint<T>> crossValidation,
@@ -298,9 +465,13 @@ public class KnnUtils {
         Map<String, Double> gammas = generateGammaProvider(factory.getDistance(), points);
 
         maxNeighborCount = Math.min(maxNeighborCount, points.size() - 1);
+        NeighborTable table = maxNeighborCount < 1 ? null
+                : factory.newKnnBelief(points, gammas, maxNeighborCount, alpha)
+                .neighborTable(crossValidation, maxNeighborCount);
         for (int neighborCount = 1; neighborCount <= maxNeighborCount; neighborCount++) {
             KnnBelief<T> beliefModel = factory.newKnnBelief(points, gammas, neighborCount, alpha);
-            double error = KnnUtils.error(crossValidation, beliefModel);
+            double error = table == null ? KnnUtils.error(crossValidation, beliefModel)
+                    : table.error(neighborCount, alpha, gammas);
             if (error < lowestError) {
                 lowestError = error;
                 bestModel = beliefModel;
@@ -313,7 +484,7 @@ public class KnnUtils {
     }
 
 
-    public static <T> Map<String,Double> generateGammaProvider(BiFunction<T, T, Double> distance,
+    public static <T> Map<String,Double> generateGammaProvider(Distance<T> distance,
                                                          List<? extends LabelledPoint<T>> points) {
         Set<String> labels = new HashSet<>();
         points.forEach(p -> labels.add(p.getLabel()));
@@ -328,7 +499,7 @@ public class KnnUtils {
             for (int i = 0; i < size; i++) {
                 for (int j = i + 1; j < size; j++) {
                     average = average.add(new BigDecimal(
-                                    distance.apply(pointValues.get(i), pointValues.get(j))
+                                    distance.between(pointValues.get(i), pointValues.get(j))
                             )
                     );
                 }
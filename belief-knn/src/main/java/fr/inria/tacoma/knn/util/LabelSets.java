@@ -0,0 +1,145 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+
+import java.util.*;
+
+/**
+ * State sets of a frame indexed by the ordinals of their states, the ordinal of a state being
+ * its index in the states of the frame. A set of states is then a bit mask, so the focal sets
+ * of a combination can be computed with integer operations and converted to state sets at the
+ * end. Each set is built from its states when first asked for, and the lookup is shared by
+ * every user of the frame.
+ */
+public final class LabelSets {
+
+    private static final Map<FrameOfDiscernment, LabelSets> CACHE =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final FrameOfDiscernment frame;
+    private final String[] labels;
+    private final StateSet[] singletons;
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final Map<Long, StateSet> sets = new HashMap<>();
+
+    private LabelSets(FrameOfDiscernment frame) {
+        this.frame = frame;
+        List<String> states = new ArrayList<>(frame.getStates());
+        this.labels = states.toArray(new String[states.size()]);
+        this.singletons = new StateSet[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            ordinals.put(labels[i], i);
+            singletons[i] = frame.toStateSet(labels[i]);
+        }
+    }
+
+    /**
+     * @return the state sets of the given frame
+     */
+    public static LabelSets of(FrameOfDiscernment frame) {
+        return CACHE.computeIfAbsent(frame, LabelSets::new);
+    }
+
+    /**
+     * @return number of states of the frame
+     */
+    public int size() {
+        return singletons.length;
+    }
+
+    public StateSet singleton(int ordinal) {
+        return singletons[ordinal];
+    }
+
+    /**
+     * @return the state of the given ordinal
+     */
+    public String label(int ordinal) {
+        return labels[ordinal];
+    }
+
+    /**
+     * Resolves a value per label (such as the gammas) into an array indexed by label ordinal.
+     * @param valuesByLabel values indexed by label
+     * @return the values indexed by label ordinal, NaN for a label without value
+     */
+    public double[] byOrdinal(Map<String, Double> valuesByLabel) {
+        double[] result = new double[labels.length];
+        for (int ordinal = 0; ordinal < labels.length; ordinal++) {
+            Double value = valuesByLabel.get(labels[ordinal]);
+            result[ordinal] = value == null ? Double.NaN : value;
+        }
+        return result;
+    }
+
+    /**
+     * @return ordinal of the given state, -1 if it is not a state of the frame
+     */
+    public int ordinal(String label) {
+        Integer ordinal = ordinals.get(label);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @return ordinal of the state of a singleton, -1 if the set is not a singleton of the
+     * frame
+     */
+    public int ordinal(StateSet stateSet) {
+        for (int i = 0; i < singletons.length; i++) {
+            if (singletons[i].equals(stateSet)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param mask bits of the ordinals of the states of the set
+     * @return the set of the given states
+     */
+    public synchronized StateSet union(long mask) {
+        if (singletons.length >= Long.SIZE) {
+            throw new IllegalArgumentException("frames of more than " + (Long.SIZE - 1)
+                    + " states are not supported");
+        }
+        if (mask == 0 || mask >>> singletons.length != 0) {
+            throw new IllegalArgumentException("no set of the frame has the mask "
+                    + Long.toBinaryString(mask));
+        }
+        if (mask == (1L << singletons.length) - 1) {
+            return frame.fullIgnoranceSet();
+        }
+        if (Long.bitCount(mask) == 1) {
+            return singletons[Long.numberOfTrailingZeros(mask)];
+        }
+        return sets.computeIfAbsent(mask, this::build);
+    }
+
+    /**
+     * Builds a set from the states of the mask.
+     */
+    private StateSet build(long mask) {
+        String[] states = new String[Long.bitCount(mask)];
+        int count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if ((mask & 1L << i) != 0) {
+                states[count++] = labels[i];
+            }
+        }
+        return frame.toStateSet(states);
+    }
+
+    /**
+     * @return bits of the ordinals of the states of the given set
+     */
+    public long mask(StateSet stateSet) {
+        long mask = 0;
+        for (int i = 0; i < singletons.length; i++) {
+            if (stateSet.includesOrEquals(singletons[i])) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+}
@@ -0,0 +1,45 @@
+package fr.inria.tacoma.knn.util;
+
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Function of a vector of parameters to minimize (see Optimizer), such as the cross validation
+ * error of a model depending on its alphas and gammas.
+ */
+@FunctionalInterface
+public interface Objective {
+
+    /**
+     * Computes the value of the function at a point, and its gradient when it is asked.
+     * @param point the parameters, which must not be modified
+     * @param gradient receives the gradient at the point, null when it is not wanted
+     * @return the value at the point
+     */
+    double evaluate(double[] point, double[] gradient);
+
+    /**
+     * Creates an objective whose gradient is computed by central finite differences, which
+     * costs two evaluations of the function per parameter.
+     * @param function the function
+     * @param step difference applied to each parameter
+     */
+    static Objective withFiniteDifferences(ToDoubleFunction<double[]> function, double step) {
+        if (!(step > 0)) {
+            throw new IllegalArgumentException("the step must be positive, not " + step);
+        }
+        return (point, gradient) -> {
+            if (gradient != null) {
+                double[] moved = point.clone();
+                for (int i = 0; i < point.length; i++) {
+                    moved[i] = point[i] + step;
+                    gradient[i] = function.applyAsDouble(moved);
+                    moved[i] = point[i] - step;
+                    gradient[i] -= function.applyAsDouble(moved);
+                    gradient[i] /= 2 * step;
+                    moved[i] = point[i];
+                }
+            }
+            return function.applyAsDouble(point);
+        };
+    }
+}
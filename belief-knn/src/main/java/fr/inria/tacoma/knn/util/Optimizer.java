@@ -0,0 +1,54 @@
+package fr.inria.tacoma.knn.util;
+
+/**
+ * Minimization of an objective over a box, each parameter being kept between a lower and an
+ * upper bound. The calibrations of the models (see KnnUtils and the gradient descents of the
+ * experimental package) are written against this interface, so their strategy can be changed.
+ *
+ * Implementations hold no state between calls and may be shared between threads.
+ */
+@FunctionalInterface
+public interface Optimizer {
+
+    /**
+     * Looks for the point of the box with the lowest value.
+     * @param objective function to minimize
+     * @param start point to start from, projected on the box. Starting from the optimum of a
+     *              similar problem (a warm start) saves evaluations.
+     * @param lower lowest value of each parameter, may be Double.NEGATIVE_INFINITY
+     * @param upper greatest value of each parameter, may be Double.POSITIVE_INFINITY
+     * @param maxIterations maximal number of iterations of the strategy
+     * @return the best point found, in the box
+     */
+    double[] minimize(Objective objective, double[] start, double[] lower, double[] upper,
+                      int maxIterations);
+
+    /**
+     * Projects a point on a box, in place.
+     * @return the point
+     */
+    static double[] project(double[] point, double[] lower, double[] upper) {
+        for (int i = 0; i < point.length; i++) {
+            point[i] = Math.min(Math.max(point[i], lower[i]), upper[i]);
+        }
+        return point;
+    }
+
+    /**
+     * Checks the dimensions of the arguments of minimize.
+     * @throws IllegalArgumentException if the dimensions differ or a lower bound is greater
+     * than its upper bound
+     */
+    static void checkBox(double[] start, double[] lower, double[] upper) {
+        if (lower.length != start.length || upper.length != start.length) {
+            throw new IllegalArgumentException("the bounds have " + lower.length + " and "
+                    + upper.length + " values for " + start.length + " parameters");
+        }
+        for (int i = 0; i < start.length; i++) {
+            if (!(lower[i] <= upper[i])) {
+                throw new IllegalArgumentException("empty bounds [" + lower[i] + ", "
+                        + upper[i] + "] for parameter " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package fr.inria.tacoma.knn.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Quasi-Newton minimization over a box, with the gradient of the objective. The direction is
+ * given by L-BFGS, the approximation of the inverse Hessian built from the last steps, on the
+ * parameters which are not held at a bound by the gradient. The step is searched by
+ * backtracking along the projection of the direction on the box, until it decreases the
+ * objective enough (Armijo's condition).
+ *
+ * This is a simpler form of L-BFGS-B: the parameters held at a bound are found from the
+ * gradient at the current point rather than along a Cauchy path.
+ */
+public final class ProjectedLbfgs implements Optimizer {
+
+    /**
+     * Fraction of the decrease predicted by the gradient which a step must reach.
+     */
+    private static final double SUFFICIENT_DECREASE = 1e-4;
+    private static final int MAX_BACKTRACKS = 40;
+
+    private final int memory;
+    private final double tolerance;
+
+    /**
+     * @param memory number of steps kept to approximate the inverse Hessian
+     * @param tolerance the search stops when an iteration decreases the objective by less than
+     *                  this value, or when the gradient projected on the box is lower than it
+     *                  on every parameter
+     */
+    public ProjectedLbfgs(int memory, double tolerance) {
+        if (memory < 1) {
+            throw new IllegalArgumentException("the memory must be positive, not " + memory);
+        }
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("the tolerance must be positive, not "
+                    + tolerance);
+        }
+        this.memory = memory;
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public double[] minimize(Objective objective, double[] start, double[] lower,
+                             double[] upper, int maxIterations) {
+        Optimizer.checkBox(start, lower, upper);
+        int dimension = start.length;
+        double[] point = Optimizer.project(start.clone(), lower, upper);
+        double[] gradient = new double[dimension];
+        double value = objective.evaluate(point, gradient);
+
+        Deque<double[]> steps = new ArrayDeque<>(memory);
+        Deque<double[]> gradientSteps = new ArrayDeque<>(memory);
+        double[] direction = new double[dimension];
+        double[] candidate = new double[dimension];
+        double[] candidateGradient = new double[dimension];
+        boolean[] free = new boolean[dimension];
+        for (int iteration = 0; iteration < maxIterations; iteration++) {
+            if (projectedGradientNorm(point, gradient, lower, upper) < tolerance) {
+                break;
+            }
+            for (int i = 0; i < dimension; i++) {
+                free[i] = !(point[i] <= lower[i] && gradient[i] > 0
+                        || point[i] >= upper[i] && gradient[i] < 0);
+            }
+            direction(gradient, free, steps, gradientSteps, direction);
+            double slope = dot(direction, gradient);
+            if (!(slope < 0)) {
+                // the approximation is not positive definite any more, restart from the
+                // steepest descent
+                steps.clear();
+                gradientSteps.clear();
+                direction(gradient, free, steps, gradientSteps, direction);
+            }
+
+            // the first direction has no scale, its length is limited to 1
+            double length = steps.isEmpty() ? Math.min(1, 1 / norm(direction)) : 1;
+            double candidateValue = Double.NaN;
+            boolean accepted = false;
+            int backtrack = 0;
+            for (; backtrack < MAX_BACKTRACKS && !accepted; backtrack++) {
+                for (int i = 0; i < dimension; i++) {
+                    candidate[i] = point[i] + length * direction[i];
+                }
+                Optimizer.project(candidate, lower, upper);
+                // the first step is usually accepted, so its gradient is computed with its
+                // value, while the shorter steps only compute the value
+                candidateValue = objective.evaluate(candidate,
+                        backtrack == 0 ? candidateGradient : null);
+                double predicted = 0;
+                for (int i = 0; i < dimension; i++) {
+                    predicted += gradient[i] * (candidate[i] - point[i]);
+                }
+                accepted = candidateValue <= value + SUFFICIENT_DECREASE * predicted;
+                length /= 2;
+            }
+            if (!accepted) {
+                break;
+            }
+            if (backtrack > 1) {
+                objective.evaluate(candidate, candidateGradient);
+            }
+
+            double[] step = new double[dimension];
+            double[] gradientStep = new double[dimension];
+            for (int i = 0; i < dimension; i++) {
+                step[i] = candidate[i] - point[i];
+                gradientStep[i] = candidateGradient[i] - gradient[i];
+            }
+            // a pair without curvature would break the approximation
+            if (dot(step, gradientStep) > 1e-12 * norm(step) * norm(gradientStep)) {
+                if (steps.size() == memory) {
+                    steps.removeFirst();
+                    gradientSteps.removeFirst();
+                }
+                steps.addLast(step);
+                gradientSteps.addLast(gradientStep);
+            }
+            double decrease = value - candidateValue;
+            System.arraycopy(candidate, 0, point, 0, dimension);
+            System.arraycopy(candidateGradient, 0, gradient, 0, dimension);
+            value = candidateValue;
+            if (decrease < tolerance) {
+                break;
+            }
+        }
+        return point;
+    }
+
+    /**
+     * Computes the L-BFGS direction (two loop recursion) on the free parameters, the other ones
+     * being left at 0.
+     */
+    private static void direction(double[] gradient, boolean[] free, Deque<double[]> steps,
+                                  Deque<double[]> gradientSteps, double[] direction) {
+        int dimension = gradient.length;
+        for (int i = 0; i < dimension; i++) {
+            direction[i] = free[i] ? -gradient[i] : 0;
+        }
+        int count = steps.size();
+        double[][] s = steps.toArray(new double[count][]);
+        double[][] y = gradientSteps.toArray(new double[count][]);
+        double[] rho = new double[count];
+        double[] factors = new double[count];
+        for (int j = count - 1; j >= 0; j--) {
+            rho[j] = 1 / freeDot(s[j], y[j], free);
+            factors[j] = rho[j] * freeDot(s[j], direction, free);
+            for (int i = 0; i < dimension; i++) {
+                if (free[i]) {
+                    direction[i] -= factors[j] * y[j][i];
+                }
+            }
+        }
+        if (count > 0) {
+            // scale of the initial inverse Hessian from the last pair
+            double scale = freeDot(s[count - 1], y[count - 1], free)
+                    / freeDot(y[count - 1], y[count - 1], free);
+            if (scale > 0 && !Double.isInfinite(scale)) {
+                for (int i = 0; i < dimension; i++) {
+                    direction[i] *= scale;
+                }
+            }
+        }
+        for (int j = 0; j < count; j++) {
+            double factor = rho[j] * freeDot(y[j], direction, free);
+            for (int i = 0; i < dimension; i++) {
+                if (free[i]) {
+                    direction[i] += s[j][i] * (factors[j] - factor);
+                }
+            }
+        }
+        for (int i = 0; i < dimension; i++) {
+            if (!free[i] || Double.isNaN(direction[i])) {
+                direction[i] = free[i] ? -gradient[i] : 0;
+            }
+        }
+    }
+
+    /**
+     * @return the greatest move of a parameter for a unit step along the opposite of the
+     * gradient, projected on the box
+     */
+    private static double projectedGradientNorm(double[] point, double[] gradient,
+                                                double[] lower, double[] upper) {
+        double norm = 0;
+        for (int i = 0; i < point.length; i++) {
+            double moved = Math.min(Math.max(point[i] - gradient[i], lower[i]), upper[i]);
+            norm = Math.max(norm, Math.abs(moved - point[i]));
+        }
+        return norm;
+    }
+
+    private static double freeDot(double[] a, double[] b, boolean[] free) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (free[i]) {
+                sum += a[i] * b[i];
+            }
+        }
+        return sum;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static double norm(double[] a) {
+        return Math.sqrt(dot(a, a));
+    }
+}
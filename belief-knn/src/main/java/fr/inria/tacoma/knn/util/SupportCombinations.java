@@ -0,0 +1,384 @@
+package fr.inria.tacoma.knn.util;
+
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.knn.core.InPlaceBeliefModel;
+import fr.inria.tacoma.knn.core.SupportCombination;
+import fr.inria.tacoma.knn.core.SupportCombination.Kind;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Combinations of simple support functions computed in closed form from the merged masses on
+ * the full ignorance of each state (see SupportCombination), and a registry of these
+ * combinations by name.
+ *
+ * Except for the cautious rule, the supports on the same state are merged with Dempster's rule
+ * before the states are combined, as KnnUtils.optimizedDuboisAndPrade does.
+ */
+public final class SupportCombinations {
+
+    /**
+     * Same result as Combinations.dempster on the masses of neighbors.
+     */
+    public static final SupportCombination DEMPSTER =
+            new Rule(Kind.DEMPSTER, SupportCombinations::dempster);
+
+    /**
+     * Consonant form of Dempster's rule (see ConsonantMass.ofSupports), as given by the
+     * engines with an alpha per label.
+     */
+    public static final SupportCombination CONSONANT_DEMPSTER = new SupportCombination() {
+        @Override
+        public Kind getKind() {
+            return Kind.CONSONANT_DEMPSTER;
+        }
+
+        @Override
+        public MutableMass combine(FrameOfDiscernment frame, double[] ignorances) {
+            return ConsonantMass.ofSupports(frame, ignorances).toMass();
+        }
+
+        @Override
+        public void combineInto(FrameOfDiscernment frame, double[] ignorances,
+                                MutableMass target) {
+            ConsonantMass.ofSupports(frame, ignorances).toMassInto(target);
+        }
+    };
+
+    /**
+     * Same result as KnnUtils.optimizedDuboisAndPrade on the masses of neighbors.
+     */
+    public static final SupportCombination DUBOIS_AND_PRADE =
+            new Rule(Kind.DUBOIS_AND_PRADE, SupportCombinations::duboisAndPrade);
+
+    /**
+     * Yager's rule: the conjunctive combination with the conflict on the full ignorance.
+     */
+    public static final SupportCombination YAGER =
+            new Rule(Kind.YAGER, SupportCombinations::yager);
+
+    /**
+     * PCR6 rule of the merged supports of each state.
+     */
+    public static final SupportCombination PCR6 =
+            new Rule(Kind.PCR6, SupportCombinations::pcr6);
+
+    /**
+     * Normalized cautious rule: the supports on the same state are merged by keeping the lowest
+     * mass on the full ignorance, then the states are combined with Dempster's rule. This rule
+     * is idempotent, so neighbors which are not independent are not counted twice.
+     */
+    public static final SupportCombination CAUTIOUS =
+            new Rule(Kind.CAUTIOUS, SupportCombinations::dempster) {
+        @Override
+        public double merge(double ignorance, double support) {
+            return Math.min(ignorance, 1 - support);
+        }
+    };
+
+    /**
+     * Buffer of the masses of the states, reused by every combination of the current thread.
+     */
+    private static final ThreadLocal<double[]> SCRATCH =
+            ThreadLocal.withInitial(() -> new double[0]);
+
+    private static final Map<String, SupportCombination> REGISTRY = new LinkedHashMap<>();
+
+    static {
+        register("dempster", DEMPSTER);
+        register("dubois", DUBOIS_AND_PRADE);
+        register("yager", YAGER);
+        register("pcr6", PCR6);
+        register("cautious", CAUTIOUS);
+    }
+
+    private SupportCombinations() {
+    }
+
+    /**
+     * Combination writing its result into a mass function without focal element.
+     */
+    @FunctionalInterface
+    private interface Kernel {
+        void combine(FrameOfDiscernment frame, double[] ignorances, MutableMass result);
+    }
+
+    /**
+     * Support combination given by a kernel, which also writes in place.
+     */
+    private static class Rule implements SupportCombination {
+        private final Kind kind;
+        private final Kernel kernel;
+
+        Rule(Kind kind, Kernel kernel) {
+            this.kind = kind;
+            this.kernel = kernel;
+        }
+
+        @Override
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public MutableMass combine(FrameOfDiscernment frame, double[] ignorances) {
+            MutableMass result = frame.newMass();
+            kernel.combine(frame, ignorances, result);
+            return result;
+        }
+
+        @Override
+        public void combineInto(FrameOfDiscernment frame, double[] ignorances,
+                                MutableMass target) {
+            InPlaceBeliefModel.clear(target);
+            kernel.combine(frame, ignorances, target);
+        }
+    }
+
+    /**
+     * Registers a combination, which can then be found by its name.
+     * @param name name of the combination, replacing any combination with the same name
+     * @param combination the combination
+     */
+    public static synchronized void register(String name, SupportCombination combination) {
+        if (combination == null) {
+            throw new IllegalArgumentException("no combination given for " + name);
+        }
+        REGISTRY.put(name, combination);
+    }
+
+    /**
+     * @return the names of the registered combinations, in registration order
+     */
+    public static synchronized List<String> names() {
+        return new ArrayList<>(REGISTRY.keySet());
+    }
+
+    /**
+     * @param name name of a registered combination
+     * @return the combination
+     */
+    public static synchronized SupportCombination forName(String name) {
+        SupportCombination combination = REGISTRY.get(name);
+        if (combination == null) {
+            throw new IllegalArgumentException("unknown combination " + name
+                    + ", expected one of " + REGISTRY.keySet());
+        }
+        return combination;
+    }
+
+    /**
+     * @return the rule computed by a combination (see SupportCombination.getKind), OTHER if it
+     * is not a support combination
+     */
+    public static Kind kindOf(Function<List<MassFunction>, MassFunction> combination) {
+        return combination instanceof SupportCombination
+                ? ((SupportCombination) combination).getKind() : Kind.OTHER;
+    }
+
+    /**
+     * Dempster's rule of the merged supports. Each state keeps its own support times the
+     * ignorance of the others, the full ignorance keeps the product of the ignorances, and the
+     * conflict is removed by normalization.
+     */
+    private static void dempster(FrameOfDiscernment frame, double[] ignorances,
+                                 MutableMass result) {
+        LabelSets labelSets = LabelSets.of(frame);
+        int labelCount = labelSets.size();
+        double[] masses = conjunctive(ignorances, labelCount);
+        double ignoranceMass = 1;
+        double total = 0;
+        for (int label = 0; label < labelCount; label++) {
+            total += masses[label];
+            ignoranceMass *= ignorances[label];
+        }
+        total += ignoranceMass;
+
+        for (int label = 0; label < labelCount; label++) {
+            if (masses[label] != 0) {
+                result.set(labelSets.singleton(label), masses[label] / total);
+            }
+        }
+        result.set(frame.fullIgnoranceSet(), ignoranceMass / total);
+    }
+
+    /**
+     * Yager's combination of the merged supports. The states keep the same mass as with the
+     * conjunctive rule, and the full ignorance gets both its own mass and the conflict.
+     */
+    private static void yager(FrameOfDiscernment frame, double[] ignorances,
+                              MutableMass result) {
+        LabelSets labelSets = LabelSets.of(frame);
+        int labelCount = labelSets.size();
+        double[] masses = conjunctive(ignorances, labelCount);
+        double remaining = 1;
+        for (int label = 0; label < labelCount; label++) {
+            if (masses[label] != 0) {
+                result.set(labelSets.singleton(label), masses[label]);
+                remaining -= masses[label];
+            }
+        }
+        result.set(frame.fullIgnoranceSet(), Math.max(remaining, 0));
+    }
+
+    /**
+     * Dubois and Prade combination of the merged supports. Each supported state keeps its own
+     * support times the ignorance of the others. When every supported state is chosen, the
+     * supports conflict and their product goes to the union of the supported states. Any other
+     * choice either has the full ignorance as intersection or conflicts with a full ignorance
+     * in the union, so the rest of the mass goes to the full ignorance.
+     */
+    private static void duboisAndPrade(FrameOfDiscernment frame, double[] ignorances,
+                                       MutableMass result) {
+        LabelSets labelSets = LabelSets.of(frame);
+        int labelCount = labelSets.size();
+        double[] masses = conjunctive(ignorances, labelCount);
+        double remaining = 1;
+        double conflict = 1;
+        long supported = 0;
+        for (int label = 0; label < labelCount; label++) {
+            if (ignorances[label] >= 1) {
+                continue;
+            }
+            double mass = masses[label];
+            if (mass != 0) {
+                result.set(labelSets.singleton(label), mass);
+                remaining -= mass;
+            }
+            conflict *= 1 - ignorances[label];
+            supported |= 1L << label;
+        }
+
+        if (Long.bitCount(supported) >= 2 && conflict != 0) {
+            result.addToFocal(labelSets.union(supported), conflict);
+            remaining -= conflict;
+        }
+        if (remaining > 0) {
+            result.addToFocal(frame.fullIgnoranceSet(), remaining);
+        }
+    }
+
+    /**
+     * PCR6 combination of the merged supports, one source per supported state. Every choice of
+     * focal elements whose intersection is empty (at least two different states) gives its
+     * product back to the chosen focal elements, in proportion of their masses, so the full
+     * ignorance gets the share of the sources which chose it.
+     *
+     * The rule is not associative and every choice must be enumerated, so the time is
+     * exponential in the number of supported states, which is at most the number of
+     * neighbors and the number of states.
+     */
+    private static void pcr6(FrameOfDiscernment frame, double[] ignorances,
+                             MutableMass result) {
+        LabelSets labelSets = LabelSets.of(frame);
+        int labelCount = labelSets.size();
+        int[] sources = new int[labelCount];
+        int sourceCount = 0;
+        for (int label = 0; label < labelCount; label++) {
+            if (ignorances[label] < 1) {
+                sources[sourceCount++] = label;
+            }
+        }
+        if (sourceCount > DenseMass.MAX_STATES) {
+            throw new IllegalArgumentException("PCR6 can not combine more than "
+                    + DenseMass.MAX_STATES + " supported states");
+        }
+
+        double[] masses = new double[sourceCount];
+        double ignoranceMass = 0;
+        for (int choice = 0; choice < 1 << sourceCount; choice++) {
+            // sources in choice chose their state, the other ones the full ignorance
+            double product = 1;
+            double chosenSum = 0;
+            double ignoranceSum = 0;
+            for (int source = 0; source < sourceCount; source++) {
+                double ignorance = ignorances[sources[source]];
+                if ((choice & 1 << source) != 0) {
+                    product *= 1 - ignorance;
+                    chosenSum += 1 - ignorance;
+                }
+                else {
+                    product *= ignorance;
+                    ignoranceSum += ignorance;
+                }
+            }
+            if (product == 0) {
+                continue;
+            }
+            int chosenCount = Integer.bitCount(choice);
+            if (chosenCount == 0) {
+                ignoranceMass += product;
+            }
+            else if (chosenCount == 1) {
+                masses[Integer.numberOfTrailingZeros(choice)] += product;
+            }
+            else {
+                double ratio = product / (chosenSum + ignoranceSum);
+                for (int source = 0; source < sourceCount; source++) {
+                    if ((choice & 1 << source) != 0) {
+                        masses[source] += ratio * (1 - ignorances[sources[source]]);
+                    }
+                }
+                ignoranceMass += ratio * ignoranceSum;
+            }
+        }
+
+        for (int source = 0; source < sourceCount; source++) {
+            if (masses[source] != 0) {
+                result.set(labelSets.singleton(sources[source]), masses[source]);
+            }
+        }
+        if (ignoranceMass > 0) {
+            result.set(frame.fullIgnoranceSet(), ignoranceMass);
+        }
+    }
+
+    /**
+     * @return for each state, the mass given by the conjunctive rule: its own support times the
+     * ignorance of the other states, in the scratch buffer of the current thread
+     */
+    private static double[] conjunctive(double[] ignorances, int labelCount) {
+        double[] masses = SCRATCH.get();
+        if (masses.length < labelCount) {
+            masses = new double[labelCount];
+            SCRATCH.set(masses);
+        }
+        exclusiveProducts(ignorances, labelCount, masses, 0);
+        for (int label = 0; label < labelCount; label++) {
+            masses[label] *= 1 - ignorances[label];
+        }
+        return masses;
+    }
+
+    /**
+     * Computes for each state the product of the ignorances of all the other states, in linear
+     * time: a first pass stores the product of the previous ignorances, a backward pass
+     * multiplies it by the product of the following ones. No division is made, so an ignorance
+     * of 0 is handled as any other value.
+     * @param ignorances ignorance of each state
+     * @param count number of states
+     * @param products array receiving the products, which must not overlap the ignorances
+     * @param offset index of the product of the first state in products
+     * @return product of every ignorance
+     */
+    public static double exclusiveProducts(double[] ignorances, int count, double[] products,
+                                           int offset) {
+        double prefix = 1;
+        for (int i = 0; i < count; i++) {
+            products[offset + i] = prefix;
+            prefix *= ignorances[i];
+        }
+        double suffix = 1;
+        for (int i = count - 1; i >= 0; i--) {
+            products[offset + i] *= suffix;
+            suffix *= ignorances[i];
+        }
+        return prefix;
+    }
+}
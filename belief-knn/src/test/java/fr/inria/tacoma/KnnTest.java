@@ -1,14 +1,54 @@
 package fr.inria.tacoma;
 
+import fr.inria.tacoma.bft.combinations.Combinations;
+import fr.inria.tacoma.bft.core.frame.FrameOfDiscernment;
+import fr.inria.tacoma.bft.core.frame.StateSet;
+import fr.inria.tacoma.bft.core.mass.MassFunction;
+import fr.inria.tacoma.bft.core.mass.MutableMass;
+import fr.inria.tacoma.bft.criteria.Criteria;
+import fr.inria.tacoma.bft.sensorbelief.SensorBeliefModel;
+import fr.inria.tacoma.bft.util.Mass;
+import fr.inria.tacoma.knn.bidimensional.Coordinate;
+import fr.inria.tacoma.knn.core.KdTree;
+import fr.inria.tacoma.knn.core.KnnBelief;
+import fr.inria.tacoma.knn.core.LabelledPoint;
+import fr.inria.tacoma.knn.core.NeighborTable;
+import fr.inria.tacoma.knn.core.ScalarDistance;
+import fr.inria.tacoma.knn.core.SupportCombination;
+import fr.inria.tacoma.knn.experimental.continuous.ContinuousDempsterDoubleKnn;
+import fr.inria.tacoma.knn.experimental.continuous.ContinuousKnnBelief;
+import fr.inria.tacoma.knn.multidimensional.FeatureVector;
+import fr.inria.tacoma.knn.multidimensional.NeighborSearch;
+import fr.inria.tacoma.knn.multidimensional.PackedPoints;
+import fr.inria.tacoma.knn.multidimensional.VectorMetric;
+import fr.inria.tacoma.knn.unidimensional.CompiledBeliefModel;
+import fr.inria.tacoma.knn.unidimensional.DempsterAlphaDoubleKnn;
+import fr.inria.tacoma.knn.unidimensional.DempsterDoubleKnn;
+import fr.inria.tacoma.knn.unidimensional.DoubleKnnBelief;
+import fr.inria.tacoma.knn.unidimensional.GeneratedBeliefModel;
+import fr.inria.tacoma.knn.unidimensional.SensorValue;
+import fr.inria.tacoma.knn.unidimensional.SortedPoints;
+import fr.inria.tacoma.knn.unidimensional.TwoClassDoubleKnn;
+import fr.inria.tacoma.knn.util.DenseMass;
+import fr.inria.tacoma.knn.util.FocalBudget;
 import fr.inria.tacoma.knn.util.KnnUtils;
+import fr.inria.tacoma.knn.util.LabelSets;
+import fr.inria.tacoma.knn.util.SupportCombinations;
 import org.hamcrest.core.AllOf;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import javax.tools.ToolProvider;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 
 
@@ -24,4 +64,613 @@ public class KnnTest {
         split.stream().forEach(list -> integers.removeAll(list));
         Assert.assertTrue(integers.isEmpty());
     }
+
+    @Test
+    public void testSortedPoints() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c", "d", "e");
+        Random random = new Random(2);
+        List<LabelledPoint<Double>> points = IntStream.range(0, 500)
+                .mapToObj(i -> {
+                    String state = frame.getStates().get(random.nextInt(5));
+                    return new SensorValue("test", state, i, (double) random.nextInt(40),
+                            frame.toStateSet(state));
+                })
+                .collect(Collectors.toList());
+        SortedPoints sortedPoints = new SortedPoints(frame, points);
+
+        // sorted by value, then by label ordinal on equal values
+        List<LabelledPoint<Double>> expected = points.stream()
+                .sorted(Comparator.comparingDouble((LabelledPoint<Double> point) ->
+                        point.getValue())
+                        .thenComparingInt(point -> frame.getStates().indexOf(point.getLabel())))
+                .collect(Collectors.toList());
+        Assert.assertEquals(expected.size(), sortedPoints.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getValue(), sortedPoints.value(i), 0);
+            Assert.assertEquals(expected.get(i).getLabel(),
+                    sortedPoints.label(sortedPoints.labelOrdinal(i)));
+        }
+    }
+
+    @Test
+    public void testNeighborhoodStarts() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b");
+        Random random = new Random(0);
+        List<LabelledPoint<Double>> points = IntStream.range(0, 200)
+                .mapToObj(i -> new SensorValue("test", i % 2 == 0 ? "a" : "b", i,
+                        (double) random.nextInt(100)))
+                .collect(Collectors.toList());
+        SortedPoints sortedPoints = new SortedPoints(frame, points);
+
+        double[] values = random.doubles(500, -10, 110).toArray();
+        for (int size : new int[]{2, 5, 50, 300}) {
+            int[] starts = sortedPoints.neighborhoodStarts(values, size);
+            for (int i = 0; i < values.length; i++) {
+                Assert.assertEquals(sortedPoints.neighborhoodStart(values[i], size), starts[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testCursor() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b");
+        Random random = new Random(1);
+        List<LabelledPoint<Double>> points = IntStream.range(0, 300)
+                .mapToObj(i -> new SensorValue("test", i % 3 == 0 ? "a" : "b", i,
+                        (double) random.nextInt(150)))
+                .collect(Collectors.toList());
+        SortedPoints sortedPoints = new SortedPoints(frame, points);
+        SortedPoints.Cursor cursor = sortedPoints.newCursor();
+
+        // a drifting signal with a few jumps
+        double value = 50;
+        for (int i = 0; i < 2000; i++) {
+            value += i % 200 == 0 ? random.nextDouble() * 300 - 150 : random.nextGaussian();
+            int size = i % 7 == 0 ? 40 : 5;
+            Assert.assertEquals(sortedPoints.neighborhoodStart(value, size),
+                    cursor.neighborhoodStart(value, size));
+        }
+    }
+
+    @Test
+    public void testContinuousK() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 150, 100, 2);
+        Map<String, Double> gammas = perState(frame, 3, 5, 8);
+        SortedPoints sortedPoints = new SortedPoints(frame, points);
+        ContinuousKnnBelief<Double> continuous = new ContinuousDempsterDoubleKnn(sortedPoints,
+                1, 0.5, ScalarDistance.ABSOLUTE, gammas);
+
+        // when the last neighbor has a full weight, the model uses the same points as the
+        // discrete one
+        for (int k : new int[]{1, 4, 10}) {
+            DempsterDoubleKnn discrete = new DempsterDoubleKnn(sortedPoints, k, 0.5,
+                    ScalarDistance.ABSOLUTE, gammas);
+            ContinuousKnnBelief<Double> model = continuous.withAlphaAndK(0.5, k + 1 - 1e-12);
+            for (double value = -5; value < 105; value += 0.7) {
+                MassFunction expected = discrete.toMass(value);
+                MassFunction actual = model.toMass(value);
+                for (String state : frame.getStates()) {
+                    Assert.assertEquals(expected.get(frame.toStateSet(state)),
+                            actual.get(frame.toStateSet(state)), 1e-9);
+                }
+                Assert.assertEquals(expected.get(frame.fullIgnoranceSet()),
+                        actual.get(frame.fullIgnoranceSet()), 1e-9);
+            }
+        }
+        Assert.assertEquals(2.5, continuous.withK(2.5).getK(), 0);
+    }
+
+    @Test
+    public void testDempsterIgnorance() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 7, 20, 3);
+        Map<String, Double> gammas = perState(frame, 2, 3, 5);
+        double alpha = 0.7;
+        // every point is a neighbor, so the model is the Dempster's combination of all of them
+        DempsterDoubleKnn model = new DempsterDoubleKnn(new SortedPoints(frame, points),
+                points.size(), alpha, (a, b) -> Math.abs(a - b), gammas);
+
+        for (double value = -2; value < 22; value += 1.3) {
+            MassFunction expected = null;
+            for (LabelledPoint<Double> point : points) {
+                double support = alpha * Math.exp(-Math.abs(value - point.getValue())
+                        / gammas.get(point.getLabel()));
+                MassFunction neighbor = frame.newMass()
+                        .set(frame.toStateSet(point.getLabel()), support)
+                        .putRemainingOnIgnorance();
+                expected = expected == null ? neighbor
+                        : Combinations.dempster(expected, neighbor);
+            }
+            MassFunction actual = model.toMass(value);
+            for (String state : frame.getStates()) {
+                Assert.assertEquals(expected.get(frame.toStateSet(state)),
+                        actual.get(frame.toStateSet(state)), 1e-12);
+            }
+            Assert.assertEquals(expected.get(frame.fullIgnoranceSet()),
+                    actual.get(frame.fullIgnoranceSet()), 1e-12);
+        }
+    }
+
+    @Test
+    public void testDempsterAlphaIgnorance() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 7, 20, 4);
+        Map<String, Double> gammas = perState(frame, 2, 3, 5);
+        Map<String, Double> alphas = perState(frame, 0.4, 0.6, 0.8);
+        // every point is a neighbor, so the model is the consonant form of the Dempster's
+        // combination of all of them
+        DempsterAlphaDoubleKnn model = new DempsterAlphaDoubleKnn(new SortedPoints(frame, points),
+                points.size(), alphas, (a, b) -> Math.abs(a - b), gammas);
+
+        for (double value = -2; value < 22; value += 1.3) {
+            MassFunction combined = null;
+            for (LabelledPoint<Double> point : points) {
+                double support = alphas.get(point.getLabel())
+                        * Math.exp(-Math.abs(value - point.getValue())
+                        / gammas.get(point.getLabel()));
+                MassFunction neighbor = frame.newMass()
+                        .set(frame.toStateSet(point.getLabel()), support)
+                        .putRemainingOnIgnorance();
+                combined = combined == null ? neighbor
+                        : Combinations.dempster(combined, neighbor);
+            }
+            MassFunction expected = Mass.toConsonant(combined);
+            MassFunction actual = model.toMass(value);
+            expected.foreachFocalElement((set, mass) ->
+                    Assert.assertEquals(mass, actual.get(set), 1e-12));
+            actual.foreachFocalElement((set, mass) ->
+                    Assert.assertEquals(mass, expected.get(set), 1e-12));
+        }
+    }
+
+    @Test
+    public void testFocalBudget() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c", "d");
+        MassFunction mass = frame.newMass()
+                .set(frame.toStateSet("a"), 0.3)
+                .set(frame.toStateSet("b"), 0.25)
+                .set(frame.toStateSet("a", "b"), 0.2)
+                .set(frame.toStateSet("c", "d"), 0.1)
+                .set(frame.toStateSet("c"), 0.05)
+                .putRemainingOnIgnorance();
+        // {c} is too light, and the full ignorance replaces {a, b} among the 3 heaviest sets,
+        // so it receives every dropped set
+        FocalBudget budget = new FocalBudget(3, 0.08);
+        MassFunction summary = budget.summarize(mass);
+        Assert.assertEquals(3, summary.getFocalStateSets().size());
+        Assert.assertEquals(0.3, summary.get(frame.toStateSet("a")), 1e-12);
+        Assert.assertEquals(0.25, summary.get(frame.toStateSet("b")), 1e-12);
+        Assert.assertEquals(0.45, summary.get(frame.fullIgnoranceSet()), 1e-12);
+        Assert.assertEquals(3, budget.getDroppedFocalElements());
+        Assert.assertEquals(0.35, budget.getMovedMass(), 1e-12);
+        Assert.assertSame(summary, budget.summarize(summary));
+        Assert.assertEquals(3, budget.getDroppedFocalElements());
+
+        // the budgeted Dubois and Prade combination conserves the mass within the budget, and
+        // only moves mass when it drops focal sets
+        budget.reset();
+        Random random = new Random(5);
+        List<MassFunction> neighbors = IntStream.range(0, 12)
+                .mapToObj(i -> (MassFunction) frame.newMass()
+                        .set(frame.toStateSet(frame.getStates().get(i % 4)),
+                                0.2 + 0.6 * random.nextDouble())
+                        .putRemainingOnIgnorance())
+                .collect(Collectors.toList());
+        MassFunction exact = KnnUtils.optimizedDuboisAndPrade(neighbors);
+        MassFunction combined = budget.duboisAndPrade().apply(neighbors);
+        double total = 0;
+        for (StateSet stateSet : combined.getFocalStateSets()) {
+            total += combined.get(stateSet);
+        }
+        Assert.assertEquals(1, total, 1e-12);
+        Assert.assertTrue(combined.getFocalStateSets().size() <= 3);
+        Assert.assertTrue(exact.getFocalStateSets().size() > 3);
+        Assert.assertTrue(budget.getDroppedFocalElements() > 0);
+        Assert.assertTrue(budget.getMovedMass() > 0);
+        // the moved mass only goes to larger sets, so each singleton lost at most the moved mass
+        for (String state : frame.getStates()) {
+            StateSet singleton = frame.toStateSet(state);
+            Assert.assertTrue(exact.get(singleton) - combined.get(singleton)
+                    <= budget.getMovedMass() + 1e-12);
+        }
+
+        // without limit, the budget keeps the rule applied to the four labels at once
+        FocalBudget unlimited = new FocalBudget(Integer.MAX_VALUE, 0);
+        assertSameMass(exact, unlimited.duboisAndPrade().apply(neighbors), 1e-12);
+        assertSameMass(exact, KnnUtils.optimizedDuboisAndPrade(neighbors, unlimited), 1e-12);
+        Assert.assertEquals(0, unlimited.getDroppedFocalElements());
+    }
+
+    @Test
+    public void testDuboisAndPradeClosedForm() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c", "d");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 40, 40, 10);
+        Map<String, Double> gammas = perState(frame, 2, 3, 5, 4);
+        // with every point as a neighbor, every label is supported and the whole conflict goes
+        // to the union of the four labels, the full ignorance
+        for (int k : new int[]{1, 3, 8, points.size() - 1}) {
+            DoubleKnnBelief closedForm = new DoubleKnnBelief(points, k, 0.7, frame,
+                    SupportCombinations.DUBOIS_AND_PRADE, ScalarDistance.ABSOLUTE, gammas);
+            DoubleKnnBelief reference = new DoubleKnnBelief(points, k, 0.7, frame,
+                    KnnUtils::optimizedDuboisAndPrade, ScalarDistance.ABSOLUTE, gammas);
+            for (double value = -5; value < 45; value += 0.23) {
+                MassFunction expected = reference.toMass(value);
+                assertSameMass(expected, closedForm.toMass(value), 1e-12);
+                if (k == points.size() - 1) {
+                    for (StateSet stateSet : expected.getFocalStateSets()) {
+                        Assert.assertTrue(stateSet.equals(frame.fullIgnoranceSet())
+                                || frame.getStates().stream().anyMatch(state ->
+                                        stateSet.equals(frame.toStateSet(state))));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGeneratedModel() {
+        for (String states : new String[]{"ab", "abc"}) {
+            FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test",
+                    states.split(""));
+            List<LabelledPoint<Double>> points = randomPoints(frame, 60, 50, 6);
+            Map<String, Double> gammas = perState(frame, 3);
+            List<SensorBeliefModel<Double>> models = new ArrayList<>();
+            for (SupportCombination combination : new SupportCombination[]{
+                    SupportCombinations.DEMPSTER, SupportCombinations.DUBOIS_AND_PRADE,
+                    SupportCombinations.YAGER, SupportCombinations.CAUTIOUS}) {
+                models.add(new DoubleKnnBelief(points, 5, 0.6, frame, combination,
+                        ScalarDistance.ABSOLUTE, gammas));
+                if (frame.card() == 2) {
+                    models.add(new TwoClassDoubleKnn(points, 5, 0.6, frame, combination,
+                            ScalarDistance.ABSOLUTE, gammas));
+                }
+            }
+            models.add(new DempsterDoubleKnn(points, 5, 0.6, frame, ScalarDistance.ABSOLUTE,
+                    gammas));
+
+            // generate gives back the model only when there is no compiler
+            boolean compiler = ToolProvider.getSystemJavaCompiler() != null;
+            for (SensorBeliefModel<Double> model : models) {
+                SensorBeliefModel<Double> generated = GeneratedBeliefModel.generate(model);
+                if (compiler && !(generated instanceof GeneratedBeliefModel)) {
+                    Assert.fail(GeneratedBeliefModel.generationFailure(model));
+                }
+                for (double value = -5; value < 55; value += 0.37) {
+                    assertSameMass(model.toMass(value), generated.toMass(value), 1e-12);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompiledModel() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 60, 50, 7);
+        Map<String, Double> gammas = perState(frame, 2, 3, 5);
+        double maxError = 1e-3;
+        DoubleKnnBelief duboisAndPrade = new DoubleKnnBelief(points, 4, 0.6, frame,
+                SupportCombinations.DUBOIS_AND_PRADE, ScalarDistance.ABSOLUTE, gammas);
+        DempsterDoubleKnn dempster = new DempsterDoubleKnn(points, 4, 0.6, frame,
+                ScalarDistance.ABSOLUTE, gammas);
+        CompiledBeliefModel compiledDuboisAndPrade = duboisAndPrade.compile(maxError);
+        CompiledBeliefModel compiledDempster = dempster.compile(maxError);
+        Assert.assertEquals(0, compiledDuboisAndPrade.getImprecisePieceCount());
+        Assert.assertEquals(0, compiledDempster.getImprecisePieceCount());
+
+        // the bound is only checked at sampled values, a dense grid checks the values between
+        for (double value = -20; value < 70; value += 0.004) {
+            assertSameMass(duboisAndPrade.toMass(value), compiledDuboisAndPrade.toMass(value),
+                    maxError);
+            assertSameMass(dempster.toMass(value), compiledDempster.toMass(value), maxError);
+        }
+    }
+
+    @Test
+    public void testErrorGradient() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        List<LabelledPoint<Double>> points = randomPoints(frame, 120, 30, 8);
+        List<LabelledPoint<Double>> training = points.subList(0, 90);
+        List<LabelledPoint<Double>> crossValidation = points.subList(90, points.size());
+        Map<String, Double> gammas = perState(frame, 2, 3, 5);
+        Map<String, Double> alphas = perState(frame, 0.4, 0.6, 0.8);
+        NeighborTable[] tables = {
+                new DempsterDoubleKnn(training, 6, 0.5, frame, ScalarDistance.ABSOLUTE, gammas)
+                        .neighborTable(crossValidation, 6),
+                new DempsterAlphaDoubleKnn(training, 6, alphas, frame, ScalarDistance.ABSOLUTE,
+                        gammas).neighborTable(crossValidation, 6)};
+
+        // the analytic gradient matches the central finite differences of the error
+        for (NeighborTable table : tables) {
+            Assert.assertTrue(table.hasGradient());
+            double[] alphaValues = table.byOrdinal(alphas);
+            double[] gammaValues = table.byOrdinal(gammas);
+            int labelCount = frame.card();
+            for (int k : new int[]{1, 3, 6}) {
+                double[] gradient = new double[2 * labelCount];
+                double error = table.errorAndGradient(k, alphaValues, gammaValues, gradient);
+                Assert.assertEquals(table.error(k, alphaValues, gammaValues), error, 1e-12);
+                for (int parameter = 0; parameter < 2 * labelCount; parameter++) {
+                    double[] values = parameter < labelCount ? alphaValues : gammaValues;
+                    int label = parameter % labelCount;
+                    double step = 1e-6 * values[label];
+                    double value = values[label];
+                    values[label] = value + step;
+                    double upper = table.error(k, alphaValues, gammaValues);
+                    values[label] = value - step;
+                    double lower = table.error(k, alphaValues, gammaValues);
+                    values[label] = value;
+                    double difference = (upper - lower) / (2 * step);
+                    Assert.assertEquals(difference, gradient[parameter],
+                            1e-6 * Math.max(1, Math.abs(difference)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKdTree() {
+        // points on a grid, so many points are at the same place or at the same distance
+        Random random = new Random(11);
+        List<LabelledPoint<Coordinate>> points = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            points.add(new LabelledPoint<>("test", i % 2 == 0 ? "a" : "b", i,
+                    new Coordinate(random.nextInt(10), random.nextInt(10))));
+        }
+        // a distance which does not declare the bound is not indexed
+        Assert.assertNull(KdTree.tryBuild(points, Coordinate::distance));
+        KdTree<Coordinate> tree = KdTree.tryBuild(points, Coordinate.DISTANCE);
+        Assert.assertNotNull(tree);
+
+        for (int i = 0; i < 200; i++) {
+            Coordinate value = new Coordinate(random.nextInt(21) / 2.0 - 0.5,
+                    random.nextInt(21) / 2.0 - 0.5);
+            for (int k : new int[]{1, 2, 7, 40, 300, 400}) {
+                List<LabelledPoint<Coordinate>> sorted = points.stream()
+                        .sorted(Comparator.comparingDouble(point ->
+                                point.getValue().distance(value)))
+                        .limit(k).collect(Collectors.toList());
+                List<LabelledPoint<Coordinate>> nearest = tree.nearest(value, k);
+                Assert.assertEquals(sorted.size(), nearest.size());
+                for (int j = 0; j < sorted.size(); j++) {
+                    Assert.assertSame(sorted.get(j), nearest.get(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExactVectorSearch() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c");
+        Random random = new Random(12);
+        List<LabelledPoint<FeatureVector>> points = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            // features on a grid, so many points are at the same distance
+            points.add(new LabelledPoint<>("test", frame.getStates().get(i % 3), i,
+                    new FeatureVector(random.nextInt(8), random.nextInt(8) * 100,
+                            random.nextInt(8) / 10.0)));
+        }
+        PackedPoints packed = new PackedPoints(frame, points);
+        for (VectorMetric metric : new VectorMetric[]{VectorMetric.EUCLIDEAN,
+                VectorMetric.MANHATTAN, VectorMetric.weighted(1, 1e-4, 100)}) {
+            NeighborSearch search = packed.exactSearch(metric);
+            for (int i = 0; i < 100; i++) {
+                double[] features = {random.nextInt(17) / 2.0 - 0.5,
+                        random.nextInt(17) * 50 - 50, random.nextInt(17) / 20.0 - 0.05};
+                for (int k : new int[]{1, 5, 30, 300}) {
+                    Assert.assertArrayEquals(packed.nearest(metric, features, k),
+                            search.nearest(new FeatureVector(features), k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSupportRules() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c", "d");
+        LabelSets labels = LabelSets.of(frame);
+        StateSet a = frame.toStateSet("a");
+        StateSet b = frame.toStateSet("b");
+        StateSet c = frame.toStateSet("c");
+        // d is not supported
+        double[] ignorances = {0.5, 0.6, 0.8, 1};
+
+        // Yager: the plain conjunctive rule with the conflict on the full ignorance
+        for (double[] supported : new double[][]{ignorances, {0.3, 1, 0.9, 1}, {0, 0.4, 1, 0.7},
+                {1, 1, 1, 1}}) {
+            List<MassFunction> supports = new ArrayList<>();
+            for (int label = 0; label < supported.length; label++) {
+                MutableMass support = frame.newMass();
+                support.set(labels.singleton(label), 1 - supported[label]);
+                support.set(frame.fullIgnoranceSet(), supported[label]);
+                supports.add(support);
+            }
+            DenseMass conjunctive = DenseMass.conjunctive(supports);
+            MassFunction yager = SupportCombinations.YAGER.combine(frame, supported);
+            for (int label = 0; label < supported.length; label++) {
+                Assert.assertEquals(conjunctive.get(1L << label),
+                        yager.get(labels.singleton(label)), 1e-12);
+            }
+            Assert.assertEquals(conjunctive.get(labels.mask(frame.fullIgnoranceSet()))
+                            + conjunctive.getConflict(),
+                    yager.get(frame.fullIgnoranceSet()), 1e-12);
+        }
+
+        // PCR6, the supports of a, b and c being 0.5, 0.4 and 0.2: the product of each choice
+        // of focal elements with an empty intersection goes back to the chosen focal elements
+        // in proportion of their masses
+        MassFunction pcr6 = SupportCombinations.PCR6.combine(frame, ignorances);
+        double ab = 0.5 * 0.4 * 0.8 / (0.5 + 0.4 + 0.8);
+        double ac = 0.5 * 0.6 * 0.2 / (0.5 + 0.2 + 0.6);
+        double bc = 0.5 * 0.4 * 0.2 / (0.4 + 0.2 + 0.5);
+        double abc = 0.5 * 0.4 * 0.2 / (0.5 + 0.4 + 0.2);
+        Assert.assertEquals(0.5 * 0.6 * 0.8 + 0.5 * (ab + ac + abc), pcr6.get(a), 1e-12);
+        Assert.assertEquals(0.5 * 0.4 * 0.8 + 0.4 * (ab + bc + abc), pcr6.get(b), 1e-12);
+        Assert.assertEquals(0.5 * 0.6 * 0.2 + 0.2 * (ac + bc + abc), pcr6.get(c), 1e-12);
+        Assert.assertEquals(0.5 * 0.6 * 0.8 + 0.8 * ab + 0.6 * ac + 0.5 * bc,
+                pcr6.get(frame.fullIgnoranceSet()), 1e-12);
+        Assert.assertEquals(0, pcr6.get(frame.toStateSet("d")), 0);
+
+        // cautious: a support merged with a weaker or equal one is unchanged, and the states
+        // are combined with Dempster's rule
+        SupportCombination cautious = SupportCombinations.CAUTIOUS;
+        Assert.assertEquals(0.5, cautious.merge(0.5, 0.5), 0);
+        Assert.assertEquals(0.5, cautious.merge(0.5, 0.2), 0);
+        Assert.assertEquals(0.3, cautious.merge(0.5, 0.7), 1e-15);
+        Assert.assertEquals(0.3, cautious.merge(cautious.merge(1, 0.7), 0.7), 1e-15);
+        assertSameMass(SupportCombinations.DEMPSTER.combine(frame, ignorances),
+                cautious.combine(frame, ignorances), 0);
+    }
+
+    @Test
+    public void testDenseMass() {
+        FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test", "a", "b", "c", "d", "e");
+        LabelSets labels = LabelSets.of(frame);
+        Random random = new Random(13);
+        for (int trial = 0; trial < 20; trial++) {
+            List<MassFunction> masses = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                MutableMass mass = frame.newMass();
+                for (int focal = 0; focal < 1 + random.nextInt(6); focal++) {
+                    // any non empty set, most of them having several states
+                    mass.addToFocal(labels.union(1 + random.nextInt(31)), random.nextDouble());
+                }
+                // some ignorance, so the masses are never in total conflict
+                mass.addToFocal(frame.fullIgnoranceSet(), 0.1);
+                mass.normalize();
+                masses.add(mass);
+            }
+
+            MassFunction dempster = masses.stream().reduce(Combinations::dempster).get();
+            assertSameMass(dempster, DenseMass.dempster(masses).toMass(), 1e-9);
+
+            // pairwise disjunctive rule: the masses of two focal sets go to their union
+            MassFunction disjunctive = masses.get(0);
+            for (MassFunction mass : masses.subList(1, masses.size())) {
+                MutableMass combined = frame.newMass();
+                MassFunction left = disjunctive;
+                left.foreachFocalElement((set1, mass1) ->
+                        mass.foreachFocalElement((set2, mass2) -> combined.addToFocal(
+                                labels.union(labels.mask(set1) | labels.mask(set2)),
+                                mass1 * mass2)));
+                disjunctive = combined;
+            }
+            assertSameMass(disjunctive, DenseMass.disjunctive(masses).toMass(), 1e-9);
+
+            double[] values = random.doubles(32).toArray();
+            double[] transformed = values.clone();
+            DenseMass.supersetSums(transformed);
+            DenseMass.supersetDifferences(transformed);
+            Assert.assertArrayEquals(values, transformed, 1e-12);
+            DenseMass.subsetSums(transformed);
+            DenseMass.subsetDifferences(transformed);
+            Assert.assertArrayEquals(values, transformed, 1e-12);
+        }
+    }
+
+    @Test
+    public void testPignisticDecision() {
+        for (String states : new String[]{"ab", "abc"}) {
+            FrameOfDiscernment frame = FrameOfDiscernment.newFrame("test",
+                    states.split(""));
+            List<LabelledPoint<Double>> points = randomPoints(frame, 60, 50, 9);
+            // a and b are at the same distances from 125, so their supports are equal there
+            points.add(new SensorValue("test", "a", 60, 120.0));
+            points.add(new SensorValue("test", "b", 61, 130.0));
+            points.add(new SensorValue("test", "a", 62, 110.0));
+            points.add(new SensorValue("test", "b", 63, 140.0));
+            Map<String, Double> gammas = perState(frame, 4);
+            List<KnnBelief<Double>> models = new ArrayList<>();
+            for (SupportCombination combination : new SupportCombination[]{
+                    SupportCombinations.DEMPSTER, SupportCombinations.DUBOIS_AND_PRADE,
+                    SupportCombinations.YAGER, SupportCombinations.CAUTIOUS}) {
+                models.add(new DoubleKnnBelief(points, 3, 0.6, frame, combination,
+                        ScalarDistance.ABSOLUTE, gammas));
+                if (frame.card() == 2) {
+                    models.add(new TwoClassDoubleKnn(points, 3, 0.6, frame, combination,
+                            ScalarDistance.ABSOLUTE, gammas));
+                }
+            }
+            models.add(new DempsterDoubleKnn(points, 3, 0.6, frame, ScalarDistance.ABSOLUTE,
+                    gammas));
+
+            List<Double> values = new ArrayList<>();
+            for (double value = -5; value < 55; value += 0.37) {
+                values.add(value);
+            }
+            // ties between a and b, and between every state far from the points
+            values.add(125.0);
+            values.add(1e6);
+            StateSet firstOfTie = frame.toStateSet(frame.getStates().stream()
+                    .filter(state -> state.equals("a") || state.equals("b"))
+                    .findFirst().get());
+            for (KnnBelief<Double> model : models) {
+                for (double value : values) {
+                    Assert.assertEquals(highestPignistic(frame, model.toMass(value)),
+                            model.decide(value));
+                }
+                Assert.assertEquals(firstOfTie, model.decide(125.0));
+                Assert.assertEquals(frame.toStateSet(frame.getStates().get(0)),
+                        model.decide(1e6));
+            }
+        }
+    }
+
+    /**
+     * @return the singleton with the greatest pignistic probability, the first state of the
+     * frame among the ones equal up to the rounding errors
+     */
+    private static StateSet highestPignistic(FrameOfDiscernment frame, MassFunction mass) {
+        StateSet decision = null;
+        double bestProbability = Double.NEGATIVE_INFINITY;
+        for (String state : frame.getStates()) {
+            StateSet stateSet = frame.toStateSet(state);
+            double probability = Criteria.betP(mass, stateSet);
+            if (probability > bestProbability + 1e-12) {
+                decision = stateSet;
+                bestProbability = probability;
+            }
+        }
+        return decision;
+    }
+
+    /**
+     * @return count points of the states of the frame in turn, at random values between 0 and
+     * range, each point being labelled with the singleton of its state
+     */
+    private static List<LabelledPoint<Double>> randomPoints(FrameOfDiscernment frame, int count,
+                                                            double range, long seed) {
+        Random random = new Random(seed);
+        List<String> states = new ArrayList<>(frame.getStates());
+        List<LabelledPoint<Double>> points = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String state = states.get(i % states.size());
+            points.add(new SensorValue("test", state, i, random.nextDouble() * range,
+                    frame.toStateSet(state)));
+        }
+        return points;
+    }
+
+    /**
+     * @return a value for each state of the frame (such as the gammas), the values being given
+     * in the order of the states, or a single value for every state
+     */
+    private static Map<String, Double> perState(FrameOfDiscernment frame, double... values) {
+        Map<String, Double> valuesByState = new HashMap<>();
+        for (String state : frame.getStates()) {
+            valuesByState.put(state, values[values.length == 1 ? 0 : valuesByState.size()]);
+        }
+        return valuesByState;
+    }
+
+    /**
+     * Checks that two mass functions have the same focal sets with the same masses.
+     */
+    private static void assertSameMass(MassFunction expected, MassFunction actual,
+                                       double delta) {
+        expected.foreachFocalElement((set, mass) ->
+                Assert.assertEquals(mass, actual.get(set), delta));
+        actual.foreachFocalElement((set, mass) ->
+                Assert.assertEquals(mass, expected.get(set), delta));
+    }
 }